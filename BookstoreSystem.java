@@ -1,4 +1,22 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 // Book class to represent books in the system
 class Book {
@@ -6,7 +24,8 @@ class Book {
     String title;
     String author;
     double price;
-    int quantity;
+    // Units on hand; concurrent updates go through InventoryManager's CAS
+    volatile int quantity;
 
     public Book(String isbn, String title, String author, double price, int quantity) {
         this.isbn = isbn;
@@ -23,26 +42,204 @@ class Book {
     }
 }
 
+// Shipping tier chosen at checkout; its promise window sets the ship-by time
+enum ShippingClass {
+    STANDARD("Standard", 72), PRIORITY("Priority", 24), EXPRESS("Express", 4);
+
+    final String label;
+    final long promiseMillis;
+
+    ShippingClass(String label, int promiseHours) {
+        this.label = label;
+        this.promiseMillis = promiseHours * 3_600_000L;
+    }
+}
+
+// Lifecycle of an order; the label is what toString, the order log and
+// snapshots show
+enum OrderStatus {
+    PROCESSING("Processing"), COMPLETED("Completed"), CANCELLED("Cancelled");
+
+    final String label;
+
+    OrderStatus(String label) {
+        this.label = label;
+    }
+
+    static OrderStatus of(String label) {
+        for (OrderStatus status : values()) {
+            if (status.label.equals(label)) {
+                return status;
+            }
+        }
+        throw new IllegalArgumentException("Unknown order status: " + label);
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
+
+// Outcome of a cancel or shipping upgrade
+enum OrderUpdate {
+    APPLIED, NOT_FOUND, NOT_PROCESSING, NOT_FASTER
+}
+
+// Dense ids for the distinct books that appear on order lines. A line stores
+// the id and looks the ISBN, title and author up here, instead of carrying a
+// Book copy (and, after recovery, its own copies of the strings). A book is
+// identified by ISBN, title and author together, since generated benchmark
+// catalogs reuse ISBNs. Ids are never released.
+class BookRegistry {
+    private static final ConcurrentHashMap<List<String>, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile Book[] books = new Book[64];
+    private static int size;
+
+    public static int idOf(Book book) {
+        List<String> key = Arrays.asList(book.isbn, book.title, book.author);
+        Integer id = ids.get(key);
+        return id != null ? id : register(key);
+    }
+
+    // The registered book; only isbn, title and author are meaningful
+    public static Book get(int id) {
+        return books[id];
+    }
+
+    private static synchronized int register(List<String> key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (size == books.length) {
+            books = Arrays.copyOf(books, size * 2);
+        }
+        books[size] = new Book(key.get(0), key.get(1), key.get(2), 0, 0);
+        // Publishing through the map makes books[size] visible to whoever reads the id
+        ids.put(key, size);
+        return size++;
+    }
+}
+
+// Canonical copies of strings many orders repeat, such as customer names and
+// addresses: equal strings usually come back as one shared instance. The pool
+// is a fixed-size table where a new value simply replaces whatever shared its
+// slot, so it never holds more than its capacity in strings, and values whose
+// orders are gone or archived drop out as other values take their slots.
+// Racing threads may each keep their own copy; that only costs the sharing.
+class StringPool {
+    private final String[] table;
+
+    public StringPool(int capacity) {
+        table = new String[Integer.highestOneBit(Math.max(1, capacity - 1)) << 1];
+    }
+
+    public String canonical(String value) {
+        if (value == null) {
+            return null;
+        }
+        int h = value.hashCode();
+        int slot = (h ^ (h >>> 16)) & (table.length - 1);
+        String existing = table[slot];
+        if (value.equals(existing)) {
+            return existing;
+        }
+        table[slot] = value;
+        return value;
+    }
+}
+
 // Order class to represent customer orders
 class Order {
+    private static final int[] NO_LINES = new int[0];
+    private static final int LINE_INTS = 3;
+    // Repeat customers share one copy of their name and address
+    private static final StringPool NAMES = new StringPool(1 << 16);
+
     int orderId;
     String customerName;
     String shippingAddress;
-    List<Book> books;
-    Date orderDate;
-    String status;
+    // Line items as {BookRegistry id, quantity, unit price in cents} triples
+    private int[] lines = NO_LINES;
+    long orderMillis;
+    volatile OrderStatus status;
+    ShippingClass shipping = ShippingClass.STANDARD;
+    // True when the order's lines were taken from inventory, so cancelling restocks them
+    boolean stockReserved;
+    // Sum of unit price times quantity over the lines, kept by addLine
+    long totalCents;
 
     public Order(int orderId, String customerName, String shippingAddress) {
         this.orderId = orderId;
-        this.customerName = customerName;
-        this.shippingAddress = shippingAddress;
-        this.books = new ArrayList<>();
-        this.orderDate = new Date();
-        this.status = "Processing";
+        this.customerName = NAMES.canonical(customerName);
+        this.shippingAddress = NAMES.canonical(shippingAddress);
+        this.orderMillis = System.currentTimeMillis();
+        this.status = OrderStatus.PROCESSING;
     }
 
+    // Orders one copy of the book. book.quantity is its stock level, not an order quantity.
     public void addBook(Book book) {
-        books.add(book);
+        addBook(book, 1);
+    }
+
+    // Records the book's identity and current unit price; the Book itself is not kept
+    public void addBook(Book book, int quantity) {
+        addLine(BookRegistry.idOf(book), quantity, (int) SalesAggregates.cents(book.price));
+    }
+
+    public void addLine(int bookId, int quantity, int priceCents) {
+        int n = lines.length;
+        lines = Arrays.copyOf(lines, n + LINE_INTS);
+        lines[n] = bookId;
+        lines[n + 1] = quantity;
+        lines[n + 2] = priceCents;
+        totalCents += (long) priceCents * quantity;
+    }
+
+    public int lineCount() {
+        return lines.length / LINE_INTS;
+    }
+
+    public int lineBookId(int line) {
+        return lines[line * LINE_INTS];
+    }
+
+    // ISBN, title and author of a line's book
+    public Book lineBook(int line) {
+        return BookRegistry.get(lineBookId(line));
+    }
+
+    public int lineQuantity(int line) {
+        return lines[line * LINE_INTS + 1];
+    }
+
+    public long linePriceCents(int line) {
+        return lines[line * LINE_INTS + 2];
+    }
+
+    // The lines as Book objects, materialized on each get()
+    public List<Book> books() {
+        return new AbstractList<Book>() {
+            public Book get(int index) {
+                Book book = lineBook(index);
+                return new Book(book.isbn, book.title, book.author, linePriceCents(index) / 100.0, lineQuantity(index));
+            }
+
+            public int size() {
+                return lineCount();
+            }
+        };
+    }
+
+    // Moves the order from one status to another only if it is still in the
+    // expected status, so two workers can never both complete the same order
+    public synchronized boolean transitionStatus(OrderStatus expected, OrderStatus next) {
+        if (status != expected) {
+            return false;
+        }
+        status = next;
+        return true;
     }
 
     @Override
@@ -51,10 +248,11 @@ class Order {
         sb.append("\n=== Order #" + orderId + " ===\n");
         sb.append("Customer: " + customerName + "\n");
         sb.append("Address: " + shippingAddress + "\n");
-        sb.append("Date: " + orderDate + "\n");
+        sb.append("Date: " + new Date(orderMillis) + "\n");
         sb.append("Status: " + status + "\n");
+        sb.append("Shipping: " + shipping.label + "\n");
         sb.append("Books:\n");
-        for (Book book : books) {
+        for (Book book : books()) {
             sb.append("  - " + book.toString() + "\n");
         }
         return sb.toString();
@@ -62,467 +260,9408 @@ class Order {
 }
 
 // === STACK IMPLEMENTATION (LIFO) ===
+// Growable array stack. Popping or peeking an empty stack returns null rather
+// than printing, so callers decide what to tell the user.
 class MyStack {
-    private ArrayList<Order> stack;
+    private Order[] stack;
+    private int size;
+
     public MyStack() {
-        stack = new ArrayList<>();
+        stack = new Order[16];
     }
+
+    // Push operation - O(1) amortized
     public void push(Order order) {
-        stack.add(order);
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size++] = order;
     }
+
+    // Pop operation - O(1), null when empty
     public Order pop() {
-        if (isEmpty()) {
-            System.out.println("Stack is empty!");
+        if (size == 0) {
             return null;
         }
-        return stack.remove(stack.size() - 1);
+        Order top = stack[--size];
+        stack[size] = null;
+        return top;
     }
+
+    // Peek operation - O(1), null when empty
     public Order peek() {
-        if (isEmpty()) {
-            System.out.println("Stack is empty!");
-            return null;
-        }
-        return stack.get(stack.size() - 1);
+        return size == 0 ? null : stack[size - 1];
     }
 
     public boolean isEmpty() {
-        return stack.isEmpty();
+        return size == 0;
     }
+
     public int size() {
-        return stack.size();
+        return size;
+    }
+
+    // Order ids from bottom to top
+    public int[] orderIds() {
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = stack[i].orderId;
+        }
+        return ids;
     }
+
     public void display() {
         System.out.println("\n=== Stack Contents (Top to Bottom) ===");
-        for (int i = stack.size() - 1; i >= 0; i--) {
-            System.out.println("Position " + (stack.size() - i) + ": Order #" + stack.get(i).orderId);
+        for (int i = size - 1; i >= 0; i--) {
+            System.out.println("Position " + (size - i) + ": Order #" + stack[i].orderId);
+        }
+    }
+}
+
+// Stack of plain order ids: one int[] and no boxing
+class IntStack {
+    private int[] stack;
+    private int size;
+
+    public IntStack() {
+        stack = new int[16];
+    }
+
+    public void push(int orderId) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
         }
+        stack[size++] = orderId;
+    }
+
+    // Returns ifEmpty when there is nothing to pop
+    public int pop(int ifEmpty) {
+        return size == 0 ? ifEmpty : stack[--size];
+    }
+
+    public int peek(int ifEmpty) {
+        return size == 0 ? ifEmpty : stack[size - 1];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
     }
 }
 
 // === QUEUE IMPLEMENTATION (FIFO) ===
+// Growable circular array: head chases tail around a power-of-two buffer, so
+// enqueue and dequeue never allocate and consecutive orders sit next to each
+// other in memory. An empty dequeue or front returns null rather than printing.
 class MyQueue {
-    private LinkedList<Order> queue;
+    private Order[] queue;
+    private int head;
+    private int size;
 
     public MyQueue() {
-        queue = new LinkedList<>();
+        queue = new Order[16];
     }
 
-    // Enqueue operation - O(1)
+    // Enqueue operation - O(1) amortized
     public void enqueue(Order order) {
-        queue.addLast(order);
+        if (size == queue.length) {
+            grow();
+        }
+        queue[(head + size) & (queue.length - 1)] = order;
+        size++;
     }
 
-    // Dequeue operation - O(1)
+    // Dequeue operation - O(1), null when empty
     public Order dequeue() {
-        if (isEmpty()) {
-            System.out.println("Queue is empty!");
+        if (size == 0) {
             return null;
         }
-        return queue.removeFirst();
+        Order order = queue[head];
+        queue[head] = null;
+        head = (head + 1) & (queue.length - 1);
+        size--;
+        return order;
     }
 
-    // Front operation - O(1)
+    // Front operation - O(1), null when empty
     public Order front() {
-        if (isEmpty()) {
-            System.out.println("Queue is empty!");
-            return null;
+        return size == 0 ? null : queue[head];
+    }
+
+    // Unwraps the ring into a buffer twice the size, oldest order first
+    private void grow() {
+        Order[] bigger = new Order[queue.length * 2];
+        int firstPart = Math.min(size, queue.length - head);
+        System.arraycopy(queue, head, bigger, 0, firstPart);
+        System.arraycopy(queue, 0, bigger, firstPart, size - firstPart);
+        queue = bigger;
+        head = 0;
+    }
+
+    // Remove - O(n), used when a queued order is cancelled; later orders shift forward
+    public boolean remove(Order order) {
+        int mask = queue.length - 1;
+        for (int i = 0; i < size; i++) {
+            if (queue[(head + i) & mask] == order) {
+                for (int j = i; j < size - 1; j++) {
+                    queue[(head + j) & mask] = queue[(head + j + 1) & mask];
+                }
+                queue[(head + size - 1) & mask] = null;
+                size--;
+                return true;
+            }
         }
-        return queue.getFirst();
+        return false;
     }
 
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return size == 0;
     }
 
     public int size() {
-        return queue.size();
+        return size;
+    }
+
+    // Order ids from front to rear
+    public int[] orderIds() {
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = queue[(head + i) & (queue.length - 1)].orderId;
+        }
+        return ids;
     }
 
     public void display() {
         System.out.println("\n=== Queue Contents (Front to Rear) ===");
-        int position = 1;
-        for (Order order : queue) {
-            System.out.println("Position " + position++ + ": Order #" + order.orderId);
+        for (int i = 0; i < size; i++) {
+            System.out.println("Position " + (i + 1) + ": Order #" + queue[(head + i) & (queue.length - 1)].orderId);
         }
     }
 }
 
-// === SINGLY LINKED LIST IMPLEMENTATION ===
-class SinglyLinkedList {
-    class Node {
-        Order data;
-        Node next;
+// Queue of plain order ids on the same circular layout
+class IntQueue {
+    private int[] queue;
+    private int head;
+    private int size;
 
-        Node(Order data) {
-            this.data = data;
-            this.next = null;
+    public IntQueue() {
+        queue = new int[16];
+    }
+
+    public void enqueue(int orderId) {
+        if (size == queue.length) {
+            int[] bigger = new int[queue.length * 2];
+            int firstPart = Math.min(size, queue.length - head);
+            System.arraycopy(queue, head, bigger, 0, firstPart);
+            System.arraycopy(queue, 0, bigger, firstPart, size - firstPart);
+            queue = bigger;
+            head = 0;
         }
+        queue[(head + size) & (queue.length - 1)] = orderId;
+        size++;
     }
 
-    private Node head;
-    private int size;
+    // Returns ifEmpty when there is nothing to dequeue
+    public int dequeue(int ifEmpty) {
+        if (size == 0) {
+            return ifEmpty;
+        }
+        int orderId = queue[head];
+        head = (head + 1) & (queue.length - 1);
+        size--;
+        return orderId;
+    }
 
-    public SinglyLinkedList() {
-        head = null;
-        size = 0;
+    public int front(int ifEmpty) {
+        return size == 0 ? ifEmpty : queue[head];
     }
 
-    // Insert at beginning - O(1)
-    public void insertAtBeginning(Order order) {
-        Node newNode = new Node(order);
-        newNode.next = head;
-        head = newNode;
-        size++;
+    public boolean isEmpty() {
+        return size == 0;
     }
 
-    // Insert at end - O(n)
-    public void insertAtEnd(Order order) {
-        Node newNode = new Node(order);
-        if (head == null) {
-            head = newNode;
-        } else {
-            Node current = head;
-            while (current.next != null) {
-                current = current.next;
-            }
-            current.next = newNode;
+    public int size() {
+        return size;
+    }
+}
+
+// === RECENT ORDERS HISTORY ===
+// Fixed-capacity "last N orders" ring that overwrites its oldest entry, so the
+// history stays the same size however long the process runs. A writer claims
+// a sequence number with one getAndIncrement and publishes an immutable entry
+// into slot (sequence mod N) by CAS, never replacing a newer entry with an
+// older one. Readers walk back from the newest claimed sequence and keep only
+// entries whose sequence matches the slot they expect, so a snapshot is a
+// consistent newest-first run of orders and never blocks a writer.
+class RecentOrderRing {
+    private static final class Entry {
+        final long sequence;
+        final Order order;
+
+        Entry(long sequence, Order order) {
+            this.sequence = sequence;
+            this.order = order;
         }
-        size++;
     }
 
-    // Delete from beginning - O(1)
-    public void deleteFromBeginning() {
-        if (head != null) {
-            head = head.next;
-            size--;
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    public RecentOrderRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    // Push - O(1), lock-free
+    public void push(Order order) {
+        long sequence = next.getAndIncrement();
+        Entry entry = new Entry(sequence, order);
+        int slot = (int) sequence & mask;
+        while (true) {
+            Entry current = slots.get(slot);
+            if (current != null && current.sequence > sequence) {
+                return; // lapped by a newer writer; this order is already out of the window
+            }
+            if (slots.compareAndSet(slot, current, entry)) {
+                return;
+            }
         }
     }
 
-    // Search - O(n)
-    public Order search(int orderId) {
-        Node current = head;
-        while (current != null) {
-            if (current.data.orderId == orderId) {
-                return current.data;
+    // Up to k most recent orders, newest first
+    public List<Order> latest(int k) {
+        List<Order> result = new ArrayList<>(Math.min(k, slots.length()));
+        long newest = next.get() - 1;
+        long oldest = Math.max(0, newest - mask);
+        for (long sequence = newest; sequence >= oldest && result.size() < k; sequence--) {
+            Entry entry = slots.get((int) sequence & mask);
+            if (entry == null || entry.sequence < sequence) {
+                continue; // claimed but not yet published
             }
-            current = current.next;
+            if (entry.sequence > sequence) {
+                break; // overwritten by a newer lap: everything older is gone too
+            }
+            result.add(entry.order);
         }
-        return null;
+        return result;
     }
 
-    public void display() {
-        System.out.println("\n=== Singly Linked List Contents ===");
-        Node current = head;
+    public Order peek() {
+        List<Order> top = latest(1);
+        return top.isEmpty() ? null : top.get(0);
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    public int size() {
+        return (int) Math.min(next.get(), slots.length());
+    }
+
+    // Total pushes since creation, including those already overwritten
+    public long pushed() {
+        return next.get();
+    }
+
+    // Order ids from oldest to newest, the order to push them back in after a restart
+    public int[] orderIds() {
+        List<Order> orders = latest(slots.length());
+        int[] ids = new int[orders.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = orders.get(ids.length - 1 - i).orderId;
+        }
+        return ids;
+    }
+
+    public void display(int k) {
+        System.out.println("\n=== Recent Orders (Newest First, last " + capacity() + " kept) ===");
         int position = 1;
-        while (current != null) {
-            System.out.println("Position " + position++ + ": Order #" + current.data.orderId);
-            current = current.next;
+        for (Order order : latest(k)) {
+            System.out.println("Position " + position++ + ": Order #" + order.orderId);
         }
     }
 }
 
-// === SORTING ALGORITHMS ===
-class SortingAlgorithms {
+// === ORDER SCHEDULER ===
+// Indexed 4-ary min-heap over pending orders, the --scheduler alternative to
+// FIFO MyQueue. Orders are ranked by ship-by time (order date plus the
+// shipping class's promise window), then by class, then by arrival. Because
+// the key is an absolute deadline, waiting orders age on their own: an order
+// can only be overtaken by one promised earlier, so a standard order never
+// waits behind orders placed more than STANDARD - EXPRESS promise hours after it.
+// Heap entries live in parallel arrays and an IntIntHashMap tracks each order's
+// slot, so add, poll, reschedule and cancel allocate nothing once the arrays
+// have grown.
+class OrderScheduler {
+    private static final int ARITY = 4;
+    private static final long SEQUENCE_MASK = (1L << 48) - 1;
 
-    // Bubble Sort - O(n²)
-    public static void bubbleSort(List<Book> books) {
-        int n = books.size();
-        for (int i = 0; i < n - 1; i++) {
-            for (int j = 0; j < n - i - 1; j++) {
-                if (books.get(j).title.compareTo(books.get(j + 1).title) > 0) {
-                    // Swap
-                    Book temp = books.get(j);
-                    books.set(j, books.get(j + 1));
-                    books.set(j + 1, temp);
-                }
-            }
-        }
+    private Order[] orders;
+    private int[] ids;
+    private long[] keys;
+    private long[] ties;
+    private final IntIntHashMap slots;
+    private int size;
+    private long sequence;
+
+    public OrderScheduler() {
+        this(16);
     }
 
-    // Selection Sort - O(n²)
-    public static void selectionSort(List<Book> books) {
-        int n = books.size();
-        for (int i = 0; i < n - 1; i++) {
-            int minIdx = i;
-            for (int j = i + 1; j < n; j++) {
-                if (books.get(j).title.compareTo(books.get(minIdx).title) < 0) {
-                    minIdx = j;
-                }
-            }
-            // Swap
-            Book temp = books.get(i);
-            books.set(i, books.get(minIdx));
-            books.set(minIdx, temp);
-        }
+    public OrderScheduler(int initialCapacity) {
+        int capacity = Math.max(4, initialCapacity);
+        orders = new Order[capacity];
+        ids = new int[capacity];
+        keys = new long[capacity];
+        ties = new long[capacity];
+        slots = new IntIntHashMap(capacity);
     }
 
-    // Insertion Sort - O(n²)
-    public static void insertionSort(List<Book> books) {
-        int n = books.size();
-        for (int i = 1; i < n; i++) {
-            Book key = books.get(i);
-            int j = i - 1;
-            while (j >= 0 && books.get(j).title.compareTo(key.title) > 0) {
-                books.set(j + 1, books.get(j));
-                j--;
-            }
-            books.set(j + 1, key);
+    private static long shipBy(Order order) {
+        return order.orderMillis + order.shipping.promiseMillis;
+    }
+
+    // Faster classes win ties on the same ship-by time
+    private static long rank(Order order) {
+        return (long) (ShippingClass.EXPRESS.ordinal() - order.shipping.ordinal()) << 48;
+    }
+
+    private static boolean less(long key, long tie, long otherKey, long otherTie) {
+        return key < otherKey || (key == otherKey && tie < otherTie);
+    }
+
+    // Add - O(log n)
+    public void add(Order order) {
+        if (slots.containsKey(order.orderId)) {
+            throw new IllegalArgumentException("Order #" + order.orderId + " is already scheduled");
         }
+        if (size == orders.length) {
+            int capacity = size * 2;
+            orders = Arrays.copyOf(orders, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            ties = Arrays.copyOf(ties, capacity);
+        }
+        siftUp(size++, order, shipBy(order), rank(order) | (sequence++ & SEQUENCE_MASK));
     }
 
-    // Merge Sort - O(n log n)
-    public static void mergeSort(List<Book> books, int left, int right) {
-        if (left < right) {
-            int mid = (left + right) / 2;
-            mergeSort(books, left, mid);
-            mergeSort(books, mid + 1, right);
-            merge(books, left, mid, right);
+    // Poll - O(log n), the order due first, or null when empty
+    public Order poll() {
+        return size == 0 ? null : removeAt(0);
+    }
+
+    public Order peek() {
+        return size == 0 ? null : orders[0];
+    }
+
+    // Cancel - O(log n), returns the removed order or null if it was not scheduled
+    public Order cancel(int orderId) {
+        int slot = slots.get(orderId, -1);
+        return slot < 0 ? null : removeAt(slot);
+    }
+
+    // Re-ranks an order after its shipping class changed - O(log n). An upgrade
+    // only ever moves the order up (decrease-key); a downgrade moves it down.
+    public boolean reschedule(int orderId) {
+        int slot = slots.get(orderId, -1);
+        if (slot < 0) {
+            return false;
         }
+        Order order = orders[slot];
+        place(slot, order, shipBy(order), rank(order) | (ties[slot] & SEQUENCE_MASK));
+        return true;
     }
 
-    private static void merge(List<Book> books, int left, int mid, int right) {
-        List<Book> leftList = new ArrayList<>();
-        List<Book> rightList = new ArrayList<>();
+    public boolean contains(int orderId) {
+        return slots.containsKey(orderId);
+    }
 
-        for (int i = left; i <= mid; i++) {
-            leftList.add(books.get(i));
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Order ids in heap (not schedule) order
+    public int[] orderIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    private Order removeAt(int slot) {
+        Order removed = orders[slot];
+        slots.remove(ids[slot]);
+        int last = --size;
+        Order moved = orders[last];
+        orders[last] = null;
+        if (slot != last) {
+            place(slot, moved, keys[last], ties[last]);
         }
-        for (int i = mid + 1; i <= right; i++) {
-            rightList.add(books.get(i));
+        return removed;
+    }
+
+    // Puts an entry into slot and restores heap order in whichever direction it is broken
+    private void place(int slot, Order order, long key, long tie) {
+        int parent = (slot - 1) / ARITY;
+        if (slot > 0 && less(key, tie, keys[parent], ties[parent])) {
+            siftUp(slot, order, key, tie);
+        } else {
+            siftDown(slot, order, key, tie);
         }
+    }
 
-        int i = 0, j = 0, k = left;
-        while (i < leftList.size() && j < rightList.size()) {
-            if (leftList.get(i).title.compareTo(rightList.get(j).title) <= 0) {
-                books.set(k++, leftList.get(i++));
-            } else {
-                books.set(k++, rightList.get(j++));
+    // Moves parents down into the hole until the entry fits, then writes it once
+    private void siftUp(int slot, Order order, long key, long tie) {
+        while (slot > 0) {
+            int parent = (slot - 1) / ARITY;
+            if (!less(key, tie, keys[parent], ties[parent])) {
+                break;
+            }
+            move(parent, slot);
+            slot = parent;
+        }
+        set(slot, order, key, tie);
+    }
+
+    private void siftDown(int slot, Order order, long key, long tie) {
+        while (true) {
+            int first = slot * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+            int best = first;
+            int end = Math.min(first + ARITY, size);
+            for (int child = first + 1; child < end; child++) {
+                if (less(keys[child], ties[child], keys[best], ties[best])) {
+                    best = child;
+                }
+            }
+            if (!less(keys[best], ties[best], key, tie)) {
+                break;
+            }
+            move(best, slot);
+            slot = best;
+        }
+        set(slot, order, key, tie);
+    }
+
+    // The id is copied alongside the order so sifting never dereferences an Order
+    private void move(int from, int to) {
+        orders[to] = orders[from];
+        ids[to] = ids[from];
+        keys[to] = keys[from];
+        ties[to] = ties[from];
+        slots.put(ids[to], to);
+    }
+
+    private void set(int slot, Order order, long key, long tie) {
+        orders[slot] = order;
+        ids[slot] = order.orderId;
+        keys[slot] = key;
+        ties[slot] = tie;
+        slots.put(order.orderId, slot);
+    }
+
+    public void display() {
+        System.out.println("\n=== Scheduler Contents (Next Due First) ===");
+        OrderScheduler copy = new OrderScheduler(size);
+        for (int i = 0; i < size; i++) {
+            copy.set(i, orders[i], keys[i], ties[i]);
+        }
+        copy.size = size;
+        int position = 1;
+        for (Order order = copy.poll(); order != null; order = copy.poll()) {
+            System.out.printf("Position %d: Order #%d (%s, ship by %s)%n", position++, order.orderId,
+                    order.shipping.label, new Date(shipBy(order)));
+        }
+    }
+}
+
+// === SINGLY LINKED LIST IMPLEMENTATION ===
+// Unrolled singly linked list: each node holds up to NODE_CAPACITY orders in
+// a small array, so traversal touches a few cache lines per node instead of
+// one node per order. A tail pointer makes appends O(1). New head nodes fill
+// from the right, so insertAtBeginning stays O(1) too.
+// With indexed = true an orderId -> node map turns search and deleteById into
+// a hash lookup plus a scan of one node (order ids must then be unique).
+class SinglyLinkedList {
+    static final int NODE_CAPACITY = 16;
+
+    class Node {
+        final Order[] items = new Order[NODE_CAPACITY];
+        // Copy of each item's orderId so scanning a node never dereferences an Order
+        final int[] ids = new int[NODE_CAPACITY];
+        // Live orders occupy items[start, end)
+        int start;
+        int end;
+        Node next;
+
+        Node(int start) {
+            this.start = start;
+            this.end = start;
+        }
+    }
+
+    private Node head;
+    private Node tail;
+    private int size;
+    private final IntObjectHashMap<Node> index;
+
+    public SinglyLinkedList() {
+        this(false);
+    }
+
+    public SinglyLinkedList(boolean indexed) {
+        head = null;
+        tail = null;
+        size = 0;
+        index = indexed ? new IntObjectHashMap<>() : null;
+    }
+
+    // Insert at beginning - O(1)
+    public void insertAtBeginning(Order order) {
+        if (head == null || head.start == 0) {
+            Node newNode = new Node(NODE_CAPACITY);
+            newNode.next = head;
+            head = newNode;
+            if (tail == null) {
+                tail = newNode;
+            }
+        }
+        head.items[--head.start] = order;
+        head.ids[head.start] = order.orderId;
+        indexOrder(order, head);
+        size++;
+    }
+
+    // Insert at end - O(1) via the tail pointer
+    public void insertAtEnd(Order order) {
+        if (tail == null) {
+            head = tail = new Node(0);
+        } else if (tail.end == NODE_CAPACITY) {
+            if (tail.start == tail.end) {
+                tail.start = tail.end = 0; // emptied by deletes, reuse it
+            } else {
+                tail.next = new Node(0);
+                tail = tail.next;
+            }
+        }
+        tail.ids[tail.end] = order.orderId;
+        tail.items[tail.end++] = order;
+        indexOrder(order, tail);
+        size++;
+    }
+
+    // Delete from beginning - O(1)
+    public void deleteFromBeginning() {
+        if (head == null) {
+            return;
+        }
+        if (head.start == head.end) {
+            unlinkHead(); // only an emptied tail can be left without orders
+            return;
+        }
+        Order removed = head.items[head.start];
+        head.items[head.start++] = null;
+        if (index != null) {
+            index.remove(removed.orderId);
+        }
+        size--;
+        if (head.start == head.end) {
+            unlinkHead();
+        }
+    }
+
+    private void unlinkHead() {
+        head = head.next;
+        if (head == null) {
+            tail = null;
+        }
+    }
+
+    // Search - O(1) expected when indexed, otherwise O(n)
+    public Order search(int orderId) {
+        if (index != null) {
+            Node node = index.get(orderId);
+            int i = node == null ? -1 : positionIn(node, orderId);
+            return i < 0 ? null : node.items[i];
+        }
+        for (Node node = head; node != null; node = node.next) {
+            int i = positionIn(node, orderId);
+            if (i >= 0) {
+                return node.items[i];
+            }
+        }
+        return null;
+    }
+
+    // Delete by id - O(NODE_CAPACITY) when indexed, otherwise O(n). Returns the removed order.
+    public Order deleteById(int orderId) {
+        Node node = index != null ? index.get(orderId) : null;
+        if (index == null) {
+            for (node = head; node != null && positionIn(node, orderId) < 0; node = node.next) {
+            }
+        }
+        int i = node == null ? -1 : positionIn(node, orderId);
+        if (i < 0) {
+            return null;
+        }
+        Order removed = node.items[i];
+        System.arraycopy(node.items, i + 1, node.items, i, node.end - i - 1);
+        System.arraycopy(node.ids, i + 1, node.ids, i, node.end - i - 1);
+        node.items[--node.end] = null;
+        if (index != null) {
+            index.remove(orderId);
+        }
+        size--;
+        if (node.start == node.end) {
+            removeEmpty(node);
+        }
+        return removed;
+    }
+
+    // Without a back pointer an empty node is removed by pulling its successor's
+    // orders into it and unlinking the successor instead
+    private void removeEmpty(Node node) {
+        if (node == head) {
+            unlinkHead();
+            return;
+        }
+        Node next = node.next;
+        if (next == null) {
+            return; // empty tail stays until the next append reuses it
+        }
+        System.arraycopy(next.items, 0, node.items, 0, NODE_CAPACITY);
+        System.arraycopy(next.ids, 0, node.ids, 0, NODE_CAPACITY);
+        node.start = next.start;
+        node.end = next.end;
+        node.next = next.next;
+        if (tail == next) {
+            tail = node;
+        }
+        for (int j = node.start; j < node.end; j++) {
+            indexOrder(node.items[j], node);
+        }
+    }
+
+    private static int positionIn(SinglyLinkedList.Node node, int orderId) {
+        for (int i = node.start; i < node.end; i++) {
+            if (node.ids[i] == orderId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void indexOrder(Order order, Node node) {
+        if (index != null) {
+            index.put(order.orderId, node);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void display() {
+        System.out.println("\n=== Singly Linked List Contents ===");
+        int position = 1;
+        for (Node node = head; node != null; node = node.next) {
+            for (int i = node.start; i < node.end; i++) {
+                System.out.println("Position " + position++ + ": Order #" + node.items[i].orderId);
+            }
+        }
+    }
+}
+
+// === SORTING ALGORITHMS ===
+// Every algorithm takes a Comparator<Book>; the original signatures sort by
+// title. For keys that can be extracted up front see KeyedSortingAlgorithms.
+class SortingAlgorithms {
+    static final Comparator<Book> BY_TITLE = (a, b) -> a.title.compareTo(b.title);
+
+    // Bubble Sort - O(n²)
+    public static void bubbleSort(List<Book> books) {
+        bubbleSort(books, BY_TITLE);
+    }
+
+    public static void bubbleSort(List<Book> books, Comparator<? super Book> cmp) {
+        int n = books.size();
+        for (int i = 0; i < n - 1; i++) {
+            for (int j = 0; j < n - i - 1; j++) {
+                if (cmp.compare(books.get(j), books.get(j + 1)) > 0) {
+                    // Swap
+                    Book temp = books.get(j);
+                    books.set(j, books.get(j + 1));
+                    books.set(j + 1, temp);
+                }
+            }
+        }
+    }
+
+    // Selection Sort - O(n²)
+    public static void selectionSort(List<Book> books) {
+        selectionSort(books, BY_TITLE);
+    }
+
+    public static void selectionSort(List<Book> books, Comparator<? super Book> cmp) {
+        int n = books.size();
+        for (int i = 0; i < n - 1; i++) {
+            int minIdx = i;
+            for (int j = i + 1; j < n; j++) {
+                if (cmp.compare(books.get(j), books.get(minIdx)) < 0) {
+                    minIdx = j;
+                }
+            }
+            // Swap
+            Book temp = books.get(i);
+            books.set(i, books.get(minIdx));
+            books.set(minIdx, temp);
+        }
+    }
+
+    // Insertion Sort - O(n²)
+    public static void insertionSort(List<Book> books) {
+        insertionSort(books, BY_TITLE);
+    }
+
+    public static void insertionSort(List<Book> books, Comparator<? super Book> cmp) {
+        int n = books.size();
+        for (int i = 1; i < n; i++) {
+            Book key = books.get(i);
+            int j = i - 1;
+            while (j >= 0 && cmp.compare(books.get(j), key) > 0) {
+                books.set(j + 1, books.get(j));
+                j--;
+            }
+            books.set(j + 1, key);
+        }
+    }
+
+    // Merge Sort - O(n log n)
+    public static void mergeSort(List<Book> books, int left, int right) {
+        mergeSort(books, left, right, BY_TITLE);
+    }
+
+    public static void mergeSort(List<Book> books, int left, int right, Comparator<? super Book> cmp) {
+        if (left < right) {
+            int mid = (left + right) / 2;
+            mergeSort(books, left, mid, cmp);
+            mergeSort(books, mid + 1, right, cmp);
+            merge(books, left, mid, right, cmp);
+        }
+    }
+
+    private static void merge(List<Book> books, int left, int mid, int right, Comparator<? super Book> cmp) {
+        List<Book> leftList = new ArrayList<>();
+        List<Book> rightList = new ArrayList<>();
+
+        for (int i = left; i <= mid; i++) {
+            leftList.add(books.get(i));
+        }
+        for (int i = mid + 1; i <= right; i++) {
+            rightList.add(books.get(i));
+        }
+
+        int i = 0, j = 0, k = left;
+        while (i < leftList.size() && j < rightList.size()) {
+            if (cmp.compare(leftList.get(i), rightList.get(j)) <= 0) {
+                books.set(k++, leftList.get(i++));
+            } else {
+                books.set(k++, rightList.get(j++));
+            }
+        }
+
+        while (i < leftList.size()) {
+            books.set(k++, leftList.get(i++));
+        }
+        while (j < rightList.size()) {
+            books.set(k++, rightList.get(j++));
+        }
+    }
+
+    // Quick Sort - O(n log n) average, O(n²) worst
+    public static void quickSort(List<Book> books, int low, int high) {
+        quickSort(books, low, high, BY_TITLE);
+    }
+
+    public static void quickSort(List<Book> books, int low, int high, Comparator<? super Book> cmp) {
+        if (low < high) {
+            int pi = partition(books, low, high, cmp);
+            quickSort(books, low, pi - 1, cmp);
+            quickSort(books, pi + 1, high, cmp);
+        }
+    }
+
+    private static int partition(List<Book> books, int low, int high, Comparator<? super Book> cmp) {
+        Book pivot = books.get(high);
+        int i = low - 1;
+
+        for (int j = low; j < high; j++) {
+            if (cmp.compare(books.get(j), pivot) < 0) {
+                i++;
+                Book temp = books.get(i);
+                books.set(i, books.get(j));
+                books.set(j, temp);
+            }
+        }
+
+        Book temp = books.get(i + 1);
+        books.set(i + 1, books.get(high));
+        books.set(high, temp);
+
+        return i + 1;
+    }
+
+    // Adaptive Merge Sort - O(n log n) worst, O(n) on presorted input
+    // Stable natural merge sort: finds existing ascending runs (reversing strictly
+    // descending ones), extends short runs with binary insertion sort and merges
+    // them through one scratch buffer of n/2 elements. Pass a buffer from a
+    // previous call to sort without allocating; the buffer in use is returned.
+    private static final int MIN_MERGE = 32;
+    private static final int MAX_RUN_STACK = 49;
+
+    public static Book[] adaptiveMergeSort(List<Book> books) {
+        return adaptiveMergeSort(books, null, BY_TITLE);
+    }
+
+    public static Book[] adaptiveMergeSort(List<Book> books, Book[] buffer) {
+        return adaptiveMergeSort(books, buffer, BY_TITLE);
+    }
+
+    public static Book[] adaptiveMergeSort(List<Book> books, Comparator<? super Book> cmp) {
+        return adaptiveMergeSort(books, null, cmp);
+    }
+
+    public static Book[] adaptiveMergeSort(List<Book> books, Book[] buffer, Comparator<? super Book> cmp) {
+        int n = books.size();
+        if (buffer == null || buffer.length < n / 2) {
+            buffer = new Book[Math.max(n / 2, 1)];
+        }
+        if (n < 2) {
+            return buffer;
+        }
+
+        int[] runBase = new int[MAX_RUN_STACK];
+        int[] runLen = new int[MAX_RUN_STACK];
+        int stackSize = 0;
+        int minRun = minRunLength(n);
+
+        int lo = 0;
+        while (lo < n) {
+            int len = countRunAndMakeAscending(books, lo, n, cmp);
+            if (len < minRun) {
+                int force = Math.min(minRun, n - lo);
+                binaryInsertionSort(books, lo, lo + force, lo + len, cmp);
+                len = force;
+            }
+            runBase[stackSize] = lo;
+            runLen[stackSize] = len;
+            stackSize++;
+
+            // Keep run lengths decreasing like Fibonacci numbers so merges stay balanced
+            while (stackSize > 1) {
+                int i = stackSize - 2;
+                if ((i > 0 && runLen[i - 1] <= runLen[i] + runLen[i + 1])
+                        || (i > 1 && runLen[i - 2] <= runLen[i] + runLen[i - 1])) {
+                    if (runLen[i - 1] < runLen[i + 1]) {
+                        i--;
+                    }
+                } else if (runLen[i] > runLen[i + 1]) {
+                    break;
+                }
+                stackSize = mergeAt(books, runBase, runLen, stackSize, i, buffer, cmp);
+            }
+            lo += len;
+        }
+        while (stackSize > 1) {
+            int i = stackSize - 2;
+            if (i > 0 && runLen[i - 1] < runLen[i + 1]) {
+                i--;
+            }
+            stackSize = mergeAt(books, runBase, runLen, stackSize, i, buffer, cmp);
+        }
+        return buffer;
+    }
+
+    private static int minRunLength(int n) {
+        int r = 0;
+        while (n >= MIN_MERGE) {
+            r |= (n & 1);
+            n >>= 1;
+        }
+        return n + r;
+    }
+
+    // Length of the run starting at lo; a strictly descending run is reversed in place
+    private static int countRunAndMakeAscending(List<Book> books, int lo, int hi, Comparator<? super Book> cmp) {
+        int runHi = lo + 1;
+        if (runHi == hi) {
+            return 1;
+        }
+        if (cmp.compare(books.get(runHi++), books.get(lo)) < 0) {
+            while (runHi < hi && cmp.compare(books.get(runHi), books.get(runHi - 1)) < 0) {
+                runHi++;
+            }
+            for (int i = lo, j = runHi - 1; i < j; i++, j--) {
+                swap(books, i, j);
+            }
+        } else {
+            while (runHi < hi && cmp.compare(books.get(runHi), books.get(runHi - 1)) >= 0) {
+                runHi++;
+            }
+        }
+        return runHi - lo;
+    }
+
+    // Sorts books[lo, hi) given that books[lo, start) is already sorted
+    private static void binaryInsertionSort(List<Book> books, int lo, int hi, int start, Comparator<? super Book> cmp) {
+        for (int i = start; i < hi; i++) {
+            Book pivot = books.get(i);
+            int left = lo, right = i;
+            while (left < right) {
+                int mid = (left + right) >>> 1;
+                if (cmp.compare(pivot, books.get(mid)) < 0) {
+                    right = mid;
+                } else {
+                    left = mid + 1;
+                }
+            }
+            for (int j = i; j > left; j--) {
+                books.set(j, books.get(j - 1));
+            }
+            books.set(left, pivot);
+        }
+    }
+
+    // Merges runs i and i+1 and returns the new stack size
+    private static int mergeAt(List<Book> books, int[] runBase, int[] runLen, int stackSize, int i, Book[] buffer,
+                               Comparator<? super Book> cmp) {
+        int base1 = runBase[i], len1 = runLen[i];
+        int base2 = runBase[i + 1], len2 = runLen[i + 1];
+        runLen[i] = len1 + len2;
+        if (i == stackSize - 3) {
+            runBase[i + 1] = runBase[i + 2];
+            runLen[i + 1] = runLen[i + 2];
+        }
+        stackSize--;
+
+        // Runs already in order: nothing to merge
+        if (cmp.compare(books.get(base2 - 1), books.get(base2)) <= 0) {
+            return stackSize;
+        }
+
+        // Elements of run 1 that are <= run 2's first element are already in place
+        Book first2 = books.get(base2);
+        int left = base1, right = base1 + len1;
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            if (cmp.compare(books.get(mid), first2) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        len1 -= left - base1;
+        base1 = left;
+
+        // Elements of run 2 that are >= run 1's last element are already in place
+        Book last1 = books.get(base1 + len1 - 1);
+        left = base2;
+        right = base2 + len2;
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            if (cmp.compare(books.get(mid), last1) < 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        len2 = left - base2;
+
+        if (len1 <= len2) {
+            mergeLow(books, base1, len1, base2, len2, buffer, cmp);
+        } else {
+            mergeHigh(books, base1, len1, base2, len2, buffer, cmp);
+        }
+        return stackSize;
+    }
+
+    // Copies the shorter left run into the buffer and merges front to back
+    private static void mergeLow(List<Book> books, int base1, int len1, int base2, int len2, Book[] buffer,
+                                 Comparator<? super Book> cmp) {
+        for (int i = 0; i < len1; i++) {
+            buffer[i] = books.get(base1 + i);
+        }
+        int i = 0, j = base2, k = base1, end2 = base2 + len2;
+        while (i < len1 && j < end2) {
+            Book right = books.get(j);
+            if (cmp.compare(buffer[i], right) <= 0) {
+                books.set(k++, buffer[i++]);
+            } else {
+                books.set(k++, right);
+                j++;
+            }
+        }
+        while (i < len1) {
+            books.set(k++, buffer[i++]);
+        }
+        Arrays.fill(buffer, 0, len1, null);
+    }
+
+    // Copies the shorter right run into the buffer and merges back to front
+    private static void mergeHigh(List<Book> books, int base1, int len1, int base2, int len2, Book[] buffer,
+                                  Comparator<? super Book> cmp) {
+        for (int j = 0; j < len2; j++) {
+            buffer[j] = books.get(base2 + j);
+        }
+        int i = base1 + len1 - 1, j = len2 - 1, k = base2 + len2 - 1;
+        while (i >= base1 && j >= 0) {
+            Book left = books.get(i);
+            if (cmp.compare(left, buffer[j]) > 0) {
+                books.set(k--, left);
+                i--;
+            } else {
+                books.set(k--, buffer[j--]);
+            }
+        }
+        while (j >= 0) {
+            books.set(k--, buffer[j--]);
+        }
+        Arrays.fill(buffer, 0, len2, null);
+    }
+
+    // Introsort - O(n log n) worst case
+    // Quick sort hardened for real catalogs: ninther/median-of-three pivots,
+    // three-way partitioning so runs of equal titles cost nothing, a loop on
+    // the larger side so the stack stays O(log n), heap sort once the depth
+    // limit is hit and insertion sort for small ranges.
+    private static final int INSERTION_SORT_CUTOFF = 16;
+    private static final int NINTHER_THRESHOLD = 128;
+
+    public static void introSort(List<Book> books, int low, int high) {
+        introSort(books, low, high, BY_TITLE);
+    }
+
+    public static void introSort(List<Book> books, int low, int high, Comparator<? super Book> cmp) {
+        if (low >= high) {
+            return;
+        }
+        int depthLimit = 2 * (31 - Integer.numberOfLeadingZeros(high - low + 1));
+        introSortLoop(books, low, high, depthLimit, cmp);
+    }
+
+    private static void introSortLoop(List<Book> books, int low, int high, int depthLimit, Comparator<? super Book> cmp) {
+        while (high - low + 1 > INSERTION_SORT_CUTOFF) {
+            if (depthLimit-- == 0) {
+                heapSort(books, low, high, cmp);
+                return;
+            }
+
+            Book pivot = books.get(choosePivot(books, low, high, cmp));
+
+            // Three-way partition: [low, lt) < pivot, [lt, gt] == pivot, (gt, high] > pivot
+            int lt = low, i = low, gt = high;
+            while (i <= gt) {
+                int c = cmp.compare(books.get(i), pivot);
+                if (c < 0) {
+                    swap(books, lt++, i++);
+                } else if (c > 0) {
+                    swap(books, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+
+            // Recurse into the smaller side, keep looping on the larger one
+            if (lt - low < high - gt) {
+                introSortLoop(books, low, lt - 1, depthLimit, cmp);
+                low = gt + 1;
+            } else {
+                introSortLoop(books, gt + 1, high, depthLimit, cmp);
+                high = lt - 1;
+            }
+        }
+        insertionSort(books, low, high, cmp);
+    }
+
+    private static int choosePivot(List<Book> books, int low, int high, Comparator<? super Book> cmp) {
+        int mid = low + (high - low) / 2;
+        if (high - low + 1 > NINTHER_THRESHOLD) {
+            // Tukey's ninther: median of three medians-of-three
+            int step = (high - low + 1) / 8;
+            int a = medianOfThree(books, low, low + step, low + 2 * step, cmp);
+            int b = medianOfThree(books, mid - step, mid, mid + step, cmp);
+            int c = medianOfThree(books, high - 2 * step, high - step, high, cmp);
+            return medianOfThree(books, a, b, c, cmp);
+        }
+        return medianOfThree(books, low, mid, high, cmp);
+    }
+
+    private static int medianOfThree(List<Book> books, int a, int b, int c, Comparator<? super Book> cmp) {
+        Book ba = books.get(a), bb = books.get(b), bc = books.get(c);
+        if (cmp.compare(ba, bb) < 0) {
+            if (cmp.compare(bb, bc) < 0) return b;
+            return cmp.compare(ba, bc) < 0 ? c : a;
+        }
+        if (cmp.compare(ba, bc) < 0) return a;
+        return cmp.compare(bb, bc) < 0 ? c : b;
+    }
+
+    private static void insertionSort(List<Book> books, int low, int high, Comparator<? super Book> cmp) {
+        for (int i = low + 1; i <= high; i++) {
+            Book key = books.get(i);
+            int j = i - 1;
+            while (j >= low && cmp.compare(books.get(j), key) > 0) {
+                books.set(j + 1, books.get(j));
+                j--;
+            }
+            books.set(j + 1, key);
+        }
+    }
+
+    // Heap Sort on books[low..high] - O(n log n), fallback for adversarial inputs
+    private static void heapSort(List<Book> books, int low, int high, Comparator<? super Book> cmp) {
+        int n = high - low + 1;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(books, low, i, n, cmp);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(books, low, low + end);
+            siftDown(books, low, 0, end, cmp);
+        }
+    }
+
+    private static void siftDown(List<Book> books, int base, int i, int n, Comparator<? super Book> cmp) {
+        Book item = books.get(base + i);
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && cmp.compare(books.get(base + child + 1), books.get(base + child)) > 0) {
+                child++;
+            }
+            if (cmp.compare(books.get(base + child), item) <= 0) {
+                break;
+            }
+            books.set(base + i, books.get(base + child));
+            i = child;
+        }
+        books.set(base + i, item);
+    }
+
+    private static void swap(List<Book> books, int i, int j) {
+        Book temp = books.get(i);
+        books.set(i, books.get(j));
+        books.set(j, temp);
+    }
+}
+
+// === KEY-BASED SORTING ===
+// Sortable Book fields. Text keys order like String.compareTo; numeric keys are
+// extracted as longs (price in cents, ISBN as its digits) so they can be radix sorted.
+enum BookKey {
+    TITLE(book -> book.title, null),
+    AUTHOR(book -> book.author, null),
+    PRICE(null, book -> Math.round(book.price * 100)),
+    QUANTITY(null, book -> book.quantity),
+    ISBN(null, book -> isbnDigits(book.isbn));
+
+    final java.util.function.Function<Book, String> text;
+    final java.util.function.ToLongFunction<Book> number;
+    private final Comparator<Book> comparator;
+
+    BookKey(java.util.function.Function<Book, String> text, java.util.function.ToLongFunction<Book> number) {
+        this.text = text;
+        this.number = number;
+        this.comparator = text != null ? Comparator.comparing(text) : Comparator.comparingLong(number);
+    }
+
+    public boolean isNumeric() {
+        return number != null;
+    }
+
+    public Comparator<Book> comparator() {
+        return comparator;
+    }
+
+    // Chains keys into one comparator, e.g. author then price
+    public static Comparator<Book> comparator(BookKey... keys) {
+        Comparator<Book> cmp = keys[0].comparator;
+        for (int i = 1; i < keys.length; i++) {
+            cmp = cmp.thenComparing(keys[i].comparator);
+        }
+        return cmp;
+    }
+
+    // "978-0-13-468599-1" -> 9780134685991; separators and check letters are skipped
+    static long isbnDigits(String isbn) {
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < isbn.length() && digits < 18; i++) {
+            char c = isbn.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+            }
+        }
+        return value;
+    }
+}
+
+// Sorts on keys computed once per element instead of re-reading fields inside
+// every comparison. Numeric keys go through an LSD radix sort on their 64-bit
+// value; text keys are packed four chars at a time into longs and radix sorted
+// most-significant chunk first, so no String is compared unless a group of
+// equal prefixes gets small. All paths are stable, which is what lets
+// multi-key sorts run one key at a time from the last key to the first.
+class KeyedSortingAlgorithms {
+    private static final int SMALL_GROUP = 32;
+    private static final int CHARS_PER_KEY = 4;
+
+    public static void sortBy(List<Book> books, BookKey... keys) {
+        int n = books.size();
+        if (n < 2 || keys.length == 0) {
+            return;
+        }
+        Book[] items = books.toArray(new Book[0]);
+        Book[] itemsTmp = new Book[n];
+        long[] sortKeys = new long[n];
+        long[] keysTmp = new long[n];
+        for (int k = keys.length - 1; k >= 0; k--) {
+            BookKey key = keys[k];
+            if (key.isNumeric()) {
+                for (int i = 0; i < n; i++) {
+                    // Flip the sign bit so signed order matches unsigned radix order
+                    sortKeys[i] = key.number.applyAsLong(items[i]) ^ Long.MIN_VALUE;
+                }
+                radixSort(items, sortKeys, 0, n, itemsTmp, keysTmp);
+            } else {
+                textSort(items, sortKeys, 0, n, key.text, 0, itemsTmp, keysTmp);
+            }
+        }
+        writeBack(books, items);
+    }
+
+    // LSD radix sort on any long-valued key - O(n) per non-trivial byte, no comparisons
+    public static void radixSort(List<Book> books, java.util.function.ToLongFunction<Book> key) {
+        int n = books.size();
+        if (n < 2) {
+            return;
+        }
+        Book[] items = books.toArray(new Book[0]);
+        long[] sortKeys = new long[n];
+        for (int i = 0; i < n; i++) {
+            sortKeys[i] = key.applyAsLong(items[i]) ^ Long.MIN_VALUE;
+        }
+        radixSort(items, sortKeys, 0, n, new Book[n], new long[n]);
+        writeBack(books, items);
+    }
+
+    // MSD sort on packed text keys - O(n * key length / 4) radix work
+    public static void textSort(List<Book> books, java.util.function.Function<Book, String> key) {
+        int n = books.size();
+        if (n < 2) {
+            return;
+        }
+        Book[] items = books.toArray(new Book[0]);
+        textSort(items, new long[n], 0, n, key, 0, new Book[n], new long[n]);
+        writeBack(books, items);
+    }
+
+    // Stable row order for a column of signed keys, e.g. a primitive price column
+    public static int[] sortedPermutation(long[] column, int n) {
+        if (n < 2) {
+            return n == 0 ? new int[0] : new int[] {0};
+        }
+        long[] keys = new long[n];
+        long[] keysTmp = new long[n];
+        int[] rows = new int[n];
+        int[] rowsTmp = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = column[i] ^ Long.MIN_VALUE;
+            rows[i] = i;
+        }
+        for (int shift = 0; shift < 64; shift += 8) {
+            int[] count = new int[257];
+            for (int i = 0; i < n; i++) {
+                count[((int) (keys[i] >>> shift) & 0xFF) + 1]++;
+            }
+            if (count[((int) (keys[0] >>> shift) & 0xFF) + 1] == n) {
+                continue;
+            }
+            for (int d = 0; d < 256; d++) {
+                count[d + 1] += count[d];
+            }
+            for (int i = 0; i < n; i++) {
+                int pos = count[(int) (keys[i] >>> shift) & 0xFF]++;
+                keysTmp[pos] = keys[i];
+                rowsTmp[pos] = rows[i];
+            }
+            long[] k = keys;
+            keys = keysTmp;
+            keysTmp = k;
+            int[] r = rows;
+            rows = rowsTmp;
+            rowsTmp = r;
+        }
+        return rows;
+    }
+
+    private static void writeBack(List<Book> books, Book[] items) {
+        ListIterator<Book> it = books.listIterator();
+        for (Book book : items) {
+            it.next();
+            it.set(book);
+        }
+    }
+
+    // Sorts items[lo, hi) by the unsigned value of keys[lo, hi), carrying the items along.
+    // Bytes on which every key agrees are skipped, so small price ranges take 2-3 passes.
+    private static void radixSort(Book[] items, long[] keys, int lo, int hi, Book[] itemsTmp, long[] keysTmp) {
+        int[][] counts = new int[8][256];
+        for (int i = lo; i < hi; i++) {
+            long k = keys[i];
+            for (int b = 0; b < 8; b++) {
+                counts[b][(int) (k >>> (b * 8)) & 0xFF]++;
+            }
+        }
+        int n = hi - lo;
+        for (int b = 0; b < 8; b++) {
+            int[] count = counts[b];
+            int shift = b * 8;
+            if (count[(int) (keys[lo] >>> shift) & 0xFF] == n) {
+                continue;
+            }
+            int sum = lo;
+            for (int d = 0; d < 256; d++) {
+                int c = count[d];
+                count[d] = sum;
+                sum += c;
+            }
+            for (int i = lo; i < hi; i++) {
+                int pos = count[(int) (keys[i] >>> shift) & 0xFF]++;
+                keysTmp[pos] = keys[i];
+                itemsTmp[pos] = items[i];
+            }
+            System.arraycopy(keysTmp, lo, keys, lo, n);
+            System.arraycopy(itemsTmp, lo, items, lo, n);
+        }
+        Arrays.fill(itemsTmp, lo, hi, null);
+    }
+
+    private static void textSort(Book[] items, long[] keys, int lo, int hi, java.util.function.Function<Book, String> text,
+                                 int offset, Book[] itemsTmp, long[] keysTmp) {
+        if (hi - lo <= SMALL_GROUP) {
+            // Strings here share their first offset chars, so a plain compare is exact
+            insertionSort(items, lo, hi, text);
+            return;
+        }
+        boolean longer = false;
+        for (int i = lo; i < hi; i++) {
+            String s = text.apply(items[i]);
+            keys[i] = pack(s, offset);
+            longer |= s.length() > offset + CHARS_PER_KEY;
+        }
+        radixSort(items, keys, lo, hi, itemsTmp, keysTmp);
+        if (!longer) {
+            // Only exact duplicates (or trailing NUL chars) can be left tied
+            refineTies(items, keys, lo, hi, text);
+            return;
+        }
+        // Groups that tie on this chunk are sorted on the next one
+        int i = lo;
+        while (i < hi) {
+            int j = i + 1;
+            while (j < hi && keys[j] == keys[i]) {
+                j++;
+            }
+            if (j - i > 1) {
+                textSort(items, keys, i, j, text, offset + CHARS_PER_KEY, itemsTmp, keysTmp);
+            }
+            i = j;
+        }
+    }
+
+    private static long pack(String s, int offset) {
+        long key = 0;
+        for (int c = 0; c < CHARS_PER_KEY; c++) {
+            int at = offset + c;
+            key = (key << 16) | (at < s.length() ? s.charAt(at) : 0);
+        }
+        return key;
+    }
+
+    private static void refineTies(Book[] items, long[] keys, int lo, int hi, java.util.function.Function<Book, String> text) {
+        int i = lo;
+        while (i < hi) {
+            int j = i + 1;
+            while (j < hi && keys[j] == keys[i]) {
+                j++;
+            }
+            if (j - i > 1) {
+                insertionSort(items, i, j, text);
+            }
+            i = j;
+        }
+    }
+
+    private static void insertionSort(Book[] items, int lo, int hi, java.util.function.Function<Book, String> text) {
+        for (int i = lo + 1; i < hi; i++) {
+            Book item = items[i];
+            String key = text.apply(item);
+            int j = i - 1;
+            while (j >= lo && text.apply(items[j]).compareTo(key) > 0) {
+                items[j + 1] = items[j];
+                j--;
+            }
+            items[j + 1] = item;
+        }
+    }
+}
+
+// === PARALLEL SORTING ===
+// Fork-join merge sort over a Book[] snapshot of the list. Halves are sorted in
+// parallel and merged in parallel by splitting the larger run at its midpoint
+// and binary-searching the matching split point in the other run. Ranges below
+// the threshold fall back to the sequential adaptive merge sort, and ties
+// always favour the left run, so the result is the same stable order as
+// mergeSort produces.
+class ParallelSortingAlgorithms {
+    public static final int DEFAULT_THRESHOLD = 8192;
+
+    public static void parallelMergeSort(List<Book> books) {
+        parallelMergeSort(books, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    // Runs on a dedicated pool with the requested parallelism level
+    public static void parallelMergeSort(List<Book> books, int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            parallelMergeSort(books, pool, DEFAULT_THRESHOLD);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void parallelMergeSort(List<Book> books, ForkJoinPool pool, int threshold) {
+        parallelMergeSort(books, pool, threshold, SortingAlgorithms.BY_TITLE);
+    }
+
+    public static void parallelMergeSort(List<Book> books, ForkJoinPool pool, int threshold,
+                                         Comparator<? super Book> cmp) {
+        int n = books.size();
+        if (n <= threshold || pool.getParallelism() == 1) {
+            SortingAlgorithms.adaptiveMergeSort(books, cmp);
+            return;
+        }
+        Book[] items = books.toArray(new Book[0]);
+        Book[] scratch = new Book[n];
+        pool.invoke(new SortTask(items, scratch, 0, n, false, Math.max(threshold, 2), cmp));
+        ListIterator<Book> it = books.listIterator();
+        for (Book book : items) {
+            it.next();
+            it.set(book);
+        }
+    }
+
+    // Sorts src[lo, hi); the result ends up in dst when intoDst is set, else in src
+    @SuppressWarnings("serial")
+    private static class SortTask extends RecursiveAction {
+        private final Book[] src, dst;
+        private final int lo, hi, threshold;
+        private final boolean intoDst;
+        private final Comparator<? super Book> cmp;
+
+        SortTask(Book[] src, Book[] dst, int lo, int hi, boolean intoDst, int threshold, Comparator<? super Book> cmp) {
+            this.src = src;
+            this.dst = dst;
+            this.lo = lo;
+            this.hi = hi;
+            this.intoDst = intoDst;
+            this.threshold = threshold;
+            this.cmp = cmp;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= threshold) {
+                SortingAlgorithms.adaptiveMergeSort(Arrays.asList(src).subList(lo, hi), cmp);
+                if (intoDst) {
+                    System.arraycopy(src, lo, dst, lo, hi - lo);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            // Children leave their halves in the opposite array, which we then merge from
+            invokeAll(new SortTask(src, dst, lo, mid, !intoDst, threshold, cmp),
+                    new SortTask(src, dst, mid, hi, !intoDst, threshold, cmp));
+            Book[] from = intoDst ? src : dst;
+            Book[] to = intoDst ? dst : src;
+            new MergeTask(from, lo, mid, mid, hi, to, lo, threshold, cmp).compute();
+        }
+    }
+
+    // Merges a[lo1, hi1) and a[lo2, hi2) into out starting at outLo
+    @SuppressWarnings("serial")
+    private static class MergeTask extends RecursiveAction {
+        private final Book[] a, out;
+        private final int lo1, hi1, lo2, hi2, outLo, threshold;
+        private final Comparator<? super Book> cmp;
+
+        MergeTask(Book[] a, int lo1, int hi1, int lo2, int hi2, Book[] out, int outLo, int threshold,
+                  Comparator<? super Book> cmp) {
+            this.a = a;
+            this.lo1 = lo1;
+            this.hi1 = hi1;
+            this.lo2 = lo2;
+            this.hi2 = hi2;
+            this.out = out;
+            this.outLo = outLo;
+            this.threshold = threshold;
+            this.cmp = cmp;
+        }
+
+        @Override
+        protected void compute() {
+            int n1 = hi1 - lo1, n2 = hi2 - lo2;
+            if (n1 + n2 <= threshold) {
+                int i = lo1, j = lo2, k = outLo;
+                while (i < hi1 && j < hi2) {
+                    out[k++] = cmp.compare(a[i], a[j]) <= 0 ? a[i++] : a[j++];
+                }
+                System.arraycopy(a, i, out, k, hi1 - i);
+                System.arraycopy(a, j, out, k + hi1 - i, hi2 - j);
+                return;
+            }
+            int split1, split2;
+            if (n1 >= n2) {
+                // Right elements equal to the pivot must stay after it: lower bound
+                split1 = (lo1 + hi1) >>> 1;
+                split2 = lowerBound(a, lo2, hi2, a[split1], cmp);
+                int pivotAt = outLo + (split1 - lo1) + (split2 - lo2);
+                out[pivotAt] = a[split1];
+                invokeAll(new MergeTask(a, lo1, split1, lo2, split2, out, outLo, threshold, cmp),
+                        new MergeTask(a, split1 + 1, hi1, split2, hi2, out, pivotAt + 1, threshold, cmp));
+            } else {
+                // Left elements equal to the pivot must stay before it: upper bound
+                split2 = (lo2 + hi2) >>> 1;
+                split1 = upperBound(a, lo1, hi1, a[split2], cmp);
+                int pivotAt = outLo + (split1 - lo1) + (split2 - lo2);
+                out[pivotAt] = a[split2];
+                invokeAll(new MergeTask(a, lo1, split1, lo2, split2, out, outLo, threshold, cmp),
+                        new MergeTask(a, split1, hi1, split2 + 1, hi2, out, pivotAt + 1, threshold, cmp));
+            }
+        }
+
+        private static int lowerBound(Book[] a, int lo, int hi, Book key, Comparator<? super Book> cmp) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cmp.compare(a[mid], key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private static int upperBound(Book[] a, int lo, int hi, Book key, Comparator<? super Book> cmp) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cmp.compare(a[mid], key) <= 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
+
+// === TOP-K SELECTION ===
+// The k smallest or largest elements without sorting everything. Every
+// method returns its k elements in order and breaks ties by list position,
+// so the result is exactly what a stable sort followed by subList(0, k)
+// would give.
+class TopK {
+
+    // Bounded max-heap of the best k seen so far - O(n log k), and an element
+    // that can't beat the current k-th costs a single comparison
+    public static <T> List<T> smallest(List<T> items, int k, Comparator<? super T> cmp) {
+        k = Math.min(k, items.size());
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        Object[] heap = new Object[k];
+        int[] positions = new int[k];
+        int size = 0;
+        int position = 0;
+        for (T item : items) {
+            if (size < k) {
+                heap[size] = item;
+                positions[size] = position;
+                siftUp(heap, positions, size++, cmp);
+            } else if (cmp.compare(item, cast(heap[0])) < 0) {
+                // Later positions lose ties, so only a strictly smaller item gets in
+                heap[0] = item;
+                positions[0] = position;
+                siftDown(heap, positions, k, cmp);
+            }
+            position++;
+        }
+        return drain(heap, positions, size, cmp);
+    }
+
+    public static <T> List<T> largest(List<T> items, int k, Comparator<? super T> cmp) {
+        return smallest(items, k, cmp.reversed());
+    }
+
+    // Same heap on a primitive key read once per element: no comparator calls
+    // or boxing in the scan
+    public static <T> List<T> smallestBy(List<T> items, int k, java.util.function.ToLongFunction<? super T> key) {
+        k = Math.min(k, items.size());
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        long[] keys = new long[k];
+        int[] positions = new int[k];
+        Object[] values = new Object[k];
+        int size = 0;
+        int position = 0;
+        for (T item : items) {
+            long value = key.applyAsLong(item);
+            if (size < k) {
+                keys[size] = value;
+                positions[size] = position;
+                values[size] = item;
+                size++;
+                for (int i = size - 1; i > 0 && after(keys, positions, i, (i - 1) / 2); i = (i - 1) / 2) {
+                    swap(keys, positions, values, i, (i - 1) / 2);
+                }
+            } else if (value < keys[0]) {
+                keys[0] = value;
+                positions[0] = position;
+                values[0] = item;
+                siftDown(keys, positions, values, k);
+            }
+            position++;
+        }
+        List<T> result = new ArrayList<>(Collections.nCopies(size, null));
+        for (int n = size; n > 0; n--) {
+            result.set(n - 1, cast(values[0]));
+            swap(keys, positions, values, 0, n - 1);
+            siftDown(keys, positions, values, n - 1);
+        }
+        return result;
+    }
+
+    // ~key reverses the order of every long without overflowing at MIN_VALUE
+    public static <T> List<T> largestBy(List<T> items, int k, java.util.function.ToLongFunction<? super T> key) {
+        return smallestBy(items, k, item -> ~key.applyAsLong(item));
+    }
+
+    public static List<Book> smallest(List<Book> books, int k, BookKey key) {
+        return key.isNumeric() ? smallestBy(books, k, key.number) : smallest(books, k, key.comparator());
+    }
+
+    public static List<Book> largest(List<Book> books, int k, BookKey key) {
+        return key.isNumeric() ? largestBy(books, k, key.number) : largest(books, k, key.comparator());
+    }
+
+    // Quickselect - O(n) expected. Partitions a copy of the list around random
+    // pivots until the k smallest occupy the front, then sorts just those k.
+    public static <T> List<T> select(List<T> items, int k, Comparator<? super T> cmp) {
+        int n = items.size();
+        k = Math.min(k, n);
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        Object[] a = items.toArray();
+        int[] positions = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = i;
+        }
+        Random rand = new Random(n);
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            int p = partition(a, positions, lo, hi, lo + rand.nextInt(hi - lo + 1), cmp);
+            if (p == k - 1) {
+                break;
+            } else if (p < k - 1) {
+                lo = p + 1;
+            } else {
+                hi = p - 1;
+            }
+        }
+        Integer[] front = new Integer[k];
+        for (int i = 0; i < k; i++) {
+            front[i] = i;
+        }
+        Arrays.sort(front, (x, y) -> x.equals(y) ? 0 : before(a[x], positions[x], a[y], positions[y], cmp) ? -1 : 1);
+        List<T> result = new ArrayList<>(k);
+        for (int i : front) {
+            result.add(cast(a[i]));
+        }
+        return result;
+    }
+
+    // Lomuto partition of [lo, hi]; returns the pivot's final index
+    private static <T> int partition(Object[] a, int[] positions, int lo, int hi, int pivot, Comparator<? super T> cmp) {
+        swap(a, positions, pivot, hi);
+        int store = lo;
+        for (int i = lo; i < hi; i++) {
+            if (before(a[i], positions[i], a[hi], positions[hi], cmp)) {
+                swap(a, positions, i, store++);
+            }
+        }
+        swap(a, positions, store, hi);
+        return store;
+    }
+
+    // Total order: by comparator, then by original list position
+    private static <T> boolean before(Object x, int xPosition, Object y, int yPosition, Comparator<? super T> cmp) {
+        int c = cmp.compare(cast(x), cast(y));
+        return c < 0 || (c == 0 && xPosition < yPosition);
+    }
+
+    private static <T> void siftUp(Object[] heap, int[] positions, int i, Comparator<? super T> cmp) {
+        while (i > 0 && before(heap[(i - 1) / 2], positions[(i - 1) / 2], heap[i], positions[i], cmp)) {
+            swap(heap, positions, i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private static <T> void siftDown(Object[] heap, int[] positions, int size, Comparator<? super T> cmp) {
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && before(heap[child], positions[child], heap[child + 1], positions[child + 1], cmp)) {
+                child++;
+            }
+            if (!before(heap[i], positions[i], heap[child], positions[child], cmp)) {
+                break;
+            }
+            swap(heap, positions, i, child);
+            i = child;
+        }
+    }
+
+    // Pops the max-heap from the back of the result to the front
+    private static <T> List<T> drain(Object[] heap, int[] positions, int size, Comparator<? super T> cmp) {
+        List<T> result = new ArrayList<>(Collections.nCopies(size, null));
+        for (int n = size; n > 0; n--) {
+            result.set(n - 1, cast(heap[0]));
+            swap(heap, positions, 0, n - 1);
+            siftDown(heap, positions, n - 1, cmp);
+        }
+        return result;
+    }
+
+    // True when slot i ranks after slot j (larger key, or equal key and later position)
+    private static boolean after(long[] keys, int[] positions, int i, int j) {
+        return keys[i] > keys[j] || (keys[i] == keys[j] && positions[i] > positions[j]);
+    }
+
+    private static void siftDown(long[] keys, int[] positions, Object[] values, int size) {
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && after(keys, positions, child + 1, child)) {
+                child++;
+            }
+            if (!after(keys, positions, child, i)) {
+                break;
+            }
+            swap(keys, positions, values, i, child);
+            i = child;
+        }
+    }
+
+    private static void swap(Object[] a, int[] positions, int i, int j) {
+        Object item = a[i];
+        a[i] = a[j];
+        a[j] = item;
+        int position = positions[i];
+        positions[i] = positions[j];
+        positions[j] = position;
+    }
+
+    private static void swap(long[] keys, int[] positions, Object[] values, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        swap(values, positions, i, j);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object item) {
+        return (T) item;
+    }
+}
+
+// Live ranking of keys by a score that moves both ways as orders stream in,
+// e.g. units sold per ISBN (cancellations subtract). Every key sits in an
+// indexed binary max-heap with its slot in a HashMap, so an update is
+// O(log n) and top(k) is O(k log k): a small frontier heap walks the big one
+// down from the root without touching the other entries. Equal scores rank
+// the key seen first ahead. Updates and reads are synchronized.
+class Leaderboard {
+    private String[] keys = new String[16];
+    private long[] scores = new long[16];
+    private int[] arrivals = new int[16];
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    private int size;
+
+    public synchronized void add(String key, long delta) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+                arrivals = Arrays.copyOf(arrivals, size * 2);
+            }
+            slot = size;
+            keys[slot] = key;
+            arrivals[slot] = size++;
+            slots.put(key, slot);
+        }
+        scores[slot] += delta;
+        siftDown(siftUp(slot));
+    }
+
+    public synchronized long score(String key) {
+        Integer slot = slots.get(key);
+        return slot == null ? 0 : scores[slot];
+    }
+
+    // Up to k keys with a positive score, best first
+    public synchronized List<String> top(int k) {
+        List<String> result = new ArrayList<>();
+        PriorityQueue<Integer> frontier = new PriorityQueue<>((a, b) -> ahead(a, b) ? -1 : 1);
+        if (size > 0) {
+            frontier.add(0);
+        }
+        while (!frontier.isEmpty() && result.size() < k) {
+            int slot = frontier.poll();
+            if (scores[slot] <= 0) {
+                break;
+            }
+            result.add(keys[slot]);
+            for (int child = 2 * slot + 1; child <= 2 * slot + 2 && child < size; child++) {
+                frontier.add(child);
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private boolean ahead(int a, int b) {
+        return scores[a] > scores[b] || (scores[a] == scores[b] && arrivals[a] < arrivals[b]);
+    }
+
+    // Returns the slot's new index
+    private int siftUp(int i) {
+        while (i > 0 && ahead(i, (i - 1) / 2)) {
+            swap(i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+        return i;
+    }
+
+    private void siftDown(int i) {
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && ahead(child + 1, child)) {
+                child++;
+            }
+            if (!ahead(child, i)) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+        int arrival = arrivals[i];
+        arrivals[i] = arrivals[j];
+        arrivals[j] = arrival;
+        slots.put(keys[i], i);
+        slots.put(keys[j], j);
+    }
+}
+
+// === SEARCHING ALGORITHMS ===
+class SearchingAlgorithms {
+
+    // Linear Search - O(n)
+    public static Order linearSearch(List<Order> orders, int orderId) {
+        for (Order order : orders) {
+            if (order.orderId == orderId) {
+                return order;
+            }
+        }
+        return null;
+    }
+
+    // Binary Search - O(log n)
+    public static Order binarySearch(List<Order> orders, int orderId) {
+        int left = 0;
+        int right = orders.size() - 1;
+
+        while (left <= right) {
+            int mid = left + (right - left) / 2;
+
+            if (orders.get(mid).orderId == orderId) {
+                return orders.get(mid);
+            }
+
+            if (orders.get(mid).orderId < orderId) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+
+        return null;
+    }
+}
+
+// Sorted order-id search structures, built once and kept current as ids
+// arrive. Each id carries an int payload (the app stores the order's position
+// in allOrders). The sorted arrays serve binary, interpolation and exponential
+// search. An Eytzinger copy - the ids laid out in breadth-first tree order, so
+// the first levels of every lookup share the same few cache lines - serves
+// branchless lookups. Ids are issued in increasing order, so adding one is
+// usually a plain append; the Eytzinger copy is rebuilt once the ids added
+// since the last rebuild exceed 1/8 of it, and until then they are searched
+// directly in the sorted arrays.
+class SortedIdIndex {
+    private int[] ids = new int[16];
+    private int[] payloads = new int[16];
+    private int size;
+
+    private int[] eytzIds = new int[1];
+    private int[] eytzPayloads = new int[1];
+    private int eytzSize;
+    // Sorted positions [unbuilt, size) may be missing from the Eytzinger copy
+    private int unbuilt;
+
+    // Add - O(1) amortized for increasing ids, O(n) for an out-of-order id
+    public void add(int id, int payload) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            payloads = Arrays.copyOf(payloads, size * 2);
+        }
+        if (size == 0 || id > ids[size - 1]) {
+            ids[size] = id;
+            payloads[size++] = payload;
+        } else {
+            int pos = lowerBound(id, 0, size);
+            if (ids[pos] == id) {
+                payloads[pos] = payload;
+                rebuild();
+                return;
+            }
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            System.arraycopy(payloads, pos, payloads, pos + 1, size - pos);
+            ids[pos] = id;
+            payloads[pos] = payload;
+            size++;
+            unbuilt = Math.min(unbuilt, pos);
+        }
+        if (size - unbuilt > Math.max(64, eytzSize >> 3)) {
+            rebuild();
+        }
+    }
+
+    public void rebuild() {
+        if (eytzIds.length < size + 1) {
+            eytzIds = new int[size + 1];
+            eytzPayloads = new int[size + 1];
+        }
+        eytzSize = size;
+        fill(1, 0);
+        unbuilt = size;
+    }
+
+    // In-order walk of the implicit tree assigns sorted positions to BFS slots
+    private int fill(int k, int next) {
+        if (k <= eytzSize) {
+            next = fill(2 * k, next);
+            eytzIds[k] = ids[next];
+            eytzPayloads[k] = payloads[next++];
+            next = fill(2 * k + 1, next);
+        }
+        return next;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Eytzinger search - O(log n), no data-dependent branches in the descent.
+    // Returns the payload, or -1 when the id is absent.
+    public int eytzingerSearch(int id) {
+        int[] tree = eytzIds;
+        int n = eytzSize;
+        int k = 1;
+        while (k <= n) {
+            k = 2 * k + (tree[k] < id ? 1 : 0);
+        }
+        // Undo the right turns taken after the last left turn to land on the lower bound
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        if (k != 0 && tree[k] == id) {
+            return eytzPayloads[k];
+        }
+        if (unbuilt < size && id >= ids[unbuilt]) {
+            int pos = lowerBound(id, unbuilt, size);
+            return pos < size && ids[pos] == id ? payloads[pos] : -1;
+        }
+        return -1;
+    }
+
+    // Binary search over the sorted array - O(log n)
+    public int binarySearch(int id) {
+        int pos = lowerBound(id, 0, size);
+        return pos < size && ids[pos] == id ? payloads[pos] : -1;
+    }
+
+    // Interpolation search - O(log log n) for near-uniform ids. Guesses the
+    // position from the id's value; after 32 guesses it falls back to binary
+    // search so skewed ids cannot degrade it to O(n).
+    public int interpolationSearch(int id) {
+        int lo = 0;
+        int hi = size - 1;
+        for (int probes = 0; lo <= hi && probes < 32; probes++) {
+            int low = ids[lo];
+            int high = ids[hi];
+            if (id < low || id > high) {
+                return -1;
+            }
+            if (high == low) {
+                return payloads[lo];
+            }
+            int pos = lo + (int) ((long) (id - low) * (hi - lo) / ((long) high - low));
+            int probe = ids[pos];
+            if (probe == id) {
+                return payloads[pos];
+            }
+            if (probe < id) {
+                lo = pos + 1;
+            } else {
+                hi = pos - 1;
+            }
+        }
+        int pos = lowerBound(id, lo, Math.max(lo, hi + 1));
+        return pos <= hi && ids[pos] == id ? payloads[pos] : -1;
+    }
+
+    // Exponential search from the newest id - O(log d) where d is the distance
+    // from the end, so lookups of recent orders touch only the tail
+    public int exponentialSearch(int id) {
+        if (size == 0 || id > ids[size - 1]) {
+            return -1;
+        }
+        int bound = 1;
+        while (bound < size && ids[size - bound] > id) {
+            bound *= 2;
+        }
+        int from = Math.max(0, size - bound);
+        int to = size - bound / 2;
+        int pos = lowerBound(id, from, to);
+        return pos < size && ids[pos] == id ? payloads[pos] : -1;
+    }
+
+    private int lowerBound(int id, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (ids[mid] < id) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    // Bytes held by the sorted and Eytzinger arrays
+    public long memoryBytes() {
+        return 4L * (ids.length + payloads.length + eytzIds.length + eytzPayloads.length) + 4 * 16;
+    }
+}
+
+// === CONCURRENT BOUNDED QUEUE ===
+// Multi-producer/multi-consumer ring buffer (Vyukov style): each slot carries a
+// sequence number, so producers and consumers only contend on one CAS each and
+// never take a lock. A full queue pushes back on producers instead of growing.
+class BoundedOrderQueue {
+    private final AtomicReferenceArray<Order> buffer;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+
+    public BoundedOrderQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        buffer = new AtomicReferenceArray<>(size);
+        sequence = new AtomicLongArray(size);
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    // Offer - O(1), returns false when the queue is full
+    public boolean offer(Order order) {
+        long pos = enqueuePos.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequence.get(index) - pos;
+            if (diff == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(index, order);
+                    sequence.set(index, pos + 1);
+                    return true;
+                }
+                pos = enqueuePos.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+    }
+
+    // Put - blocks the producer while the queue is full (backpressure)
+    public void put(Order order) throws InterruptedException {
+        int idle = 0;
+        while (!offer(order)) {
+            idle = Backoff.idle(idle);
+        }
+    }
+
+    // Poll - O(1), returns null when the queue is empty
+    public Order poll() {
+        long pos = dequeuePos.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequence.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    Order order = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequence.set(index, pos + mask + 1);
+                    return order;
+                }
+                pos = dequeuePos.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = dequeuePos.get();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Approximate while producers and consumers are active
+    public int size() {
+        return (int) Math.max(0, enqueuePos.get() - dequeuePos.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
+
+// Spin, then yield, then park: keeps latency low on a briefly empty/full
+// queue without burning a core when it stays that way
+class Backoff {
+    public static int idle(int attempt) throws InterruptedException {
+        if (attempt < 64) {
+            Thread.onSpinWait();
+        } else if (attempt < 128) {
+            Thread.yield();
+        } else {
+            java.util.concurrent.locks.LockSupport.parkNanos(50_000);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return attempt + 1;
+    }
+}
+
+// Creates platform threads, or virtual threads when the running JDK has them
+class WorkerThreads {
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    public static Thread create(String name, boolean virtual, Runnable task) {
+        if (virtual && virtualThreadsAvailable()) {
+            try {
+                // Thread.ofVirtual().name(name).unstarted(task), resolved reflectively
+                // so the code still compiles and runs on JDKs without Loom
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                builder = builderType.getMethod("name", String.class).invoke(builder, name);
+                return (Thread) builderType.getMethod("unstarted", Runnable.class).invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual thread", e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
+
+// === PARALLEL ORDER PROCESSING ENGINE ===
+// Producers submit orders into a BoundedOrderQueue and a fixed pool of workers
+// drains it in parallel, moving each order from "Processing" to "Completed".
+// The store's own pending queue stays on MyQueue/OrderScheduler: there orders
+// are completed one at a time on request and listed in processing order,
+// which a pool that completes everything it is handed cannot offer. The
+// engine is driven by the engine command.
+class OrderProcessingEngine {
+    interface OrderHandler {
+        void fulfill(Order order) throws Exception;
+    }
+
+    // Written only by the owning worker, read by anyone sizing the pool
+    static class WorkerStats {
+        final String name;
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+
+        WorkerStats(String name) {
+            this.name = name;
+        }
+    }
+
+    private final BoundedOrderQueue queue;
+    private final OrderHandler handler;
+    private final Thread[] workers;
+    private final WorkerStats[] stats;
+    private volatile boolean shuttingDown;
+    // Submits between their shuttingDown check and the end of their put;
+    // workers only exit once this is zero, so no accepted order is left behind
+    private final AtomicInteger submitting = new AtomicInteger();
+    private long startNanos;
+    private long stopNanos;
+
+    public OrderProcessingEngine(int workerCount, int queueCapacity, boolean virtualThreads, OrderHandler handler) {
+        this.queue = new BoundedOrderQueue(queueCapacity);
+        this.handler = handler;
+        this.workers = new Thread[workerCount];
+        this.stats = new WorkerStats[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            WorkerStats workerStats = new WorkerStats("worker-" + i);
+            stats[i] = workerStats;
+            workers[i] = WorkerThreads.create(workerStats.name, virtualThreads, () -> runWorker(workerStats));
+        }
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    // Submit - blocks while the queue is full
+    public void submit(Order order) throws InterruptedException {
+        submitting.incrementAndGet();
+        try {
+            if (shuttingDown) {
+                throw new IllegalStateException("Engine is shutting down");
+            }
+            queue.put(order);
+        } finally {
+            submitting.decrementAndGet();
+        }
+    }
+
+    public boolean trySubmit(Order order) {
+        submitting.incrementAndGet();
+        try {
+            return !shuttingDown && queue.offer(order);
+        } finally {
+            submitting.decrementAndGet();
+        }
+    }
+
+    // Stops accepting work, lets the workers drain the queue and waits for them
+    public void shutdownAndAwait() throws InterruptedException {
+        shuttingDown = true;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        stopNanos = System.nanoTime();
+    }
+
+    private void runWorker(WorkerStats workerStats) {
+        int idle = 0;
+        try {
+            while (true) {
+                Order order = queue.poll();
+                if (order == null) {
+                    // The counter is read before the queue: a submit that got
+                    // past shuttingDown has put its order by the time it leaves
+                    if (shuttingDown && submitting.get() == 0 && queue.isEmpty()) {
+                        return;
+                    }
+                    idle = Backoff.idle(idle);
+                    continue;
+                }
+                idle = 0;
+                long start = System.nanoTime();
+                try {
+                    handler.fulfill(order);
+                    if (order.transitionStatus(OrderStatus.PROCESSING, OrderStatus.COMPLETED)) {
+                        workerStats.processed.lazySet(workerStats.processed.get() + 1);
+                    } else {
+                        workerStats.skipped.lazySet(workerStats.skipped.get() + 1);
+                    }
+                } catch (Exception e) {
+                    System.err.println(workerStats.name + " failed on order #" + order.orderId + ": " + e);
+                    workerStats.skipped.lazySet(workerStats.skipped.get() + 1);
+                }
+                workerStats.busyNanos.lazySet(workerStats.busyNanos.get() + System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public WorkerStats[] workerStats() {
+        return stats;
+    }
+
+    public int queueCapacity() {
+        return queue.capacity();
+    }
+
+    public long totalProcessed() {
+        long total = 0;
+        for (WorkerStats workerStats : stats) {
+            total += workerStats.processed.get();
+        }
+        return total;
+    }
+
+    public void printReport() {
+        double seconds = ((stopNanos == 0 ? System.nanoTime() : stopNanos) - startNanos) / 1e9;
+        System.out.println("Worker     | Processed  | Skipped | Orders/sec   | Busy %");
+        System.out.println("-----------|------------|---------|--------------|-------");
+        for (WorkerStats w : stats) {
+            System.out.printf(Locale.ROOT, "%-10s | %10d | %7d | %12.0f | %5.1f%n", w.name, w.processed.get(),
+                    w.skipped.get(), w.processed.get() / seconds, 100.0 * w.busyNanos.get() / (seconds * 1e9));
+        }
+        System.out.printf(Locale.ROOT, "Total: %d orders in %.3f s (%.0f orders/sec)%n",
+                totalProcessed(), seconds, totalProcessed() / seconds);
+    }
+}
+
+// === INVENTORY RESERVATIONS ===
+// Stock is held in each catalog Book's quantity and updated with a CAS on that
+// one field, so contention is per title: checkouts of different ISBNs never
+// touch the same memory and a hot title never blocks the rest of the catalog.
+// Reserving takes units off the shelf immediately; committing makes that
+// final and releasing puts them back.
+class InventoryManager {
+    private static final AtomicIntegerFieldUpdater<Book> QUANTITY =
+            AtomicIntegerFieldUpdater.newUpdater(Book.class, "quantity");
+
+    private static final int OPEN = 0;
+    private static final int COMMITTED = 1;
+    private static final int RELEASED = 2;
+
+    class Reservation {
+        private final Book[] books;
+        private final int[] quantities;
+        private final AtomicInteger state = new AtomicInteger(OPEN);
+
+        Reservation(Book[] books, int[] quantities) {
+            this.books = books;
+            this.quantities = quantities;
+        }
+
+        // Commit - the reserved units are sold
+        public boolean commit() {
+            if (!state.compareAndSet(OPEN, COMMITTED)) {
+                return false;
+            }
+            for (int quantity : quantities) {
+                committedUnits.add(quantity);
+            }
+            return true;
+        }
+
+        // Release - the reserved units go back on the shelf
+        public boolean release() {
+            if (!state.compareAndSet(OPEN, RELEASED)) {
+                return false;
+            }
+            for (int i = 0; i < books.length; i++) {
+                QUANTITY.getAndAdd(books[i], quantities[i]);
+            }
+            return true;
+        }
+
+        public int lineCount() {
+            return books.length;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Book> byIsbn = new ConcurrentHashMap<>();
+    private final LongAdder committedUnits = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public InventoryManager(List<Book> catalog) {
+        for (Book book : catalog) {
+            addBook(book);
+        }
+    }
+
+    public void addBook(Book book) {
+        byIsbn.put(book.isbn, book);
+    }
+
+    public Book find(String isbn) {
+        return byIsbn.get(isbn);
+    }
+
+    public int available(String isbn) {
+        Book book = byIsbn.get(isbn);
+        return book == null ? 0 : book.quantity;
+    }
+
+    // Reserve a single line - returns null if the ISBN is unknown or short on stock
+    public Reservation reserve(String isbn, int quantity) {
+        return reserveAll(new String[] {isbn}, new int[] {quantity});
+    }
+
+    // Reserve every line or none of them. Lines are taken one CAS at a time and
+    // rolled back if a later line cannot be satisfied, so no lock is ever held
+    public Reservation reserveAll(String[] isbns, int[] quantities) {
+        Book[] books = new Book[isbns.length];
+        for (int i = 0; i < isbns.length; i++) {
+            books[i] = byIsbn.get(isbns[i]);
+            if (books[i] == null || quantities[i] <= 0) {
+                rejected.increment();
+                return null;
+            }
+        }
+        for (int i = 0; i < books.length; i++) {
+            if (!take(books[i], quantities[i])) {
+                for (int j = 0; j < i; j++) {
+                    QUANTITY.getAndAdd(books[j], quantities[j]);
+                }
+                rejected.increment();
+                return null;
+            }
+        }
+        return new Reservation(books, quantities.clone());
+    }
+
+    private static boolean take(Book book, int quantity) {
+        while (true) {
+            int current = book.quantity;
+            if (current < quantity) {
+                return false;
+            }
+            if (QUANTITY.compareAndSet(book, current, current - quantity)) {
+                return true;
+            }
+        }
+    }
+
+    // Puts previously sold units back, e.g. when a completed sale is cancelled
+    public void restock(String isbn, int quantity) {
+        Book book = byIsbn.get(isbn);
+        if (book != null) {
+            QUANTITY.getAndAdd(book, quantity);
+        }
+    }
+
+    public long committedUnits() {
+        return committedUnits.sum();
+    }
+
+    public long rejectedReservations() {
+        return rejected.sum();
+    }
+}
+
+// === COLUMNAR CATALOG ===
+// Maps repeated strings (titles, authors) to dense int ids
+class StringDictionary {
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<String> values = new ArrayList<>();
+
+    public int intern(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+        }
+        return id;
+    }
+
+    // Returns -1 when the value has never been interned
+    public int idOf(String value) {
+        Integer id = ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    public String get(int id) {
+        return values.get(id);
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
+
+// Struct-of-arrays catalog: one primitive array per field instead of one Book
+// object per SKU. Prices are stored in cents, titles and authors as dictionary
+// ids, and scans walk a single dense array so the JIT can unroll and vectorize
+// them. Quantity and price columns can optionally live off-heap in direct
+// buffers. Existing List<Book> code (Order.addBook, SortingAlgorithms) can use
+// the catalog through asBookList(), which materializes rows on demand.
+class ColumnarCatalog {
+    private final boolean offHeap;
+    private final StringDictionary titles = new StringDictionary();
+    private final StringDictionary authors = new StringDictionary();
+    private String[] isbns;
+    private int[] titleIds;
+    private int[] authorIds;
+    private int[] quantities;
+    private long[] priceCents;
+    private java.nio.IntBuffer offHeapQuantities;
+    private java.nio.LongBuffer offHeapPrices;
+    private int size;
+
+    public ColumnarCatalog(int initialCapacity, boolean offHeap) {
+        this.offHeap = offHeap;
+        int capacity = Math.max(16, initialCapacity);
+        isbns = new String[capacity];
+        titleIds = new int[capacity];
+        authorIds = new int[capacity];
+        if (offHeap) {
+            offHeapQuantities = allocateDirect(capacity * 4L).asIntBuffer();
+            offHeapPrices = allocateDirect(capacity * 8L).asLongBuffer();
+        } else {
+            quantities = new int[capacity];
+            priceCents = new long[capacity];
+        }
+    }
+
+    public static ColumnarCatalog fromBooks(List<Book> books, boolean offHeap) {
+        ColumnarCatalog catalog = new ColumnarCatalog(books.size(), offHeap);
+        for (Book book : books) {
+            catalog.add(book);
+        }
+        return catalog;
+    }
+
+    private static java.nio.ByteBuffer allocateDirect(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off-heap column too large: " + bytes + " bytes");
+        }
+        return java.nio.ByteBuffer.allocateDirect((int) bytes).order(java.nio.ByteOrder.nativeOrder());
+    }
+
+    // Add - O(1) amortized, returns the row id
+    public int add(Book book) {
+        if (size == isbns.length) {
+            grow(size * 2);
+        }
+        int row = size++;
+        isbns[row] = book.isbn;
+        titleIds[row] = titles.intern(book.title);
+        authorIds[row] = authors.intern(book.author);
+        setQuantity(row, book.quantity);
+        setPriceCents(row, Math.round(book.price * 100));
+        return row;
+    }
+
+    private void grow(int capacity) {
+        isbns = Arrays.copyOf(isbns, capacity);
+        titleIds = Arrays.copyOf(titleIds, capacity);
+        authorIds = Arrays.copyOf(authorIds, capacity);
+        if (offHeap) {
+            java.nio.IntBuffer q = allocateDirect(capacity * 4L).asIntBuffer();
+            java.nio.LongBuffer p = allocateDirect(capacity * 8L).asLongBuffer();
+            for (int i = 0; i < size; i++) {
+                q.put(i, offHeapQuantities.get(i));
+                p.put(i, offHeapPrices.get(i));
+            }
+            offHeapQuantities = q;
+            offHeapPrices = p;
+        } else {
+            quantities = Arrays.copyOf(quantities, capacity);
+            priceCents = Arrays.copyOf(priceCents, capacity);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String isbn(int row) {
+        return isbns[row];
+    }
+
+    public String title(int row) {
+        return titles.get(titleIds[row]);
+    }
+
+    public String author(int row) {
+        return authors.get(authorIds[row]);
+    }
+
+    public int quantity(int row) {
+        return offHeap ? offHeapQuantities.get(row) : quantities[row];
+    }
+
+    public void setQuantity(int row, int quantity) {
+        if (offHeap) {
+            offHeapQuantities.put(row, quantity);
+        } else {
+            quantities[row] = quantity;
+        }
+    }
+
+    public long priceCents(int row) {
+        return offHeap ? offHeapPrices.get(row) : priceCents[row];
+    }
+
+    public void setPriceCents(int row, long cents) {
+        if (offHeap) {
+            offHeapPrices.put(row, cents);
+        } else {
+            priceCents[row] = cents;
+        }
+    }
+
+    // Materializes one row as a Book for code that expects objects
+    public Book toBook(int row) {
+        return new Book(isbns[row], title(row), author(row), priceCents(row) / 100.0, quantity(row));
+    }
+
+    // List view over the rows: get() materializes a Book, set() writes the
+    // Book's fields back into that row, so in-place sorts work unchanged
+    public List<Book> asBookList() {
+        return new AbstractList<Book>() {
+            public Book get(int row) {
+                Objects.checkIndex(row, size);
+                return toBook(row);
+            }
+
+            public Book set(int row, Book book) {
+                Book previous = get(row);
+                isbns[row] = book.isbn;
+                titleIds[row] = titles.intern(book.title);
+                authorIds[row] = authors.intern(book.author);
+                setQuantity(row, book.quantity);
+                setPriceCents(row, Math.round(book.price * 100));
+                return previous;
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // Total stock value - O(n), one pass over two primitive columns
+    public long totalStockValueCents() {
+        long total = 0;
+        if (offHeap) {
+            for (int i = 0; i < size; i++) {
+                total += offHeapPrices.get(i) * offHeapQuantities.get(i);
+            }
+        } else {
+            long[] p = priceCents;
+            int[] q = quantities;
+            for (int i = 0; i < size; i++) {
+                total += p[i] * q[i];
+            }
+        }
+        return total;
+    }
+
+    // Books under a price - O(n), branch-free count
+    public int countUnderPrice(long maxCentsExclusive) {
+        int count = 0;
+        if (offHeap) {
+            for (int i = 0; i < size; i++) {
+                count += offHeapPrices.get(i) < maxCentsExclusive ? 1 : 0;
+            }
+        } else {
+            long[] p = priceCents;
+            for (int i = 0; i < size; i++) {
+                count += p[i] < maxCentsExclusive ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    public int[] rowsUnderPrice(long maxCentsExclusive) {
+        int[] rows = new int[countUnderPrice(maxCentsExclusive)];
+        int k = 0;
+        for (int i = 0; i < size && k < rows.length; i++) {
+            if (priceCents(i) < maxCentsExclusive) {
+                rows[k++] = i;
+            }
+        }
+        return rows;
+    }
+
+    public long totalUnits() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += quantity(i);
+        }
+        return total;
+    }
+
+    // Row ids ordered by a key, radix sorted straight off the columns with no Book objects
+    public int[] rowsSortedBy(BookKey key) {
+        long[] column = new long[size];
+        switch (key) {
+            case PRICE:
+                for (int i = 0; i < size; i++) column[i] = priceCents(i);
+                break;
+            case QUANTITY:
+                for (int i = 0; i < size; i++) column[i] = quantity(i);
+                break;
+            case ISBN:
+                for (int i = 0; i < size; i++) column[i] = BookKey.isbnDigits(isbns[i]);
+                break;
+            default:
+                // Rank each distinct string once, then sort rows by rank
+                StringDictionary dict = key == BookKey.TITLE ? titles : authors;
+                int[] ids = key == BookKey.TITLE ? titleIds : authorIds;
+                Integer[] order = new Integer[dict.size()];
+                for (int i = 0; i < order.length; i++) order[i] = i;
+                Arrays.sort(order, (a, b) -> dict.get(a).compareTo(dict.get(b)));
+                int[] rank = new int[order.length];
+                for (int i = 0; i < order.length; i++) rank[order[i]] = i;
+                for (int i = 0; i < size; i++) column[i] = rank[ids[i]];
+        }
+        return KeyedSortingAlgorithms.sortedPermutation(column, size);
+    }
+
+    // Bytes held by the columns (string contents counted once per distinct value)
+    public long memoryBytes() {
+        long bytes = (long) isbns.length * (MemoryLayout.referenceSize() + 4 + 4) + 3 * 16L;
+        bytes += (long) isbns.length * (4 + 8);
+        for (int i = 0; i < size; i++) {
+            bytes += 40 + isbns[i].length();
+        }
+        for (int i = 0; i < titles.size(); i++) {
+            bytes += 40 + titles.get(i).length() + 48;
+        }
+        for (int i = 0; i < authors.size(); i++) {
+            bytes += 40 + authors.get(i).length() + 48;
+        }
+        return bytes;
+    }
+}
+
+// === CATALOG SEARCH ===
+// Full-text index over catalog titles and authors. Text is split into
+// lowercase letter/digit tokens; each token maps to posting lists of dense
+// book numbers (in insertion order, so every list is sorted), one list per
+// combination of fields the token appeared in. Queries AND their words
+// together and rank matches by idf-weighted field hits, title hits counting
+// double. The last query word is treated as a prefix unless followed by a
+// space, matching every indexed word under it in the term trie. Prefixes of
+// up to SHORT_PREFIX letters - what autocomplete sends first - cover
+// thousands of words, too many to rank one list at a time, so each keeps
+// one merged posting list of every book with a word under it, scored as if
+// the prefix were a single (common) term; an exact match on the prefix
+// still ranks with its own, higher score.
+// Every posting list carries a single score for its term, so a query is
+// answered by intersecting one list per word in best-first order of their
+// summed scores, stopping as soon as no remaining combination can displace
+// the top k - common words never have to be scanned in full. Books are
+// indexed as they are added; the catalog only grows, so nothing is removed.
+class CatalogSearchIndex {
+    static final int TITLE = 1;
+    static final int AUTHOR = 2;
+    private static final double TITLE_WEIGHT = 2.0;
+    private static final double AUTHOR_WEIGHT = 1.0;
+    static final int SHORT_PREFIX = 2;
+
+    static final class Postings {
+        final String term;
+        // Sorted books indexed by field mask: TITLE, AUTHOR or TITLE | AUTHOR
+        final int[][] docs = new int[4][];
+        final int[] sizes = new int[4];
+        int size;
+
+        Postings(String term) {
+            this.term = term;
+        }
+
+        void add(int doc, int fields) {
+            if (docs[fields] == null) {
+                docs[fields] = new int[2];
+            } else if (sizes[fields] == docs[fields].length) {
+                docs[fields] = Arrays.copyOf(docs[fields], sizes[fields] * 2);
+            }
+            docs[fields][sizes[fields]++] = doc;
+            size++;
+        }
+    }
+
+    // One query word: posting lists that may satisfy it, best score first
+    private static final class Clause {
+        final int[][] docs;
+        final int[] sizes;
+        final double[] scores;
+
+        Clause(int[][] docs, int[] sizes, double[] scores) {
+            this.docs = docs;
+            this.sizes = sizes;
+            this.scores = scores;
+        }
+    }
+
+    // A choice of one list per clause; successors only advance clauses at or
+    // after `last`, so each combination is generated exactly once
+    private static final class Combination {
+        final int[] choice;
+        final int last;
+        final double score;
+
+        Combination(int[] choice, int last, double score) {
+            this.choice = choice;
+            this.last = last;
+            this.score = score;
+        }
+    }
+
+    private final ArrayList<Book> books = new ArrayList<>();
+    private final HashMap<String, Postings> terms = new HashMap<>();
+    // Merged postings for every prefix of at most SHORT_PREFIX letters
+    private final HashMap<String, Postings> shortPrefixes = new HashMap<>();
+    private final CompletionTrie completions = new CompletionTrie();
+
+    // Add - O(tokens in title and author) and SHORT_PREFIX merged lists per token
+    public void add(Book book) {
+        int doc = books.size();
+        books.add(book);
+        HashMap<String, Integer> fields = new HashMap<>();
+        for (String token : tokenize(book.title)) {
+            fields.merge(token, TITLE, (a, b) -> a | b);
+        }
+        for (String token : tokenize(book.author)) {
+            fields.merge(token, AUTHOR, (a, b) -> a | b);
+        }
+        for (Map.Entry<String, Integer> entry : fields.entrySet()) {
+            Postings postings = terms.computeIfAbsent(entry.getKey(), Postings::new);
+            postings.add(doc, entry.getValue());
+            completions.increment(postings.term, postings.size);
+        }
+        HashMap<String, Integer> prefixFields = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : fields.entrySet()) {
+            String token = entry.getKey();
+            for (int length = 1; length <= Math.min(SHORT_PREFIX, token.length()); length++) {
+                prefixFields.merge(token.substring(0, length), entry.getValue(), (a, b) -> a | b);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : prefixFields.entrySet()) {
+            shortPrefixes.computeIfAbsent(entry.getKey(), Postings::new).add(doc, entry.getValue());
+        }
+    }
+
+    // Up to k best matches, best first; ties go to the book added first
+    public List<Book> search(String query, int k) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty() || k <= 0) {
+            return new ArrayList<>();
+        }
+        boolean lastIsPrefix = !Character.isWhitespace(query.charAt(query.length() - 1));
+        Clause[] clauses = new Clause[words.size()];
+        for (int i = 0; i < clauses.length; i++) {
+            String word = words.get(i);
+            clauses[i] = clause(i == clauses.length - 1 && lastIsPrefix ? prefixTerms(word) : exactTerms(word));
+            if (clauses[i].sizes.length == 0) {
+                return new ArrayList<>();
+            }
+        }
+
+        Ranking ranking = new Ranking(k);
+        IntIntHashMap seen = new IntIntHashMap(4 * k);
+        PriorityQueue<Combination> pending = new PriorityQueue<>((a, b) -> Double.compare(b.score, a.score));
+        pending.add(new Combination(new int[clauses.length], 0, score(clauses, new int[clauses.length])));
+        while (!pending.isEmpty()) {
+            Combination combination = pending.poll();
+            if (ranking.isFull() && combination.score < ranking.worstScore()) {
+                break;
+            }
+            intersect(clauses, combination, ranking, seen);
+            for (int c = combination.last; c < clauses.length; c++) {
+                if (combination.choice[c] + 1 < clauses[c].sizes.length) {
+                    int[] choice = combination.choice.clone();
+                    choice[c]++;
+                    pending.add(new Combination(choice, c, score(clauses, choice)));
+                }
+            }
+        }
+
+        List<Book> result = new ArrayList<>();
+        for (int doc : ranking.drain()) {
+            result.add(books.get(doc));
+        }
+        return result;
+    }
+
+    // Most frequent indexed words starting with the prefix, at most
+    // CompletionTrie.TOP_K of them
+    public List<String> complete(String prefix, int k) {
+        List<String> words = tokenize(prefix);
+        if (words.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return completions.top(words.get(words.size() - 1), k);
+    }
+
+    public int size() {
+        return books.size();
+    }
+
+    public int termCount() {
+        return terms.size();
+    }
+
+    // Lowercase runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    private List<Postings> exactTerms(String word) {
+        List<Postings> matches = new ArrayList<>();
+        Postings postings = terms.get(word);
+        if (postings != null) {
+            matches.add(postings);
+        }
+        return matches;
+    }
+
+    // Every word with the prefix, not just the top completions, so no match is
+    // missed; a short prefix reads its merged list instead of every word's own
+    private List<Postings> prefixTerms(String prefix) {
+        if (prefix.length() <= SHORT_PREFIX) {
+            List<Postings> matches = exactTerms(prefix);
+            Postings merged = shortPrefixes.get(prefix);
+            if (merged != null) {
+                matches.add(merged);
+            }
+            return matches;
+        }
+        List<Postings> matches = new ArrayList<>();
+        for (String term : completions.words(prefix)) {
+            matches.add(terms.get(term));
+        }
+        return matches;
+    }
+
+    private Clause clause(List<Postings> matches) {
+        List<int[]> docs = new ArrayList<>();
+        List<double[]> ranked = new ArrayList<>();
+        for (Postings postings : matches) {
+            double idf = Math.log(1 + (double) books.size() / postings.size);
+            for (int fields = TITLE; fields <= (TITLE | AUTHOR); fields++) {
+                if (postings.sizes[fields] > 0) {
+                    double weight = ((fields & TITLE) != 0 ? TITLE_WEIGHT : 0) + ((fields & AUTHOR) != 0 ? AUTHOR_WEIGHT : 0);
+                    ranked.add(new double[] {weight * idf, postings.sizes[fields], docs.size()});
+                    docs.add(postings.docs[fields]);
+                }
+            }
+        }
+        ranked.sort((a, b) -> Double.compare(b[0], a[0]));
+        Clause clause = new Clause(new int[ranked.size()][], new int[ranked.size()], new double[ranked.size()]);
+        for (int i = 0; i < ranked.size(); i++) {
+            clause.scores[i] = ranked.get(i)[0];
+            clause.sizes[i] = (int) ranked.get(i)[1];
+            clause.docs[i] = docs.get((int) ranked.get(i)[2]);
+        }
+        return clause;
+    }
+
+    private static double score(Clause[] clauses, int[] choice) {
+        double score = 0;
+        for (int c = 0; c < clauses.length; c++) {
+            score += clauses[c].scores[choice[c]];
+        }
+        return score;
+    }
+
+    // Ranks the books in every chosen list. A book reached through an earlier
+    // combination already holds its best score and is skipped. All books here
+    // share one score and arrive in increasing order, so the first that the
+    // ranking rejects ends the combination.
+    private static void intersect(Clause[] clauses, Combination combination, Ranking ranking, IntIntHashMap seen) {
+        int n = clauses.length;
+        int[][] lists = new int[n][];
+        int[] sizes = new int[n];
+        for (int c = 0; c < n; c++) {
+            lists[c] = clauses[c].docs[combination.choice[c]];
+            sizes[c] = clauses[c].sizes[combination.choice[c]];
+        }
+        // Drive from the shortest list, galloping through the others
+        int driver = 0;
+        for (int c = 1; c < n; c++) {
+            if (sizes[c] < sizes[driver]) {
+                driver = c;
+            }
+        }
+        int[] cursors = new int[n];
+        for (int i = 0; i < sizes[driver]; i++) {
+            int doc = lists[driver][i];
+            if (!ranking.admits(combination.score, doc)) {
+                return;
+            }
+            boolean inAll = true;
+            for (int c = 0; c < n && inAll; c++) {
+                if (c == driver) {
+                    continue;
+                }
+                cursors[c] = gallop(lists[c], cursors[c], sizes[c], doc);
+                if (cursors[c] == sizes[c]) {
+                    return;
+                }
+                inAll = lists[c][cursors[c]] == doc;
+            }
+            if (inAll && !seen.containsKey(doc)) {
+                seen.put(doc, 1);
+                ranking.offer(combination.score, doc);
+            }
+        }
+    }
+
+    // First position in [from, size) holding a value >= target
+    private static int gallop(int[] docs, int from, int size, int target) {
+        int step = 1;
+        int lo = from;
+        int hi = from;
+        while (hi < size && docs[hi] < target) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, size);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (docs[mid] < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Bounded min-heap of the k best (score, book) pairs; the root is the worst
+    private static final class Ranking {
+        private final double[] scores;
+        private final int[] docs;
+        private int size;
+
+        Ranking(int k) {
+            scores = new double[k];
+            docs = new int[k];
+        }
+
+        boolean isFull() {
+            return size == scores.length;
+        }
+
+        double worstScore() {
+            return scores[0];
+        }
+
+        boolean admits(double score, int doc) {
+            return size < scores.length || worse(scores[0], docs[0], score, doc);
+        }
+
+        void offer(double score, int doc) {
+            if (size < scores.length) {
+                scores[size] = score;
+                docs[size] = doc;
+                siftUp(size++);
+            } else if (worse(scores[0], docs[0], score, doc)) {
+                scores[0] = score;
+                docs[0] = doc;
+                siftDown(size);
+            }
+        }
+
+        // Books best first; empties the ranking
+        int[] drain() {
+            int[] ranked = new int[size];
+            for (int i = size - 1; i >= 0; i--) {
+                ranked[i] = docs[0];
+                swap(0, i);
+                siftDown(i);
+            }
+            size = 0;
+            return ranked;
+        }
+
+        // Lower score is worse; on equal scores the later-added book is worse
+        private static boolean worse(double scoreA, int docA, double scoreB, int docB) {
+            return scoreA < scoreB || (scoreA == scoreB && docA > docB);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!worse(scores[i], docs[i], scores[parent], docs[parent])) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int limit) {
+            int i = 0;
+            while (2 * i + 1 < limit) {
+                int child = 2 * i + 1;
+                if (child + 1 < limit && worse(scores[child + 1], docs[child + 1], scores[child], docs[child])) {
+                    child++;
+                }
+                if (!worse(scores[child], docs[child], scores[i], docs[i])) {
+                    break;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+            int doc = docs[i];
+            docs[i] = docs[j];
+            docs[j] = doc;
+        }
+    }
+}
+
+// Compressed (radix) trie over indexed words for autocomplete. Chains of
+// single-child nodes are merged into one edge label, and every node caches
+// the TOP_K most frequent words below it, so a completion lookup is a walk
+// down the prefix followed by reading one small array. Word frequencies only
+// ever grow, which is what lets the caches be maintained on the insert path:
+// a word outside a node's cache can only enter it by overtaking the last
+// entry. Nodes that end a word are marked, so words() can list all of them.
+class CompletionTrie {
+    static final int TOP_K = 8;
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    static final class Node {
+        String label;
+        Node[] children = NO_CHILDREN;
+        boolean word;
+        String[] top;
+        int[] topCounts;
+        int topSize;
+
+        Node(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Node root = new Node("");
+    private int nodes = 1;
+
+    // Records that word now occurs in count books
+    public void increment(String word, int count) {
+        Node node = root;
+        int i = 0;
+        while (true) {
+            offer(node, word, count);
+            if (i == word.length()) {
+                node.word = true;
+                return;
+            }
+            int slot = childSlot(node, word.charAt(i));
+            if (slot < 0) {
+                Node leaf = new Node(word.substring(i));
+                leaf.word = true;
+                offer(leaf, word, count);
+                insertChild(node, -slot - 1, leaf);
+                nodes++;
+                return;
+            }
+            Node child = node.children[slot];
+            int common = 0;
+            while (common < child.label.length() && i + common < word.length()
+                    && child.label.charAt(common) == word.charAt(i + common)) {
+                common++;
+            }
+            if (common < child.label.length()) {
+                // Split the edge; the new middle node covers the same words
+                Node middle = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                middle.children = new Node[] {child};
+                middle.top = child.top.clone();
+                middle.topCounts = child.topCounts.clone();
+                middle.topSize = child.topSize;
+                node.children[slot] = middle;
+                nodes++;
+                child = middle;
+            }
+            node = child;
+            i += common;
+        }
+    }
+
+    // Most frequent words starting with prefix, best first
+    public List<String> top(String prefix, int k) {
+        List<String> result = new ArrayList<>();
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            int slot = childSlot(node, prefix.charAt(i));
+            if (slot < 0) {
+                return result;
+            }
+            node = node.children[slot];
+            int length = Math.min(node.label.length(), prefix.length() - i);
+            if (!node.label.regionMatches(0, prefix, i, length)) {
+                return result;
+            }
+            i += length;
+        }
+        for (int j = 0; j < Math.min(k, node.topSize); j++) {
+            result.add(node.top[j]);
+        }
+        return result;
+    }
+
+    // Every word starting with prefix, in lexicographic order
+    public List<String> words(String prefix) {
+        List<String> result = new ArrayList<>();
+        StringBuilder path = new StringBuilder();
+        Node node = root;
+        while (path.length() < prefix.length()) {
+            int slot = childSlot(node, prefix.charAt(path.length()));
+            if (slot < 0) {
+                return result;
+            }
+            node = node.children[slot];
+            int length = Math.min(node.label.length(), prefix.length() - path.length());
+            if (!node.label.regionMatches(0, prefix, path.length(), length)) {
+                return result;
+            }
+            path.append(node.label);
+        }
+        collect(node, path, result);
+        return result;
+    }
+
+    public int nodeCount() {
+        return nodes;
+    }
+
+    private static void collect(Node node, StringBuilder path, List<String> result) {
+        if (node.word) {
+            result.add(path.toString());
+        }
+        for (Node child : node.children) {
+            int length = path.length();
+            path.append(child.label);
+            collect(child, path, result);
+            path.setLength(length);
+        }
+    }
+
+    // Children are kept sorted by first character; returns -(insertion point) - 1 when absent
+    private static int childSlot(Node node, char c) {
+        int lo = 0;
+        int hi = node.children.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char first = node.children[mid].label.charAt(0);
+            if (first < c) {
+                lo = mid + 1;
+            } else if (first > c) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -lo - 1;
+    }
+
+    private static void insertChild(Node node, int at, Node child) {
+        Node[] children = new Node[node.children.length + 1];
+        System.arraycopy(node.children, 0, children, 0, at);
+        children[at] = child;
+        System.arraycopy(node.children, at, children, at + 1, node.children.length - at);
+        node.children = children;
+    }
+
+    private static void offer(Node node, String word, int count) {
+        if (node.top == null) {
+            node.top = new String[TOP_K];
+            node.topCounts = new int[TOP_K];
+        }
+        int i = 0;
+        while (i < node.topSize && !node.top[i].equals(word)) {
+            i++;
+        }
+        if (i == node.topSize) {
+            if (node.topSize < TOP_K) {
+                node.topSize++;
+            } else if (count > node.topCounts[TOP_K - 1]) {
+                i = TOP_K - 1;
+            } else {
+                return;
+            }
+        }
+        node.top[i] = word;
+        node.topCounts[i] = count;
+        while (i > 0 && node.topCounts[i - 1] < count) {
+            node.topCounts[i] = node.topCounts[i - 1];
+            node.top[i] = node.top[i - 1];
+            node.topCounts[i - 1] = count;
+            node.top[i - 1] = word;
+            i--;
+        }
+    }
+}
+
+// === WRITE-AHEAD LOG ===
+// Append-only binary log of order creations and status changes, split into
+// segment files (orders-00000000.wal, ...). Each record is
+// [int payload length][int CRC32C][payload]; recovery replays every intact
+// record and truncates a torn tail left by a crash mid-write.
+// With GROUP durability appenders never fsync themselves: they queue their
+// record and wait, while one flusher thread writes everything queued since
+// the last flush and forces it with a single fsync for the whole batch.
+class OrderLog implements AutoCloseable {
+    static final byte CREATE = 1;
+    static final byte STATUS = 2;
+    static final byte SHIPPING = 3;
+    static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    private static final int HEADER_BYTES = 8;
+
+    // NONE: written to the page cache only; PER_RECORD: one fsync per append;
+    // GROUP: appenders share fsyncs through the flusher thread
+    enum Durability { NONE, PER_RECORD, GROUP }
+
+    // Receives every intact record in log order during recovery
+    interface Replayer {
+        void created(Order order, boolean stockReserved);
+
+        void statusChanged(int orderId, OrderStatus status);
+
+        default void shippingChanged(int orderId, ShippingClass shipping) {
+        }
+    }
+
+    static final Replayer DISCARD = new Replayer() {
+        public void created(Order order, boolean stockReserved) {
+        }
+
+        public void statusChanged(int orderId, OrderStatus status) {
+        }
+    };
+
+    private final Path dir;
+    private final Durability durability;
+    private final long segmentBytes;
+    private final Object lock = new Object();
+    private final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(512));
+    private FileChannel channel;
+    private long segmentIndex;
+    private long segmentPosition;
+
+    // Group commit state, guarded by lock
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer flushing = ByteBuffer.allocate(1 << 16);
+    private long appendedRecords;
+    private long durableRecords;
+    private IOException failure;
+    private boolean closed;
+    private Thread flusher;
+
+    private long replayedRecords;
+    private long truncatedBytes;
+    private final LongAdder fsyncs = new LongAdder();
+
+    private OrderLog(Path dir, Durability durability, long segmentBytes) {
+        this.dir = dir;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Replays every segment in dir through the replayer, then opens the log for appending
+    public static OrderLog open(Path dir, Durability durability, Replayer replayer) throws IOException {
+        return open(dir, durability, 0, replayer);
+    }
+
+    // Segments before firstSegment are already covered by a snapshot; any
+    // left behind by a crash before compaction are deleted, not replayed
+    public static OrderLog open(Path dir, Durability durability, long firstSegment, Replayer replayer)
+            throws IOException {
+        return open(dir, durability, firstSegment, DEFAULT_SEGMENT_BYTES, replayer);
+    }
+
+    public static OrderLog open(Path dir, Durability durability, long firstSegment, long segmentBytes,
+                                Replayer replayer) throws IOException {
+        Files.createDirectories(dir);
+        OrderLog log = new OrderLog(dir, durability, segmentBytes);
+        log.deleteSegmentsBefore(firstSegment);
+        List<Long> segments = log.listSegments();
+        long validEnd = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            validEnd = log.replaySegment(segments.get(i), i == segments.size() - 1, replayer);
+        }
+        if (segments.isEmpty()) {
+            log.openSegment(firstSegment, 0);
+        } else {
+            log.openSegment(segments.get(segments.size() - 1), validEnd);
+        }
+        if (durability == Durability.GROUP) {
+            log.flusher = new Thread(log::flushLoop, "order-log-flusher");
+            log.flusher.setDaemon(true);
+            log.flusher.start();
+        }
+        return log;
+    }
+
+    private Path segmentPath(long index) {
+        return dir.resolve(String.format("orders-%08d.wal", index));
+    }
+
+    List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "orders-*.wal")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(7, name.length() - 4)));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    // Returns the offset just past the last intact record
+    private long replaySegment(long index, boolean last, Replayer replayer) throws IOException {
+        Path path = segmentPath(index);
+        ByteBuffer data;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            data = ByteBuffer.allocate((int) in.size());
+            while (data.hasRemaining() && in.read(data) >= 0) {
+            }
+            data.flip();
+        }
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        while (data.remaining() >= HEADER_BYTES) {
+            int start = data.position();
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                data.position(start);
+                break;
+            }
+            ByteBuffer payload = data.slice();
+            payload.limit(length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                data.position(start);
+                break;
+            }
+            decode(payload, replayer);
+            data.position(start + HEADER_BYTES + length);
+            replayedRecords++;
+        }
+        long validEnd = data.position();
+        if (validEnd < data.limit()) {
+            if (!last) {
+                throw new IOException("Corrupt record in " + path + " at offset " + validEnd);
+            }
+            truncatedBytes = data.limit() - validEnd;
+        }
+        return validEnd;
+    }
+
+    private static void decode(ByteBuffer in, Replayer replayer) {
+        byte type = in.get();
+        if (type == CREATE) {
+            int orderId = in.getInt();
+            long date = in.getLong();
+            boolean stockReserved = in.get() != 0;
+            Order order = new Order(orderId, getString(in), getString(in));
+            order.orderMillis = date;
+            order.status = OrderStatus.of(getString(in));
+            int books = in.getInt();
+            for (int i = 0; i < books; i++) {
+                String isbn = getString(in);
+                String title = getString(in);
+                String author = getString(in);
+                double price = in.getDouble();
+                order.addBook(new Book(isbn, title, author, price, 0), in.getInt());
+            }
+            order.stockReserved = stockReserved;
+            // Trailing fields were added later; records written before them end here
+            if (in.hasRemaining()) {
+                order.shipping = ShippingClass.values()[in.get()];
+            }
+            replayer.created(order, stockReserved);
+        } else if (type == STATUS) {
+            int orderId = in.getInt();
+            replayer.statusChanged(orderId, OrderStatus.of(getString(in)));
+        } else if (type == SHIPPING) {
+            int orderId = in.getInt();
+            replayer.shippingChanged(orderId, ShippingClass.values()[in.get()]);
+        } else {
+            throw new IllegalStateException("Unknown order log record type " + type);
+        }
+    }
+
+    // Log compaction: drops segments whose records a snapshot already holds
+    public void deleteSegmentsBefore(long index) throws IOException {
+        for (long segment : listSegments()) {
+            if (segment < index) {
+                Files.delete(segmentPath(segment));
+            }
+        }
+    }
+
+    // Starts a new segment once everything appended so far is on disk and
+    // returns its index. Records before the cut are all in older segments,
+    // which is the boundary a snapshot taken right now covers.
+    public long rollSegment() throws IOException {
+        synchronized (lock) {
+            while (durableRecords < appendedRecords && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for order log flush", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            channel.force(false);
+            openSegment(segmentIndex + 1, 0);
+            return segmentIndex;
+        }
+    }
+
+    private void openSegment(long index, long position) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(position);
+        channel.position(position);
+        segmentIndex = index;
+        segmentPosition = position;
+    }
+
+    // Append the creation of an order; returns once the record is durable
+    public void appendCreate(Order order, boolean stockReserved) {
+        ByteBuffer out = begin(CREATE);
+        out = ensure(out, 32);
+        out.putInt(order.orderId).putLong(order.orderMillis).put((byte) (stockReserved ? 1 : 0));
+        out = putString(out, order.customerName);
+        out = putString(out, order.shippingAddress);
+        out = putString(out, order.status.label);
+        out = ensure(out, 4);
+        out.putInt(order.lineCount());
+        for (int i = 0; i < order.lineCount(); i++) {
+            Book book = order.lineBook(i);
+            out = putString(out, book.isbn);
+            out = putString(out, book.title);
+            out = putString(out, book.author);
+            out = ensure(out, 12);
+            out.putDouble(order.linePriceCents(i) / 100.0).putInt(order.lineQuantity(i));
+        }
+        out = ensure(out, 1);
+        append(out.put((byte) order.shipping.ordinal()));
+    }
+
+    // Append a status change; returns once the record is durable
+    public void appendStatus(int orderId, OrderStatus status) {
+        ByteBuffer out = begin(STATUS);
+        out = ensure(out, 4);
+        out.putInt(orderId);
+        append(putString(out, status.label));
+    }
+
+    // Append a shipping class change; returns once the record is durable
+    public void appendShipping(int orderId, ShippingClass shipping) {
+        ByteBuffer out = begin(SHIPPING);
+        out = ensure(out, 5);
+        append(out.putInt(orderId).put((byte) shipping.ordinal()));
+    }
+
+    private ByteBuffer begin(byte type) {
+        ByteBuffer out = scratch.get();
+        out.clear();
+        out.position(HEADER_BYTES);
+        return out.put(type);
+    }
+
+    private ByteBuffer ensure(ByteBuffer out, int bytes) {
+        if (out.remaining() >= bytes) {
+            return out;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+        out.flip();
+        bigger.put(out);
+        scratch.set(bigger);
+        return bigger;
+    }
+
+    private ByteBuffer putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long for order log: " + bytes.length + " bytes");
+        }
+        out = ensure(out, 2 + bytes.length);
+        return out.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+                java.nio.charset.StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private void append(ByteBuffer record) {
+        int length = record.position() - HEADER_BYTES;
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        crc.update(record.array(), HEADER_BYTES, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.flip();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    throw new IllegalStateException("Order log is closed");
+                }
+                if (durability != Durability.GROUP) {
+                    write(record);
+                    if (durability == Durability.PER_RECORD) {
+                        channel.force(false);
+                        fsyncs.increment();
+                    }
+                    return;
+                }
+                if (pending.remaining() < record.remaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                            pending.position() + record.remaining()));
+                    pending.flip();
+                    pending = bigger.put(pending);
+                }
+                pending.put(record);
+                long sequence = ++appendedRecords;
+                lock.notifyAll();
+                while (durableRecords < sequence && failure == null) {
+                    lock.wait();
+                }
+                if (durableRecords < sequence) {
+                    throw failure;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for order log flush", e);
+        }
+    }
+
+    // Writes a batch of whole records, rolling to a new segment first if it would overflow
+    private void write(ByteBuffer batch) throws IOException {
+        if (segmentPosition > 0 && segmentPosition + batch.remaining() > segmentBytes) {
+            channel.force(false);
+            openSegment(segmentIndex + 1, 0);
+        }
+        segmentPosition += batch.remaining();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            synchronized (lock) {
+                while (appendedRecords == durableRecords && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (appendedRecords == durableRecords) {
+                    return;
+                }
+                ByteBuffer swap = flushing;
+                flushing = pending;
+                pending = swap;
+                pending.clear();
+                target = appendedRecords;
+            }
+            // Appenders keep filling the other buffer while this batch hits the disk
+            flushing.flip();
+            try {
+                write(flushing);
+                channel.force(false);
+                fsyncs.increment();
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            synchronized (lock) {
+                durableRecords = target;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public long replayedRecords() {
+        return replayedRecords;
+    }
+
+    public long truncatedBytes() {
+        return truncatedBytes;
+    }
+
+    public long fsyncCount() {
+        return fsyncs.sum();
+    }
+
+    // Idempotent: drains pending records, forces them and closes the segment
+    @Override
+    public void close() throws IOException {
+        Thread flushThread;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushThread = flusher;
+            lock.notifyAll();
+        }
+        if (flushThread != null) {
+            try {
+                flushThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (lock) {
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                for (Path child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+}
+
+// === SNAPSHOTS ===
+// Point-in-time image of the bookstore state, so startup loads one file and
+// replays only the log segments written after it instead of the whole history.
+// Format (version 2; version 1 lacks the per-order shipping and flags bytes), all big-endian:
+//   header: int MAGIC, int VERSION, long firstSegment, int nextOrderId,
+//           int stringCount, int catalogCount, int orderCount
+//   blocks: byte kind, int count, int firstIndex, int byteLength, int CRC32C, payload
+// Strings are dictionary-encoded (STRINGS blocks define ids, everything else
+// refers to them). Blocks are capped at BLOCK_BYTES so each one is mapped and
+// decoded independently, in parallel, straight from the page cache.
+class OrderSnapshot {
+    static final int MAGIC = 0x424B534E;
+    static final int VERSION = 2;
+    private static final int HEADER_BYTES = 32;
+    private static final int BLOCK_HEADER_BYTES = 17;
+    private static final int BLOCK_BYTES = 4 << 20;
+    private static final byte STRINGS = 1;
+    private static final byte CATALOG = 2;
+    private static final byte ORDERS = 3;
+    private static final byte QUEUE = 4;
+    private static final byte RECENT = 5;
+
+    // First log segment not covered by this snapshot
+    long firstSegment;
+    int nextOrderId;
+    List<Book> catalog = new ArrayList<>();
+    // Sorted by order id; iterated once by write()
+    Collection<Order> orders = Collections.emptyList();
+    // Status and shipping ordinals of each entry of orders, in iteration
+    // order, as of the cut; null means write() reads the orders' own fields
+    byte[] statuses;
+    byte[] shippings;
+    int[] queuedIds = new int[0];
+    int[] recentIds = new int[0];
+
+    static Path path(Path dir, long firstSegment) {
+        return dir.resolve(String.format("snapshot-%08d.snap", firstSegment));
+    }
+
+    // Newest snapshot in dir, or null
+    static Path latest(Path dir) throws IOException {
+        Path latest = null;
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.snap")) {
+            for (Path file : files) {
+                if (latest == null || file.getFileName().toString().compareTo(latest.getFileName().toString()) > 0) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    // Deletes snapshots older than the one at keep, plus temp files left by interrupted writes
+    static void deleteOlder(Path dir, Path keep) throws IOException {
+        String keepName = keep.getFileName().toString();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp") || name.compareTo(keepName) < 0) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    // Writes to a temp file, fsyncs it and renames it into place, so a crash
+    // mid-write never leaves a partial snapshot under the real name
+    void write(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer writer = new Writer(out);
+            out.position(HEADER_BYTES);
+
+            Block books = writer.block(CATALOG);
+            books.firstIndex = 0;
+            int bookIndex = 0;
+            for (Book book : catalog) {
+                if (books.data.position() > BLOCK_BYTES) {
+                    writer.flush(books);
+                    books = writer.block(CATALOG);
+                    books.firstIndex = bookIndex;
+                }
+                books = writer.ensure(books, 24);
+                writeBookLine(writer, books, book, book.price, book.quantity);
+                books.count++;
+                bookIndex++;
+            }
+            writer.flush(books);
+
+            Block block = writer.block(ORDERS);
+            block.firstIndex = 0;
+            int index = 0;
+            for (Order order : orders) {
+                if (block.data.position() > BLOCK_BYTES) {
+                    writer.flush(block);
+                    block = writer.block(ORDERS);
+                    block.firstIndex = index;
+                }
+                OrderStatus status = statuses != null ? OrderStatus.values()[statuses[index]] : order.status;
+                int shipping = shippings != null ? shippings[index] : order.shipping.ordinal();
+                block = writer.ensure(block, 30 + order.lineCount() * 24);
+                block.data.putInt(order.orderId).putLong(order.orderMillis)
+                        .putInt(writer.id(status.label)).putInt(writer.id(order.customerName))
+                        .putInt(writer.id(order.shippingAddress)).put((byte) shipping)
+                        .put((byte) (order.stockReserved ? 1 : 0)).putInt(order.lineCount());
+                for (int b = 0; b < order.lineCount(); b++) {
+                    writeBookLine(writer, block, order.lineBook(b), order.linePriceCents(b) / 100.0, order.lineQuantity(b));
+                }
+                block.count++;
+                index++;
+            }
+            writer.flush(block);
+            writer.flushIds(QUEUE, queuedIds);
+            writer.flushIds(RECENT, recentIds);
+            writer.flush(writer.strings);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(firstSegment).putInt(nextOrderId)
+                    .putInt(writer.ids.size()).putInt(catalog.size()).putInt(index).flip();
+            out.write(header, 0);
+            out.force(true);
+        }
+        Files.move(tmp, file, java.nio.file.StandardCopyOption.ATOMIC_MOVE,
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeBookLine(Writer writer, Block block, Book book, double price, int quantity) {
+        block.data.putInt(writer.id(book.isbn)).putInt(writer.id(book.title)).putInt(writer.id(book.author))
+                .putDouble(price).putInt(quantity);
+    }
+
+    private static final class Block {
+        final byte kind;
+        ByteBuffer data;
+        int count;
+        int firstIndex;
+
+        Block(byte kind, ByteBuffer data) {
+            this.kind = kind;
+            this.data = data;
+        }
+    }
+
+    // Holds two full-size payload buffers for the whole write, one for the
+    // STRINGS block and one shared by the catalog and order blocks, which are
+    // built one at a time. ensure() moves an oversized block to its own buffer.
+    private static final class Writer {
+        final FileChannel out;
+        final HashMap<String, Integer> ids = new HashMap<>();
+        final java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        final ByteBuffer blockBuffer = ByteBuffer.allocate(BLOCK_BYTES + (64 << 10));
+        final Block strings = new Block(STRINGS, ByteBuffer.allocate(BLOCK_BYTES + (64 << 10)));
+
+        Writer(FileChannel out) {
+            this.out = out;
+        }
+
+        Block block(byte kind) {
+            blockBuffer.clear();
+            return new Block(kind, blockBuffer);
+        }
+
+        // Interns a string, spilling the STRINGS block when it fills up
+        int id(String value) {
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            id = ids.size();
+            ids.put(value, id);
+            byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("String too long for snapshot: " + bytes.length + " bytes");
+            }
+            if (strings.data.position() + 2 + bytes.length > BLOCK_BYTES) {
+                try {
+                    flush(strings);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                strings.firstIndex = id;
+            }
+            strings.data.putShort((short) bytes.length).put(bytes);
+            strings.count++;
+            return id;
+        }
+
+        Block ensure(Block block, int bytes) {
+            if (block.data.remaining() < bytes) {
+                // Geometric growth, so repeated small overflows stay linear overall
+                ByteBuffer bigger = ByteBuffer.allocate(
+                        Math.max(2 * block.data.capacity(), block.data.position() + bytes));
+                block.data.flip();
+                block.data = bigger.put(block.data);
+            }
+            return block;
+        }
+
+        void flushIds(byte kind, int[] values) throws IOException {
+            Block block = new Block(kind, ByteBuffer.allocate(values.length * 4));
+            for (int value : values) {
+                block.data.putInt(value);
+            }
+            block.count = values.length;
+            flush(block);
+        }
+
+        void flush(Block block) throws IOException {
+            ByteBuffer payload = block.data;
+            payload.flip();
+            crc.reset();
+            crc.update(payload.duplicate());
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            header.put(block.kind).putInt(block.count).putInt(block.firstIndex).putInt(payload.remaining())
+                    .putInt((int) crc.getValue()).flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            while (payload.hasRemaining()) {
+                out.write(payload);
+            }
+            payload.clear();
+            block.count = 0;
+        }
+    }
+
+    // Maps the file, verifies every block and decodes blocks in parallel
+    static OrderSnapshot load(Path file) throws IOException {
+        OrderSnapshot snapshot = new OrderSnapshot();
+        List<long[]> blocks = new ArrayList<>();
+        List<java.nio.MappedByteBuffer> payloads = new ArrayList<>();
+        String[] strings;
+        int catalogCount;
+        Order[] orders;
+        int version;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            ByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a bookstore snapshot: " + file);
+            }
+            version = header.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            snapshot.firstSegment = header.getLong();
+            snapshot.nextOrderId = header.getInt();
+            strings = new String[header.getInt()];
+            catalogCount = header.getInt();
+            orders = new Order[header.getInt()];
+            snapshot.orders = Arrays.asList(orders);
+
+            long position = HEADER_BYTES;
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            while (position < size) {
+                blockHeader.clear();
+                while (blockHeader.hasRemaining() && in.read(blockHeader, position + blockHeader.position()) > 0) {
+                }
+                if (blockHeader.hasRemaining()) {
+                    throw new IOException("Truncated snapshot block at offset " + position + " in " + file);
+                }
+                blockHeader.flip();
+                long kind = blockHeader.get();
+                long count = blockHeader.getInt();
+                long firstIndex = blockHeader.getInt();
+                int length = blockHeader.getInt();
+                long checksum = blockHeader.getInt();
+                position += BLOCK_HEADER_BYTES;
+                if (position + length > size) {
+                    throw new IOException("Truncated snapshot block at offset " + position + " in " + file);
+                }
+                blocks.add(new long[] {kind, count, firstIndex, checksum});
+                payloads.add(in.map(FileChannel.MapMode.READ_ONLY, position, length));
+                position += length;
+            }
+        }
+
+        // Strings first, since every other block refers to them by id
+        decodeParallel(blocks, payloads, STRINGS, (meta, data) -> {
+            byte[] bytes = new byte[0xFFFF];
+            int index = (int) meta[2];
+            for (int i = 0; i < meta[1]; i++) {
+                int length = data.getShort() & 0xFFFF;
+                data.get(bytes, 0, length);
+                strings[index++] = new String(bytes, 0, length, java.nio.charset.StandardCharsets.UTF_8);
+            }
+        });
+        int formatVersion = version;
+        decodeParallel(blocks, payloads, ORDERS, (meta, data) -> {
+            int index = (int) meta[2];
+            for (int i = 0; i < meta[1]; i++) {
+                int orderId = data.getInt();
+                long date = data.getLong();
+                OrderStatus status = OrderStatus.of(strings[data.getInt()]);
+                Order order = new Order(orderId, strings[data.getInt()], strings[data.getInt()]);
+                order.orderMillis = date;
+                order.status = status;
+                if (formatVersion >= 2) {
+                    order.shipping = ShippingClass.values()[data.get()];
+                    order.stockReserved = data.get() != 0;
+                }
+                for (int b = data.getInt(); b > 0; b--) {
+                    Book line = readBookLine(data, strings);
+                    order.addBook(line, line.quantity);
+                }
+                orders[index++] = order;
+            }
+        });
+        for (int i = 0; i < blocks.size(); i++) {
+            long[] meta = blocks.get(i);
+            ByteBuffer data = payloads.get(i);
+            verify(meta, data);
+            if (meta[0] == CATALOG) {
+                for (int b = 0; b < meta[1]; b++) {
+                    snapshot.catalog.add(readBookLine(data, strings));
+                }
+            } else if (meta[0] == QUEUE) {
+                snapshot.queuedIds = readIds(data, (int) meta[1]);
+            } else if (meta[0] == RECENT) {
+                snapshot.recentIds = readIds(data, (int) meta[1]);
+            }
+        }
+        if (snapshot.catalog.size() != catalogCount) {
+            throw new IOException("Snapshot catalog has " + snapshot.catalog.size() + " books, header says "
+                    + catalogCount + " in " + file);
+        }
+        return snapshot;
+    }
+
+    private static void verify(long[] meta, ByteBuffer data) throws IOException {
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        crc.update(data.duplicate());
+        if ((int) crc.getValue() != (int) meta[3]) {
+            throw new IOException("Snapshot block checksum mismatch");
+        }
+    }
+
+    private interface BlockDecoder {
+        void decode(long[] meta, ByteBuffer data);
+    }
+
+    private static void decodeParallel(List<long[]> blocks, List<java.nio.MappedByteBuffer> payloads,
+                                       byte kind, BlockDecoder decoder) throws IOException {
+        List<Integer> matching = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocks.get(i)[0] == kind) {
+                matching.add(i);
+            }
+        }
+        try {
+            matching.parallelStream().forEach(i -> {
+                ByteBuffer data = payloads.get(i).duplicate();
+                try {
+                    verify(blocks.get(i), data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                decoder.decode(blocks.get(i), data);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Book readBookLine(ByteBuffer data, String[] strings) {
+        String isbn = strings[data.getInt()];
+        String title = strings[data.getInt()];
+        String author = strings[data.getInt()];
+        double price = data.getDouble();
+        return new Book(isbn, title, author, price, data.getInt());
+    }
+
+    private static int[] readIds(ByteBuffer data, int count) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = data.getInt();
+        }
+        return ids;
+    }
+}
+
+// === ORDER ARCHIVE ===
+// Off-heap tier for completed orders. Each archived order is appended as one
+// record to a memory-mapped file, and the heap keeps only orderId -> record
+// address plus a small LRU cache of recently decoded orders. Records never
+// change once written, so lookups decode straight from the page cache and
+// the GC never scans archived history.
+// Record layout (big-endian, padded to ALIGN bytes):
+//   int recordBytes, int orderId, long orderMillis, long totalCents,
+//   byte status, byte shipping, byte stockReserved, byte unused, int lineCount,
+//   lineCount x {int bookId, int quantity, int priceCents},
+//   int customerLength, customer UTF-8, int addressLength, address UTF-8
+// The file is mapped CHUNK_BYTES at a time and no record straddles two chunks;
+// a recordBytes of 0 means the rest of the chunk is unused. Book ids are
+// BookRegistry ids, which only mean something inside this process, so the
+// archive is a tier rebuilt on every start rather than a durable copy - the
+// order log and snapshots still hold every order - and opening truncates it.
+class OrderArchive implements AutoCloseable {
+    private static final int CHUNK_BYTES = 64 << 20;
+    private static final int ALIGN = 8;
+    private static final int HEADER_BYTES = 32;
+    private static final int LINE_BYTES = 12;
+    // Addresses are kept in ALIGN-byte units, so an int reaches 16 GB
+    private static final long MAX_BYTES = (long) Integer.MAX_VALUE * ALIGN;
+    private static final OrderStatus[] STATUSES = OrderStatus.values();
+    private static final ShippingClass[] SHIPPING = ShippingClass.values();
+
+    private final FileChannel channel;
+    // Replaced, never modified, when a chunk is added, so readers on other threads see a consistent array
+    private volatile java.nio.MappedByteBuffer[] chunks = new java.nio.MappedByteBuffer[0];
+    private long end;
+    private final IntIntHashMap addresses = new IntIntHashMap(16);
+    private final LinkedHashMap<Integer, Order> cache;
+    private long hits;
+    private long misses;
+
+    private OrderArchive(FileChannel channel, int cacheSize) {
+        this.channel = channel;
+        this.cache = new LinkedHashMap<Integer, Order>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Order> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    static OrderArchive open(Path file, int cacheSize) throws IOException {
+        return new OrderArchive(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE), cacheSize);
+    }
+
+    // Append - O(record size). The caller drops its own reference to the order.
+    public synchronized void append(Order order) {
+        byte[] customer = order.customerName.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        byte[] address = order.shippingAddress.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        int length = HEADER_BYTES + order.lineCount() * LINE_BYTES + 8 + customer.length + address.length;
+        length = (length + ALIGN - 1) & -ALIGN;
+        if (length > CHUNK_BYTES) {
+            throw new IllegalArgumentException("Order #" + order.orderId + " is too large to archive");
+        }
+        int at = (int) (end % CHUNK_BYTES);
+        if (at + length > CHUNK_BYTES) {
+            chunk(end).putInt(at, 0);
+            end += CHUNK_BYTES - at;
+            at = 0;
+        }
+        if (end + length > MAX_BYTES) {
+            throw new IllegalStateException("Order archive is full");
+        }
+        ByteBuffer chunk = chunk(end);
+        chunk.putInt(at, length).putInt(at + 4, order.orderId).putLong(at + 8, order.orderMillis)
+                .putLong(at + 16, order.totalCents).put(at + 24, (byte) order.status.ordinal())
+                .put(at + 25, (byte) order.shipping.ordinal()).put(at + 26, (byte) (order.stockReserved ? 1 : 0))
+                .putInt(at + 28, order.lineCount());
+        int p = at + HEADER_BYTES;
+        for (int i = 0; i < order.lineCount(); i++, p += LINE_BYTES) {
+            chunk.putInt(p, order.lineBookId(i)).putInt(p + 4, order.lineQuantity(i))
+                    .putInt(p + 8, (int) order.linePriceCents(i));
+        }
+        p = putBytes(chunk, p, customer);
+        putBytes(chunk, p, address);
+        addresses.put(order.orderId, (int) (end / ALIGN));
+        cache.remove(order.orderId);
+        end += length;
+    }
+
+    private static int putBytes(ByteBuffer chunk, int at, byte[] bytes) {
+        chunk.putInt(at, bytes.length);
+        ByteBuffer view = chunk.duplicate();
+        view.position(at + 4);
+        view.put(bytes);
+        return at + 4 + bytes.length;
+    }
+
+    // The chunk holding address, mapping it (and growing the file) on first use
+    private ByteBuffer chunk(long address) {
+        int index = (int) (address / CHUNK_BYTES);
+        java.nio.MappedByteBuffer[] current = chunks;
+        if (index < current.length) {
+            return current[index];
+        }
+        try {
+            java.nio.MappedByteBuffer[] grown = Arrays.copyOf(current, index + 1);
+            for (int i = current.length; i <= index; i++) {
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * CHUNK_BYTES, CHUNK_BYTES);
+            }
+            chunks = grown;
+            return grown[index];
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Get - O(1) for cached orders, otherwise one record decode; null when not archived.
+    // The order is a copy: archived orders are completed and are not modified.
+    public synchronized Order get(int orderId) {
+        Order order = cache.get(orderId);
+        if (order != null) {
+            hits++;
+            return order;
+        }
+        int unit = addresses.get(orderId, -1);
+        if (unit < 0) {
+            return null;
+        }
+        misses++;
+        order = decode(unit * (long) ALIGN);
+        cache.put(orderId, order);
+        return order;
+    }
+
+    public synchronized boolean contains(int orderId) {
+        return addresses.containsKey(orderId);
+    }
+
+    // Absolute reads only, so concurrent readers never share a buffer position
+    private Order decode(long address) {
+        ByteBuffer chunk = chunks[(int) (address / CHUNK_BYTES)];
+        int at = (int) (address % CHUNK_BYTES);
+        int lines = chunk.getInt(at + 28);
+        int p = at + HEADER_BYTES + lines * LINE_BYTES;
+        String customer = getString(chunk, p);
+        p += 4 + chunk.getInt(p);
+        Order order = new Order(chunk.getInt(at + 4), customer, getString(chunk, p));
+        order.orderMillis = chunk.getLong(at + 8);
+        order.status = STATUSES[chunk.get(at + 24)];
+        order.shipping = SHIPPING[chunk.get(at + 25)];
+        order.stockReserved = chunk.get(at + 26) != 0;
+        for (p = at + HEADER_BYTES; lines > 0; lines--, p += LINE_BYTES) {
+            order.addLine(chunk.getInt(p), chunk.getInt(p + 4), chunk.getInt(p + 8));
+        }
+        return order;
+    }
+
+    private static String getString(ByteBuffer chunk, int at) {
+        byte[] bytes = new byte[chunk.getInt(at)];
+        ByteBuffer view = chunk.duplicate();
+        view.position(at + 4);
+        view.get(bytes);
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    // Append position; records before it are complete and never change
+    public synchronized long end() {
+        return end;
+    }
+
+    // Orders archived before end, sorted by id and decoded on each get()
+    // without going through the cache. Safe to use from another thread while
+    // appends continue, provided end was read before that thread started.
+    public List<Order> ordersBefore(long end) {
+        long[] entries = new long[16];
+        int size = 0;
+        long address = 0;
+        while (address < end) {
+            ByteBuffer chunk = chunks[(int) (address / CHUNK_BYTES)];
+            int at = (int) (address % CHUNK_BYTES);
+            int length = chunk.getInt(at);
+            if (length == 0) {
+                address += CHUNK_BYTES - at;
+                continue;
+            }
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            // Ids are non-negative, so sorting id << 32 | unit sorts by id
+            entries[size++] = (long) chunk.getInt(at + 4) << 32 | address / ALIGN;
+            address += length;
+        }
+        long[] sorted = Arrays.copyOf(entries, size);
+        Arrays.sort(sorted);
+        return new AbstractList<Order>() {
+            public Order get(int index) {
+                return decode((sorted[index] & 0xFFFFFFFFL) * ALIGN);
+            }
+
+            public int size() {
+                return sorted.length;
+            }
+        };
+    }
+
+    // Merges two lists that are each sorted by order id
+    static Collection<Order> mergeById(List<Order> a, List<Order> b) {
+        return new AbstractCollection<Order>() {
+            public Iterator<Order> iterator() {
+                return new Iterator<Order>() {
+                    private int i;
+                    private int j;
+
+                    public boolean hasNext() {
+                        return i < a.size() || j < b.size();
+                    }
+
+                    public Order next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        if (j == b.size()) {
+                            return a.get(i++);
+                        }
+                        if (i == a.size()) {
+                            return b.get(j++);
+                        }
+                        Order left = a.get(i);
+                        Order right = b.get(j);
+                        if (left.orderId <= right.orderId) {
+                            i++;
+                            return left;
+                        }
+                        j++;
+                        return right;
+                    }
+                };
+            }
+
+            public int size() {
+                return a.size() + b.size();
+            }
+        };
+    }
+
+    // The k largest archived orders by total, read from the fixed header
+    // fields without decoding the other records
+    public List<Order> largestByTotal(int k) {
+        long limit;
+        synchronized (this) {
+            limit = end;
+        }
+        // Min-heap of {totalCents, address} holding the k largest seen so far
+        PriorityQueue<long[]> heap = new PriorityQueue<>(Math.max(1, k), (x, y) -> Long.compare(x[0], y[0]));
+        long address = 0;
+        while (address < limit && k > 0) {
+            ByteBuffer chunk = chunks[(int) (address / CHUNK_BYTES)];
+            int at = (int) (address % CHUNK_BYTES);
+            int length = chunk.getInt(at);
+            if (length == 0) {
+                address += CHUNK_BYTES - at;
+                continue;
+            }
+            long total = chunk.getLong(at + 16);
+            if (heap.size() < k) {
+                heap.add(new long[] {total, address});
+            } else if (total > heap.peek()[0]) {
+                heap.poll();
+                heap.add(new long[] {total, address});
+            }
+            address += length;
+        }
+        List<Order> largest = new ArrayList<>(heap.size());
+        for (long[] entry : heap) {
+            largest.add(decode(entry[1]));
+        }
+        return largest;
+    }
+
+    public synchronized int size() {
+        return addresses.size();
+    }
+
+    // Heap bytes of the id -> address index
+    public synchronized long indexBytes() {
+        return addresses.memoryBytes();
+    }
+
+    public synchronized long cacheHits() {
+        return hits;
+    }
+
+    public synchronized long cacheMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
+
+// === HASH INDEX (orderId -> Order) ===
+// Open-addressing map with primitive int keys: no Integer boxing and no entry
+// objects, just two parallel arrays probed linearly. Null values are not
+// allowed because a null slot marks an empty bucket.
+class IntObjectHashMap<V> {
+    private static final float MAX_LOAD = 0.7f;
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int shift;
+    private int size;
+
+    public IntObjectHashMap() {
+        this(16);
+    }
+
+    public IntObjectHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) * 2 - 1);
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    // Fibonacci hashing spreads sequential order ids across the table
+    private int slot(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    // Get - O(1) expected
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int i = slot(key);
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) {
+                return (V) value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    // Put - O(1) amortized, returns the previous value
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        int i = slot(key);
+        Object existing;
+        while ((existing = values[i]) != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V) existing;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (int) (values.length * MAX_LOAD)) {
+            rehash(values.length * 2);
+        }
+        return null;
+    }
+
+    // Remove - O(1) expected, uses backward-shift deletion so no tombstones pile up
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int i = slot(key);
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return (V) value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = slot(keys[i]);
+            // Move the entry into the hole unless its home lies cyclically in (hole, i]
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != null) {
+                int i = slot(oldKeys[j]);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    // Bytes held by the two backing arrays (headers included), excluding the values themselves
+    public long memoryBytes() {
+        return 16L + 4L * keys.length + 16L + (long) MemoryLayout.referenceSize() * values.length;
+    }
+
+    // Visits every value in table order
+    @SuppressWarnings("unchecked")
+    public void forEach(java.util.function.Consumer<? super V> action) {
+        for (Object value : values) {
+            if (value != null) {
+                action.accept((V) value);
+            }
+        }
+    }
+}
+
+// Open-addressing int -> int map, same layout and probing as IntObjectHashMap.
+// Integer.MIN_VALUE is reserved to mark empty slots and cannot be stored.
+class IntIntHashMap {
+    private static final float MAX_LOAD = 0.7f;
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int shift;
+    private int size;
+
+    public IntIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) * 2 - 1);
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    public int get(int key, int defaultValue) {
+        int i = slot(key);
+        int value;
+        while ((value = values[i]) != EMPTY) {
+            if (keys[i] == key) {
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key, EMPTY) != EMPTY;
+    }
+
+    public void put(int key, int value) {
+        if (value == EMPTY) {
+            throw new IllegalArgumentException("Integer.MIN_VALUE cannot be stored");
+        }
+        int i = slot(key);
+        while (values[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (int) (values.length * MAX_LOAD)) {
+            rehash(values.length * 2);
+        }
+    }
+
+    public boolean remove(int key) {
+        int i = slot(key);
+        while (values[i] != EMPTY) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == EMPTY) {
+                break;
+            }
+            int home = slot(keys[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = EMPTY;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != EMPTY) {
+                int i = slot(oldKeys[j]);
+                while (values[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Bytes held by the two backing arrays, headers included
+    public long memoryBytes() {
+        return 16L + 4L * keys.length + 16L + 4L * values.length;
+    }
+}
+
+// === SECONDARY ORDER INDEXES ===
+// customerName -> order ids, split into open (still "Processing") and closed
+// orders so "what is customer X still waiting for" never walks their history.
+// Both lists stay sorted by id: new orders append, and a closing order moves
+// from the short open list into its sorted place among the closed ones.
+class CustomerOrderIndex {
+    static final class Postings {
+        int[] open = new int[2];
+        int openSize;
+        int[] closed = new int[2];
+        int closedSize;
+    }
+
+    private static final Postings EMPTY = new Postings();
+    private final HashMap<String, Postings> customers = new HashMap<>();
+
+    static boolean isOpen(Order order) {
+        return order.status == OrderStatus.PROCESSING;
+    }
+
+    public void add(Order order) {
+        Postings postings = customers.computeIfAbsent(order.customerName, name -> new Postings());
+        if (isOpen(order)) {
+            postings.open = insert(postings.open, postings.openSize++, order.orderId);
+        } else {
+            postings.closed = insert(postings.closed, postings.closedSize++, order.orderId);
+        }
+    }
+
+    // Moves the order to the list matching its current status
+    public void statusChanged(Order order) {
+        Postings postings = customers.get(order.customerName);
+        if (postings == null) {
+            return;
+        }
+        if (isOpen(order)) {
+            if (remove(postings.closed, postings.closedSize, order.orderId)) {
+                postings.closedSize--;
+                postings.open = insert(postings.open, postings.openSize++, order.orderId);
+            }
+        } else if (remove(postings.open, postings.openSize, order.orderId)) {
+            postings.openSize--;
+            postings.closed = insert(postings.closed, postings.closedSize++, order.orderId);
+        }
+    }
+
+    // Ids in increasing order; open orders only, or all of the customer's
+    // orders. Reads the lists in place, so the index must not change while
+    // the iterator is in use.
+    public PrimitiveIterator.OfInt orders(String customerName, boolean includeClosed) {
+        Postings postings = customers.getOrDefault(customerName, EMPTY);
+        int[] open = postings.open;
+        int openSize = postings.openSize;
+        int[] closed = postings.closed;
+        int closedSize = includeClosed ? postings.closedSize : 0;
+        return new PrimitiveIterator.OfInt() {
+            int i;
+            int j;
+
+            public boolean hasNext() {
+                return i < openSize || j < closedSize;
+            }
+
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return j == closedSize || (i < openSize && open[i] < closed[j]) ? open[i++] : closed[j++];
+            }
+        };
+    }
+
+    public int count(String customerName, boolean includeClosed) {
+        Postings postings = customers.get(customerName);
+        if (postings == null) {
+            return 0;
+        }
+        return postings.openSize + (includeClosed ? postings.closedSize : 0);
+    }
+
+    public int customerCount() {
+        return customers.size();
+    }
+
+    // Inserts id into the sorted prefix [0, size), growing the array if full
+    private static int[] insert(int[] ids, int size, int id) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        int at = size;
+        while (at > 0 && ids[at - 1] > id) {
+            at--;
+        }
+        System.arraycopy(ids, at, ids, at + 1, size - at);
+        ids[at] = id;
+        return ids;
+    }
+
+    private static boolean remove(int[] ids, int size, int id) {
+        int at = Arrays.binarySearch(ids, 0, size, id);
+        if (at < 0) {
+            return false;
+        }
+        System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+        return true;
+    }
+}
+
+// Skip list over (order epoch millis, orderId) for time-range queries.
+// Orders arrive in date order, so a finger on the last node of every level
+// turns the common insert into an O(1) expected append; an out-of-order
+// insert (e.g. log replay after a snapshot) falls back to the usual
+// top-down search. Keys are primitives in the nodes - no Date or boxed Long.
+class OrderDateIndex {
+    private static final int MAX_LEVEL = 24;
+
+    static final class Node {
+        final long millis;
+        final int orderId;
+        final Node[] next;
+
+        Node(long millis, int orderId, int level) {
+            this.millis = millis;
+            this.orderId = orderId;
+            this.next = new Node[level];
+        }
+    }
+
+    private final Node head = new Node(Long.MIN_VALUE, Integer.MIN_VALUE, MAX_LEVEL);
+    // Last node on every level
+    private final Node[] tail = new Node[MAX_LEVEL];
+    private int level = 1;
+    private int size;
+    private long random = 0x9E3779B97F4A7C15L;
+
+    public OrderDateIndex() {
+        Arrays.fill(tail, head);
+    }
+
+    public void add(Order order) {
+        add(order.orderMillis, order.orderId);
+    }
+
+    // Add - O(1) expected when (millis, orderId) sorts after every key, O(log n) otherwise
+    public void add(long millis, int orderId) {
+        Node node = new Node(millis, orderId, randomLevel());
+        if (node.next.length > level) {
+            level = node.next.length;
+        }
+        if (!before(millis, orderId, tail[0].millis, tail[0].orderId)) {
+            for (int l = 0; l < node.next.length; l++) {
+                tail[l].next[l] = node;
+                tail[l] = node;
+            }
+        } else {
+            Node x = head;
+            for (int l = level - 1; l >= 0; l--) {
+                while (x.next[l] != null && before(x.next[l].millis, x.next[l].orderId, millis, orderId)) {
+                    x = x.next[l];
+                }
+                if (l < node.next.length) {
+                    node.next[l] = x.next[l];
+                    x.next[l] = node;
+                    if (node.next[l] == null) {
+                        tail[l] = node;
+                    }
+                }
+            }
+        }
+        size++;
+    }
+
+    // Ids of orders placed in [fromMillis, toMillis), oldest first. Walks the
+    // bottom level lazily; nothing is copied.
+    public PrimitiveIterator.OfInt range(long fromMillis, long toMillis) {
+        Node x = head;
+        for (int l = level - 1; l >= 0; l--) {
+            while (x.next[l] != null && x.next[l].millis < fromMillis) {
+                x = x.next[l];
+            }
+        }
+        Node first = x.next[0];
+        return new PrimitiveIterator.OfInt() {
+            Node node = first;
+
+            public boolean hasNext() {
+                return node != null && node.millis < toMillis;
+            }
+
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int orderId = node.orderId;
+                node = node.next[0];
+                return orderId;
+            }
+        };
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean before(long millis, int orderId, long otherMillis, int otherId) {
+        return millis < otherMillis || (millis == otherMillis && orderId < otherId);
+    }
+
+    // Geometric level with p = 1/4, so nodes average 1.33 forward pointers
+    private int randomLevel() {
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        int l = 1 + Long.numberOfTrailingZeros(random | (1L << 62)) / 2;
+        return Math.min(l, MAX_LEVEL);
+    }
+}
+
+// === SHARDED ORDER STORE ===
+// Live orders partitioned into shards, each with its own lock, id map and
+// customer index. An order's id map entry lives in the shard picked by its
+// orderId and its customer list entry in the shard picked by the customer
+// name, so a lookup by either key locks one shard and threads working on
+// different orders or customers rarely meet. Scans over every order -
+// filters, sums, top-k - fan out as a parallel stream, one task per shard,
+// and merge the partial results.
+class ShardedOrderStore {
+    private static final Comparator<Order> BY_ID = Comparator.comparingInt(order -> order.orderId);
+
+    private static final class Shard {
+        final IntObjectHashMap<Order> orders = new IntObjectHashMap<>();
+        final CustomerOrderIndex customers = new CustomerOrderIndex();
+    }
+
+    private final Shard[] shards;
+    private final int mask;
+
+    // shardCount is rounded up to a power of two
+    public ShardedOrderStore(int shardCount) {
+        int n = shardCount <= 1 ? 1 : Integer.highestOneBit(shardCount - 1) << 1;
+        shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard();
+        }
+        mask = n - 1;
+    }
+
+    // Fibonacci hashing, folded so the high bits also pick the shard
+    private Shard shard(int orderId) {
+        int h = orderId * 0x9E3779B9;
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    private Shard customerShard(String customerName) {
+        return shard(customerName.hashCode());
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public void add(Order order) {
+        Shard shard = shard(order.orderId);
+        synchronized (shard) {
+            shard.orders.put(order.orderId, order);
+        }
+        Shard byCustomer = customerShard(order.customerName);
+        synchronized (byCustomer) {
+            byCustomer.customers.add(order);
+        }
+    }
+
+    public Order get(int orderId) {
+        Shard shard = shard(orderId);
+        synchronized (shard) {
+            return shard.orders.get(orderId);
+        }
+    }
+
+    // Drops the order from the id map only. Its id stays in the customer's
+    // list, so customer queries keep returning it (e.g. once it is archived).
+    public Order remove(int orderId) {
+        Shard shard = shard(orderId);
+        synchronized (shard) {
+            return shard.orders.remove(orderId);
+        }
+    }
+
+    // Moves the order to the customer list matching its current status
+    public void statusChanged(Order order) {
+        Shard shard = customerShard(order.customerName);
+        synchronized (shard) {
+            shard.customers.statusChanged(order);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.orders.size();
+            }
+        }
+        return size;
+    }
+
+    // Bytes held by the id maps' backing arrays
+    public long memoryBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.orders.memoryBytes();
+            }
+        }
+        return bytes;
+    }
+
+    // The customer's order ids in increasing order, copied out of the one
+    // shard holding the customer's lists
+    public int[] customerOrders(String customerName, boolean includeClosed) {
+        Shard shard = customerShard(customerName);
+        synchronized (shard) {
+            int[] ids = new int[shard.customers.count(customerName, includeClosed)];
+            PrimitiveIterator.OfInt it = shard.customers.orders(customerName, includeClosed);
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = it.nextInt();
+            }
+            return ids;
+        }
+    }
+
+    // Orders matching the filter, in increasing id order. Shards are scanned
+    // and sorted in parallel; List.sort then merges the sorted runs.
+    public List<Order> filter(java.util.function.Predicate<Order> filter) {
+        List<Order> matches = Arrays.stream(shards).parallel().flatMap(shard -> {
+            List<Order> part = new ArrayList<>();
+            synchronized (shard) {
+                shard.orders.forEach(order -> {
+                    if (filter.test(order)) {
+                        part.add(order);
+                    }
+                });
+            }
+            part.sort(BY_ID);
+            return part.stream();
+        }).collect(java.util.stream.Collectors.toList());
+        matches.sort(BY_ID);
+        return matches;
+    }
+
+    public long sum(java.util.function.ToLongFunction<Order> value) {
+        return Arrays.stream(shards).parallel().mapToLong(shard -> {
+            long[] total = new long[1];
+            synchronized (shard) {
+                shard.orders.forEach(order -> total[0] += value.applyAsLong(order));
+            }
+            return total[0];
+        }).sum();
+    }
+
+    // The k orders with the largest key: the top k of each shard, then the top
+    // k of those. Equal keys rank by order id.
+    public List<Order> largestBy(int k, java.util.function.ToLongFunction<Order> key) {
+        List<Order> candidates = Arrays.stream(shards).parallel().flatMap(shard -> {
+            List<Order> part = new ArrayList<>();
+            synchronized (shard) {
+                shard.orders.forEach(part::add);
+            }
+            part.sort(BY_ID);
+            return TopK.largestBy(part, k, key).stream();
+        }).collect(java.util.stream.Collectors.toList());
+        candidates.sort(BY_ID);
+        return TopK.largestBy(candidates, k, key);
+    }
+}
+
+// === ORDER ID ALLOCATION ===
+// Hands out order ids in blocks so concurrent creators rarely share state.
+// Each thread draws ids from the block in its stripe, picked once per thread
+// by a randomly seeded probe, with one CAS on a slot padded onto its own
+// cache line; only refilling a stripe touches the shared counter. Ids from
+// one thread increase, but a thread landing on a part-used stripe gets ids
+// from an older block, so with many short-lived threads (one per request)
+// ids arrive well out of order. Callers that keep structures sorted by id
+// pass stripes = 1: every id then comes from one slot in issue order, at
+// the cost of one contended CAS per id.
+//
+// A durable allocator leases ids ahead: before a block past the lease is
+// used, a new high-water mark leaseIds beyond it is written to the mark file
+// and forced. After a restart the allocator resumes at that mark, so no id
+// is issued twice; ids leased but never used are skipped, as are the unused
+// ids of every stripe's current block - up to leaseIds + stripes * blockSize.
+class OrderIdAllocator {
+    // Longs per stripe slot, so each slot sits on its own 64-byte line
+    private static final int PAD = 8;
+    // Random per thread, so threads - platform or virtual - spread evenly over the stripes
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(
+            () -> new int[] {java.util.concurrent.ThreadLocalRandom.current().nextInt()});
+
+    // Per stripe: next id in the high half, block end (exclusive) in the low half
+    private final AtomicLongArray blocks;
+    private final Object[] refillLocks;
+    private final int mask;
+    private final int blockSize;
+    private final AtomicLong nextBlock;
+    private final Path markFile;
+    private final int leaseIds;
+    // Ids below this mark are durably reserved
+    private volatile long leased;
+
+    // In-memory allocator starting at first
+    public OrderIdAllocator(int first, int blockSize) {
+        this(first, blockSize, defaultStripes());
+    }
+
+    // stripes is rounded up to a power of two
+    public OrderIdAllocator(int first, int blockSize, int stripes) {
+        this(first, blockSize, null, 0, stripes);
+    }
+
+    private OrderIdAllocator(int first, int blockSize, Path markFile, int leaseIds, int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be at least 1: " + stripes);
+        }
+        stripes = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        blocks = new AtomicLongArray(stripes * PAD);
+        refillLocks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            refillLocks[i] = new Object();
+        }
+        mask = stripes - 1;
+        this.blockSize = blockSize;
+        this.nextBlock = new AtomicLong(first);
+        this.markFile = markFile;
+        this.leaseIds = leaseIds;
+        this.leased = first;
+    }
+
+    // Durable allocator: resumes at the larger of floor (e.g. one past the
+    // highest recovered id) and the mark left by the previous run
+    public static OrderIdAllocator open(Path markFile, int floor, int blockSize, int leaseIds) throws IOException {
+        return open(markFile, floor, blockSize, leaseIds, defaultStripes());
+    }
+
+    public static OrderIdAllocator open(Path markFile, int floor, int blockSize, int leaseIds,
+                                        int stripes) throws IOException {
+        long first = floor;
+        if (Files.exists(markFile)) {
+            String mark = new String(Files.readAllBytes(markFile), java.nio.charset.StandardCharsets.US_ASCII).trim();
+            try {
+                first = Math.max(first, Long.parseLong(mark));
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupt order id mark in " + markFile + ": " + mark);
+            }
+        }
+        if (first > Integer.MAX_VALUE) {
+            throw new IOException("Order ids exhausted: " + markFile + " is at " + first);
+        }
+        return new OrderIdAllocator((int) first, blockSize, markFile, leaseIds, stripes);
+    }
+
+    // Four per core, so concurrent threads rarely share a slot
+    private static int defaultStripes() {
+        return 4 * Runtime.getRuntime().availableProcessors();
+    }
+
+    public int next() {
+        int slot = stripe() * PAD;
+        while (true) {
+            long packed = blocks.get(slot);
+            int next = (int) (packed >>> 32);
+            if (next < (int) packed) {
+                if (blocks.compareAndSet(slot, packed, packed + (1L << 32))) {
+                    return next;
+                }
+            } else {
+                refill(slot);
+            }
+        }
+    }
+
+    // Every id issued so far, including those still waiting in a stripe, is below this
+    public int highWaterMark() {
+        return (int) Math.min(Integer.MAX_VALUE, nextBlock.get());
+    }
+
+    private int stripe() {
+        return PROBE.get()[0] & mask;
+    }
+
+    // Takers only CAS a slot that still has ids left, so once the block is
+    // exhausted the refilling thread owns the slot and can set it directly
+    private void refill(int slot) {
+        synchronized (refillLocks[slot / PAD]) {
+            long packed = blocks.get(slot);
+            if ((int) (packed >>> 32) < (int) packed) {
+                return;
+            }
+            long start = nextBlock.getAndAdd(blockSize);
+            long end = start + blockSize;
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Order ids exhausted at " + start);
+            }
+            if (markFile != null && end > leased) {
+                lease(end);
+            }
+            blocks.set(slot, start << 32 | end);
+        }
+    }
+
+    // Only the thread whose block crosses the lease writes; the others keep
+    // drawing from blocks below it
+    private synchronized void lease(long blockEnd) {
+        if (blockEnd <= leased) {
+            return;
+        }
+        long mark = blockEnd + leaseIds;
+        Path tmp = markFile.resolveSibling(markFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap((mark + "\n").getBytes(java.nio.charset.StandardCharsets.US_ASCII)));
+            out.force(true);
+            Files.move(tmp, markFile, java.nio.file.StandardCopyOption.ATOMIC_MOVE,
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write order id mark " + markFile, e);
+        }
+        leased = mark;
+    }
+}
+
+// === SALES AGGREGATES ===
+// Running sales figures updated as orders are written, so dashboard reads
+// are a counter lookup instead of a pass over every line of every order.
+// An order counts as booked while Processing or Completed; cancelling it
+// takes its lines back out. Each order line is one copy sold at the
+// line's price. Counters are LongAdders, which stripe contended updates
+// across cells, so concurrent order creation for the same ISBN, author or
+// day doesn't serialize on one hot field. Optional leaderboards rank ISBNs
+// by units and authors by revenue; they take a lock per update, so
+// write-heavy callers that only need the counters leave them off.
+class SalesAggregates {
+    private final LongAdder bookedOrders = new LongAdder();
+    private final LongAdder bookedCents = new LongAdder();
+    private final LongAdder completedOrders = new LongAdder();
+    private final LongAdder completedCents = new LongAdder();
+    private final LongAdder cancelledOrders = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> unitsByIsbn = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> centsByAuthor = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, LongAdder> centsByDay = new ConcurrentHashMap<>();
+    private final Leaderboard bestsellers;
+    private final Leaderboard topAuthors;
+    // {first millis, end millis, epoch day} of the last local day looked up;
+    // orders mostly land on the same day, which skips the time-zone math
+    private static volatile long[] lastDay = {0, 0, 0};
+
+    public SalesAggregates() {
+        this(false);
+    }
+
+    public SalesAggregates(boolean leaderboards) {
+        bestsellers = leaderboards ? new Leaderboard() : null;
+        topAuthors = leaderboards ? new Leaderboard() : null;
+    }
+
+    // Counts an order in whatever status it arrives with (restored orders
+    // may already be Completed or Cancelled)
+    public void orderPlaced(Order order) {
+        if (isBooked(order.status)) {
+            addLines(order, 1);
+        }
+        addStatus(order, order.status, 1);
+    }
+
+    public void statusChanged(Order order, OrderStatus previous) {
+        if (previous == order.status) {
+            return;
+        }
+        if (isBooked(previous) != isBooked(order.status)) {
+            addLines(order, isBooked(order.status) ? 1 : -1);
+        }
+        addStatus(order, previous, -1);
+        addStatus(order, order.status, 1);
+    }
+
+    public long bookedOrders() {
+        return bookedOrders.sum();
+    }
+
+    public long bookedRevenueCents() {
+        return bookedCents.sum();
+    }
+
+    public long completedOrders() {
+        return completedOrders.sum();
+    }
+
+    public long completedRevenueCents() {
+        return completedCents.sum();
+    }
+
+    public long cancelledOrders() {
+        return cancelledOrders.sum();
+    }
+
+    public long unitsSold(String isbn) {
+        return sum(unitsByIsbn.get(isbn));
+    }
+
+    public long authorRevenueCents(String author) {
+        return sum(centsByAuthor.get(author));
+    }
+
+    public long dayRevenueCents(java.time.LocalDate day) {
+        return sum(centsByDay.get(day.toEpochDay()));
+    }
+
+    // ISBNs with the most booked units, best first
+    public List<String> bestsellers(int k) {
+        return leaderboard(bestsellers).top(k);
+    }
+
+    // Authors with the most booked revenue, best first
+    public List<String> topAuthors(int k) {
+        return leaderboard(topAuthors).top(k);
+    }
+
+    private static Leaderboard leaderboard(Leaderboard leaderboard) {
+        if (leaderboard == null) {
+            throw new IllegalStateException("Leaderboards are not tracked by this SalesAggregates");
+        }
+        return leaderboard;
+    }
+
+    static long cents(double price) {
+        return Math.round(price * 100);
+    }
+
+    private static boolean isBooked(OrderStatus status) {
+        return status != OrderStatus.CANCELLED;
+    }
+
+    private void addLines(Order order, int sign) {
+        bookedOrders.add(sign);
+        bookedCents.add(sign * order.totalCents);
+        for (int i = 0; i < order.lineCount(); i++) {
+            Book line = order.lineBook(i);
+            int units = order.lineQuantity(i);
+            long cents = order.linePriceCents(i) * units;
+            counter(unitsByIsbn, line.isbn).add(sign * units);
+            counter(centsByAuthor, line.author).add(sign * cents);
+            if (bestsellers != null) {
+                bestsellers.add(line.isbn, sign * units);
+                topAuthors.add(line.author, sign * cents);
+            }
+        }
+        counter(centsByDay, epochDay(order.orderMillis)).add(sign * order.totalCents);
+    }
+
+    // Local calendar day of an instant
+    static long epochDay(long millis) {
+        long[] day = lastDay;
+        if (millis >= day[0] && millis < day[1]) {
+            return day[2];
+        }
+        java.time.ZoneId zone = java.time.ZoneId.systemDefault();
+        java.time.LocalDate date = java.time.Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+        long start = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        long end = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        lastDay = new long[] {start, end, date.toEpochDay()};
+        return date.toEpochDay();
+    }
+
+    private void addStatus(Order order, OrderStatus status, int sign) {
+        if (status == OrderStatus.COMPLETED) {
+            completedOrders.add(sign);
+            completedCents.add(sign * order.totalCents);
+        } else if (status == OrderStatus.CANCELLED) {
+            cancelledOrders.add(sign);
+        }
+    }
+
+    private static <K> LongAdder counter(ConcurrentHashMap<K, LongAdder> counters, K key) {
+        LongAdder counter = counters.get(key);
+        return counter != null ? counter : counters.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    private static long sum(LongAdder counter) {
+        return counter == null ? 0 : counter.sum();
+    }
+}
+
+// === MEMORY LAYOUT HELPERS ===
+class MemoryLayout {
+    private static final int REFERENCE_SIZE = detectReferenceSize();
+
+    private static int detectReferenceSize() {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean bean = java.lang.management.ManagementFactory
+                    .getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            return Boolean.parseBoolean(bean.getVMOption("UseCompressedOops").getValue()) ? 4 : 8;
+        } catch (RuntimeException | LinkageError e) {
+            return "64".equals(System.getProperty("sun.arch.data.model")) ? 8 : 4;
+        }
+    }
+
+    public static int referenceSize() {
+        return REFERENCE_SIZE;
+    }
+}
+
+// === COMMAND LINE OPTIONS ===
+// Parses "--key value" pairs and bare "--flag" switches for the headless commands.
+class CommandLine {
+    private final Map<String, String> options = new HashMap<>();
+
+    public CommandLine(String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            String key = arg.substring(2);
+            int eq = key.indexOf('=');
+            if (eq >= 0) {
+                options.put(key.substring(0, eq), key.substring(eq + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(key, args[++i]);
+            } else {
+                options.put(key, "true");
+            }
+        }
+    }
+
+    public boolean has(String key) {
+        return options.containsKey(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.replace("_", ""));
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Long.parseLong(value.replace("_", ""));
+    }
+
+    public boolean getBoolean(String key) {
+        return Boolean.parseBoolean(options.getOrDefault(key, "false"));
+    }
+
+    public int[] getIntList(String key, String defaultValue) {
+        String[] parts = get(key, defaultValue).split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim().replace("_", ""));
+        }
+        return values;
+    }
+
+    public List<String> getList(String key, String defaultValue) {
+        List<String> values = new ArrayList<>();
+        for (String part : get(key, defaultValue).split(",")) {
+            if (!part.trim().isEmpty()) {
+                values.add(part.trim());
+            }
+        }
+        return values;
+    }
+}
+
+// === BENCHMARK HARNESS ===
+// Headless replacement for the single-shot timings in performanceComparison().
+// Every trial runs warmup and measurement iterations in a forked JVM and feeds
+// results into a sink so the JIT cannot drop the measured work.
+//   java BookstoreSystem bench --sizes 1000,1000000 --dists RANDOM,SORTED --format csv
+class BenchmarkHarness {
+
+    enum Distribution { RANDOM, SORTED, NEARLY_SORTED, REVERSE, DUPLICATES }
+
+    // Shape of the sort key: short unique-ish titles, or long titles sharing a
+    // common prefix so every String comparison has to walk further.
+    enum ElementType { SHORT_TITLE, LONG_TITLE }
+
+    interface Workload {
+        // Untimed per-invocation setup, e.g. restoring the unsorted input
+        default void prepare() {}
+
+        // Timed work; the result is consumed by the harness
+        long run();
+
+        default int opsPerRun() {
+            return 1;
+        }
+    }
+
+    interface WorkloadFactory {
+        Workload create(int size, Distribution dist, ElementType type, long seed, int threads);
+    }
+
+    static class Definition {
+        final String name;
+        final int maxSize;
+        // Threaded benchmarks are repeated for every --threads value
+        final boolean threaded;
+        final WorkloadFactory factory;
+
+        Definition(String name, int maxSize, boolean threaded, WorkloadFactory factory) {
+            this.name = name;
+            this.maxSize = maxSize;
+            this.threaded = threaded;
+            this.factory = factory;
+        }
+    }
+
+    static class Result {
+        final double[] samples;
+        final double allocBytesPerOp;
+        final String error;
+
+        Result(double[] samples, double allocBytesPerOp, String error) {
+            this.samples = samples;
+            this.allocBytesPerOp = allocBytesPerOp;
+            this.error = error;
+        }
+    }
+
+    private static final String LONG_PREFIX = "The Complete Illustrated Reference Guide to ";
+    private static final int QUADRATIC_MAX_SIZE = 20_000;
+    private static final int SEARCH_BATCH = 1024;
+    private static final long ORDER_GAP_MILLIS = 500;
+    private static final int STORE_SHARDS = 64;
+    private static final int ID_BLOCK = 1024;
+    private static final int ID_LEASE = 1 << 20;
+
+    static final Map<String, Definition> BENCHMARKS = new LinkedHashMap<>();
+    static volatile long sink;
+
+    static {
+        registerSort("sort.bubble", QUADRATIC_MAX_SIZE, SortingAlgorithms::bubbleSort);
+        registerSort("sort.selection", QUADRATIC_MAX_SIZE, SortingAlgorithms::selectionSort);
+        registerSort("sort.insertion", QUADRATIC_MAX_SIZE, SortingAlgorithms::insertionSort);
+        registerSort("sort.merge", Integer.MAX_VALUE,
+                books -> SortingAlgorithms.mergeSort(books, 0, books.size() - 1));
+        registerSort("sort.adaptiveMerge", Integer.MAX_VALUE, SortingAlgorithms::adaptiveMergeSort);
+        register("sort.adaptiveMergeReusedBuffer", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            Book[] buffer = new Book[Math.max(size / 2, 1)];
+            return sortWorkload(generateBooks(size, dist, type, seed),
+                    books -> SortingAlgorithms.adaptiveMergeSort(books, buffer));
+        });
+        registerThreaded("sort.parallelMerge", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            return sortWorkload(generateBooks(size, dist, type, seed), books ->
+                    ParallelSortingAlgorithms.parallelMergeSort(books, pool, ParallelSortingAlgorithms.DEFAULT_THRESHOLD));
+        });
+        // Baseline: Arrays.parallelSort forks into the pool it is called from
+        registerThreaded("sort.arraysParallelSort", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            Comparator<Book> byTitle = (a, b) -> a.title.compareTo(b.title);
+            return sortWorkload(generateBooks(size, dist, type, seed), books -> pool.submit(() -> {
+                Book[] items = books.toArray(new Book[0]);
+                Arrays.parallelSort(items, byTitle);
+                ListIterator<Book> it = books.listIterator();
+                for (Book book : items) {
+                    it.next();
+                    it.set(book);
+                }
+            }).join());
+        });
+        registerSort("sort.keyed.title", Integer.MAX_VALUE, books -> KeyedSortingAlgorithms.sortBy(books, BookKey.TITLE));
+        registerSort("sort.comparator.price", Integer.MAX_VALUE,
+                books -> SortingAlgorithms.adaptiveMergeSort(books, BookKey.PRICE.comparator()));
+        registerSort("sort.radix.price", Integer.MAX_VALUE, books -> KeyedSortingAlgorithms.sortBy(books, BookKey.PRICE));
+        registerSort("sort.comparator.authorPrice", Integer.MAX_VALUE,
+                books -> SortingAlgorithms.adaptiveMergeSort(books, BookKey.comparator(BookKey.AUTHOR, BookKey.PRICE)));
+        registerSort("sort.keyed.authorPrice", Integer.MAX_VALUE,
+                books -> KeyedSortingAlgorithms.sortBy(books, BookKey.AUTHOR, BookKey.PRICE));
+        registerSort("sort.quick", Integer.MAX_VALUE,
+                books -> SortingAlgorithms.quickSort(books, 0, books.size() - 1));
+        registerSort("sort.introsort", Integer.MAX_VALUE,
+                books -> SortingAlgorithms.introSort(books, 0, books.size() - 1));
+
+        register("catalog.stockValue.objects", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Book> books = generateBooks(size, dist, type, seed);
+            return () -> {
+                long total = 0;
+                for (Book book : books) {
+                    total += Math.round(book.price * 100) * book.quantity;
+                }
+                return total;
+            };
+        });
+        register("catalog.stockValue.columnar", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            ColumnarCatalog catalog = ColumnarCatalog.fromBooks(generateBooks(size, dist, type, seed), false);
+            return catalog::totalStockValueCents;
+        });
+        register("catalog.stockValue.offHeap", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            ColumnarCatalog catalog = ColumnarCatalog.fromBooks(generateBooks(size, dist, type, seed), true);
+            return catalog::totalStockValueCents;
+        });
+        register("catalog.underPrice.objects", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Book> books = generateBooks(size, dist, type, seed);
+            return () -> {
+                long count = 0;
+                for (Book book : books) {
+                    count += book.price < 20.0 ? 1 : 0;
+                }
+                return count;
+            };
+        });
+        register("catalog.underPrice.columnar", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            ColumnarCatalog catalog = ColumnarCatalog.fromBooks(generateBooks(size, dist, type, seed), false);
+            return () -> catalog.countUnderPrice(2000);
+        });
+
+        // Catalog search over Zipf-distributed words; each run answers 256 queries
+        // of one whole word plus a 3-letter partial word (1 or 2 letters for the
+        // .prefix variants, as typed), or completes 256 prefixes
+        for (int partial = 1; partial <= 3; partial++) {
+            int partialLength = partial;
+            register(partial == 3 ? "catalog.search.index" : "catalog.search.index.prefix" + partial, Integer.MAX_VALUE,
+                    (size, dist, type, seed, threads) -> {
+                List<Book> books = generateWordyBooks(size, seed);
+                CatalogSearchIndex index = new CatalogSearchIndex();
+                for (Book book : books) {
+                    index.add(book);
+                }
+                return catalogQueryWorkload(generateQueries(books, 256, partialLength, seed),
+                        query -> index.search(query, 10).size());
+            });
+        }
+        register("catalog.search.scan", 1_000_000, (size, dist, type, seed, threads) -> {
+            List<Book> books = generateWordyBooks(size, seed);
+            return catalogQueryWorkload(generateQueries(books, 256, 3, seed), query -> {
+                List<String> words = CatalogSearchIndex.tokenize(query);
+                int found = 0;
+                for (Book book : books) {
+                    String text = (book.title + " " + book.author).toLowerCase();
+                    boolean all = true;
+                    for (String word : words) {
+                        all &= text.contains(word);
+                    }
+                    found += all ? 1 : 0;
+                }
+                return found;
+            });
+        });
+        register("catalog.complete.trie", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Book> books = generateWordyBooks(size, seed);
+            CatalogSearchIndex index = new CatalogSearchIndex();
+            for (Book book : books) {
+                index.add(book);
+            }
+            Random rand = new Random(seed);
+            String[] prefixes = new String[256];
+            for (int i = 0; i < prefixes.length; i++) {
+                String word = books.get(rand.nextInt(size)).title.split(" ")[0];
+                prefixes[i] = word.substring(0, 1 + rand.nextInt(Math.min(3, word.length())));
+            }
+            return catalogQueryWorkload(prefixes, prefix -> index.complete(prefix, 5).size());
+        });
+        register("catalog.search.add", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Book> books = generateWordyBooks(size, seed);
+            return new Workload() {
+                public long run() {
+                    CatalogSearchIndex index = new CatalogSearchIndex();
+                    for (Book book : books) {
+                        index.add(book);
+                    }
+                    return index.termCount();
+                }
+
+                public int opsPerRun() {
+                    return books.size();
+                }
+            };
+        });
+
+        // Secondary order indexes against full scans of allOrders. Each run answers
+        // 256 queries: one customer's open orders, or the orders placed in a
+        // window holding ~100 orders.
+        register("orders.byCustomer.scan", 1_000_000, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateCustomerOrders(size, seed);
+            String[] customers = pickCustomers(orders, seed);
+            return orderQueryWorkload(customers.length, i -> {
+                int found = 0;
+                for (Order order : orders) {
+                    if (order.customerName.equals(customers[i]) && order.status == OrderStatus.PROCESSING) {
+                        found++;
+                    }
+                }
+                return found;
+            });
+        });
+        register("orders.byCustomer.index", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateCustomerOrders(size, seed);
+            String[] customers = pickCustomers(orders, seed);
+            CustomerOrderIndex index = new CustomerOrderIndex();
+            for (Order order : orders) {
+                index.add(order);
+            }
+            return orderQueryWorkload(customers.length, i -> {
+                int found = 0;
+                for (PrimitiveIterator.OfInt ids = index.orders(customers[i], false); ids.hasNext(); ids.nextInt()) {
+                    found++;
+                }
+                return found;
+            });
+        });
+        register("orders.byDate.scan", 1_000_000, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateCustomerOrders(size, seed);
+            long[] windows = pickWindows(orders, seed);
+            return orderQueryWorkload(windows.length, i -> {
+                int found = 0;
+                for (Order order : orders) {
+                    long millis = order.orderMillis;
+                    if (millis >= windows[i] && millis < windows[i] + 100 * ORDER_GAP_MILLIS) {
+                        found++;
+                    }
+                }
+                return found;
+            });
+        });
+        register("orders.byDate.skipList", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateCustomerOrders(size, seed);
+            long[] windows = pickWindows(orders, seed);
+            OrderDateIndex index = new OrderDateIndex();
+            for (Order order : orders) {
+                index.add(order);
+            }
+            return orderQueryWorkload(windows.length, i -> {
+                int found = 0;
+                for (PrimitiveIterator.OfInt ids = index.range(windows[i], windows[i] + 100 * ORDER_GAP_MILLIS); ids.hasNext(); ids.nextInt()) {
+                    found++;
+                }
+                return found;
+            });
+        });
+        register("orders.byDate.add", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateCustomerOrders(size, seed);
+            return new Workload() {
+                public long run() {
+                    OrderDateIndex index = new OrderDateIndex();
+                    for (Order order : orders) {
+                        index.add(order);
+                    }
+                    return index.size();
+                }
+
+                public int opsPerRun() {
+                    return orders.size();
+                }
+            };
+        });
+
+        // The order store with every order behind one lock against STORE_SHARDS
+        // shards: a mixed read/write load from concurrent threads, one
+        // customer's orders (256 queries per run), and a sum over all orders
+        // fanned out across the shards
+        registerThreaded("store.mixed.oneLock", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                mixedStoreWorkload(1, size, seed, threads));
+        registerThreaded("store.mixed.sharded", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                mixedStoreWorkload(STORE_SHARDS, size, seed, threads));
+        for (int shards : new int[] {1, STORE_SHARDS}) {
+            String variant = shards == 1 ? "oneLock" : "sharded";
+            register("store.byCustomer." + variant, Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+                List<Order> orders = generateCustomerOrders(size, seed);
+                String[] customers = pickCustomers(orders, seed);
+                ShardedOrderStore store = new ShardedOrderStore(shards);
+                orders.forEach(store::add);
+                return orderQueryWorkload(customers.length, i -> store.customerOrders(customers[i], true).length);
+            });
+            register("store.sumIds." + variant, Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+                ShardedOrderStore store = new ShardedOrderStore(shards);
+                generateCustomerOrders(size, seed).forEach(store::add);
+                return () -> store.sum(order -> order.orderId);
+            });
+        }
+
+        // Each of the threads allocates size/threads order ids: the old counter
+        // behind a lock, one shared atomic counter, and per-thread blocks,
+        // in memory and leasing ids ahead in a forced mark file
+        registerThreaded("ids.lockedCounter", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                concurrentIdWorkload(size, threads, () -> {
+                    int[] counter = {1};
+                    return () -> {
+                        synchronized (counter) {
+                            return counter[0]++;
+                        }
+                    };
+                }));
+        registerThreaded("ids.atomicCounter", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                concurrentIdWorkload(size, threads, () -> new AtomicInteger(1)::getAndIncrement));
+        registerThreaded("ids.blocks", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                concurrentIdWorkload(size, threads, () -> new OrderIdAllocator(1, ID_BLOCK)::next));
+        registerThreaded("ids.blocks.durable", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            Path mark;
+            try {
+                mark = Files.createTempFile("order-ids", ".mark");
+                mark.toFile().deleteOnExit();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return concurrentIdWorkload(size, threads, () -> {
+                try {
+                    Files.deleteIfExists(mark);
+                    return OrderIdAllocator.open(mark, 1, ID_BLOCK, ID_LEASE)::next;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        });
+
+        // Every run pushes or enqueues all n orders and then drains them: 2n operations.
+        // The linkedList and arrayList variants are what MyQueue and MyStack used to wrap.
+        register("queue.linkedList", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            LinkedList<Order> queue = new LinkedList<>();
+            return new Workload() {
+                public long run() {
+                    for (Order order : orders) {
+                        queue.addLast(order);
+                    }
+                    long acc = 0;
+                    while (!queue.isEmpty()) {
+                        acc += queue.removeFirst().orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * orders.size();
+                }
+            };
+        });
+        register("queue.ring", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            MyQueue queue = new MyQueue();
+            return new Workload() {
+                public long run() {
+                    for (Order order : orders) {
+                        queue.enqueue(order);
+                    }
+                    long acc = 0;
+                    for (Order order = queue.dequeue(); order != null; order = queue.dequeue()) {
+                        acc += order.orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * orders.size();
+                }
+            };
+        });
+        register("queue.intRing", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = i;
+            }
+            IntQueue queue = new IntQueue();
+            return new Workload() {
+                public long run() {
+                    for (int id : ids) {
+                        queue.enqueue(id);
+                    }
+                    long acc = 0;
+                    for (int id = queue.dequeue(-1); id >= 0; id = queue.dequeue(-1)) {
+                        acc += id;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * ids.length;
+                }
+            };
+        });
+        register("stack.arrayList", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            ArrayList<Order> stack = new ArrayList<>();
+            return new Workload() {
+                public long run() {
+                    for (Order order : orders) {
+                        stack.add(order);
+                    }
+                    long acc = 0;
+                    while (!stack.isEmpty()) {
+                        acc += stack.remove(stack.size() - 1).orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * orders.size();
+                }
+            };
+        });
+        register("stack.array", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            MyStack stack = new MyStack();
+            return new Workload() {
+                public long run() {
+                    for (Order order : orders) {
+                        stack.push(order);
+                    }
+                    long acc = 0;
+                    for (Order order = stack.pop(); order != null; order = stack.pop()) {
+                        acc += order.orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * orders.size();
+                }
+            };
+        });
+        register("stack.intArray", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = i;
+            }
+            IntStack stack = new IntStack();
+            return new Workload() {
+                public long run() {
+                    for (int id : ids) {
+                        stack.push(id);
+                    }
+                    long acc = 0;
+                    for (int id = stack.pop(-1); id >= 0; id = stack.pop(-1)) {
+                        acc += id;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * ids.length;
+                }
+            };
+        });
+
+        // Build a list of n orders by appending; the java.util.LinkedList run is the per-order-node baseline
+        register("list.append.javaLinkedList", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            return new Workload() {
+                public long run() {
+                    LinkedList<Order> list = new LinkedList<>();
+                    for (Order order : orders) {
+                        list.addLast(order);
+                    }
+                    return list.size();
+                }
+
+                public int opsPerRun() {
+                    return orders.size();
+                }
+            };
+        });
+        register("list.append.unrolled", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            return new Workload() {
+                public long run() {
+                    SinglyLinkedList list = new SinglyLinkedList();
+                    for (Order order : orders) {
+                        list.insertAtEnd(order);
+                    }
+                    return list.size();
+                }
+
+                public int opsPerRun() {
+                    return orders.size();
+                }
+            };
+        });
+        register("list.append.indexed", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            return new Workload() {
+                public long run() {
+                    SinglyLinkedList list = new SinglyLinkedList(true);
+                    for (Order order : orders) {
+                        list.insertAtEnd(order);
+                    }
+                    return list.size();
+                }
+
+                public int opsPerRun() {
+                    return orders.size();
+                }
+            };
+        });
+        // Unindexed search is a full scan, so it only looks up 100 targets per run
+        register("list.search.scan", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                listSearchWorkload(size, dist, seed, false, 100));
+        register("list.search.indexed", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                listSearchWorkload(size, dist, seed, true, Integer.MAX_VALUE));
+        // Deletes a batch of random ids from a freshly built list each run
+        register("list.deleteById.indexed", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            int[] targets = generateTargets(size, Distribution.RANDOM, seed);
+            SinglyLinkedList[] list = new SinglyLinkedList[1];
+            return new Workload() {
+                public void prepare() {
+                    list[0] = new SinglyLinkedList(true);
+                    for (Order order : orders) {
+                        list[0].insertAtEnd(order);
+                    }
+                }
+
+                public long run() {
+                    long acc = 0;
+                    for (int target : targets) {
+                        Order removed = list[0].deleteById(target);
+                        acc += removed == null ? -1 : removed.orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return targets.length;
+                }
+            };
+        });
+
+        // Each of the threads pushes size/threads orders into a 1024-entry recent-orders history
+        registerThreaded("recent.lockFreeRing", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            RecentOrderRing ring = new RecentOrderRing(1024);
+            return concurrentPushWorkload(generateOrders(size), threads, ring::push);
+        });
+        // Baseline: a bounded deque behind one lock
+        registerThreaded("recent.lockedDeque", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            ArrayDeque<Order> deque = new ArrayDeque<>(1024);
+            return concurrentPushWorkload(generateOrders(size), threads, order -> {
+                synchronized (deque) {
+                    if (deque.size() == 1024) {
+                        deque.pollLast();
+                    }
+                    deque.addFirst(order);
+                }
+            });
+        });
+
+        // The k cheapest books: a full sort of a catalog copy then subList, against
+        // bounded heaps (comparator and primitive-key) and quickselect
+        for (int k : new int[] {10, 100, 1000}) {
+            register("topk.cheapest.k" + k + ".sortTruncate", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+                List<Book> books = generateBooks(size, dist, type, seed);
+                return () -> {
+                    List<Book> copy = new ArrayList<>(books);
+                    SortingAlgorithms.adaptiveMergeSort(copy, BookKey.PRICE.comparator());
+                    return copy.subList(0, Math.min(k, copy.size())).size();
+                };
+            });
+            register("topk.cheapest.k" + k + ".heap", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+                List<Book> books = generateBooks(size, dist, type, seed);
+                return () -> TopK.smallest(books, k, BookKey.PRICE.comparator()).size();
+            });
+            register("topk.cheapest.k" + k + ".heapKeyed", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+                List<Book> books = generateBooks(size, dist, type, seed);
+                return () -> TopK.smallest(books, k, BookKey.PRICE).size();
+            });
+            register("topk.cheapest.k" + k + ".quickselect", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+                List<Book> books = generateBooks(size, dist, type, seed);
+                return () -> TopK.select(books, k, BookKey.PRICE.comparator()).size();
+            });
+        }
+        // Live bestseller board: n sales over ~size/4 ISBNs, or top(10) reads of it
+        register("topk.leaderboard.update", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            int[] targets = generateTargets(Math.max(1, size / 4), dist, seed);
+            String[] isbns = new String[targets.length];
+            for (int i = 0; i < isbns.length; i++) {
+                isbns[i] = String.valueOf(targets[i]);
+            }
+            Leaderboard board = new Leaderboard();
+            return new Workload() {
+                public long run() {
+                    for (String isbn : isbns) {
+                        board.add(isbn, 1);
+                    }
+                    return board.size();
+                }
+
+                public int opsPerRun() {
+                    return isbns.length;
+                }
+            };
+        });
+        register("topk.leaderboard.top10", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            Leaderboard board = new Leaderboard();
+            Random rand = new Random(seed);
+            for (int i = 0; i < size; i++) {
+                board.add(String.valueOf(rand.nextInt(Math.max(1, size / 4))), 1);
+            }
+            return () -> board.top(10).size();
+        });
+
+        // Recording n orders (1-4 lines each) into the sales aggregates from
+        // concurrent writers, against one map of totals behind one lock
+        registerThreaded("sales.record.striped", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            SalesAggregates sales = new SalesAggregates();
+            return concurrentPushWorkload(generateSalesOrders(size, seed), threads, sales::orderPlaced);
+        });
+        registerThreaded("sales.record.locked", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            Map<Object, long[]> totals = new HashMap<>();
+            return concurrentPushWorkload(generateSalesOrders(size, seed), threads, order -> {
+                long day = SalesAggregates.epochDay(order.orderMillis);
+                synchronized (totals) {
+                    totals.computeIfAbsent("", k -> new long[1])[0] += order.totalCents;
+                    totals.computeIfAbsent(day, k -> new long[1])[0] += order.totalCents;
+                    for (int i = 0; i < order.lineCount(); i++) {
+                        Book line = order.lineBook(i);
+                        totals.computeIfAbsent(line.isbn, k -> new long[1])[0] += order.lineQuantity(i);
+                        totals.computeIfAbsent(line.author, k -> new long[1])[0] += order.linePriceCents(i) * order.lineQuantity(i);
+                    }
+                }
+            });
+        });
+        // One author's revenue: rescanning every order line, or reading the aggregate
+        register("sales.authorRevenue.rescan", 1_000_000, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateSalesOrders(size, seed);
+            return () -> {
+                long cents = 0;
+                for (Order order : orders) {
+                    for (int i = 0; i < order.lineCount(); i++) {
+                        if (order.lineBook(i).author.equals("Author7")) {
+                            cents += order.linePriceCents(i) * order.lineQuantity(i);
+                        }
+                    }
+                }
+                return cents;
+            };
+        });
+        register("sales.authorRevenue.aggregate", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            SalesAggregates sales = new SalesAggregates();
+            for (Order order : generateSalesOrders(size, seed)) {
+                sales.orderPlaced(order);
+            }
+            return () -> sales.authorRevenueCents("Author7");
+        });
+
+        // Every run enqueues all n orders and then drains them: 2n operations
+        register("scheduler.fifoQueue", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            Order[] orders = generateScheduledOrders(size, seed);
+            MyQueue queue = new MyQueue();
+            return new Workload() {
+                public long run() {
+                    for (Order order : orders) {
+                        queue.enqueue(order);
+                    }
+                    long acc = 0;
+                    while (!queue.isEmpty()) {
+                        acc += queue.dequeue().orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * orders.length;
+                }
+            };
+        });
+        register("scheduler.priorityQueue", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            Order[] orders = generateScheduledOrders(size, seed);
+            PriorityQueue<Order> queue = new PriorityQueue<>(size, Comparator
+                    .<Order>comparingLong(o -> o.orderMillis + o.shipping.promiseMillis)
+                    .thenComparing(o -> -o.shipping.ordinal()));
+            return new Workload() {
+                public long run() {
+                    Collections.addAll(queue, orders);
+                    long acc = 0;
+                    while (!queue.isEmpty()) {
+                        acc += queue.poll().orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * orders.length;
+                }
+            };
+        });
+        register("scheduler.indexedHeap", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            Order[] orders = generateScheduledOrders(size, seed);
+            OrderScheduler scheduler = new OrderScheduler(size);
+            return new Workload() {
+                public long run() {
+                    for (Order order : orders) {
+                        scheduler.add(order);
+                    }
+                    long acc = 0;
+                    while (!scheduler.isEmpty()) {
+                        acc += scheduler.poll().orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * orders.length;
+                }
+            };
+        });
+        // Enqueue all, upgrade a quarter to express, cancel a quarter, drain the rest
+        register("scheduler.upgradeCancel", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            Order[] orders = generateScheduledOrders(size, seed);
+            OrderScheduler scheduler = new OrderScheduler(size);
+            return new Workload() {
+                public void prepare() {
+                    for (Order order : orders) {
+                        order.shipping = ShippingClass.values()[order.orderId % 2];
+                    }
+                }
+
+                public long run() {
+                    for (Order order : orders) {
+                        scheduler.add(order);
+                    }
+                    for (int i = 0; i < orders.length; i += 4) {
+                        orders[i].shipping = ShippingClass.EXPRESS;
+                        scheduler.reschedule(orders[i].orderId);
+                        scheduler.cancel(orders[(i + 2) % orders.length].orderId);
+                    }
+                    long acc = 0;
+                    while (!scheduler.isEmpty()) {
+                        acc += scheduler.poll().orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return 2 * orders.length + orders.length / 2;
+                }
+            };
+        });
+
+        // Lookups in sorted order ids with allocator-style gaps; "recent" targets the newest 1024 ids
+        register("search.sortedIds.binary", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                idSearchWorkload(size, dist, seed, false, SortedIdIndex::binarySearch));
+        register("search.sortedIds.eytzinger", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                idSearchWorkload(size, dist, seed, false, SortedIdIndex::eytzingerSearch));
+        register("search.sortedIds.interpolation", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                idSearchWorkload(size, dist, seed, false, SortedIdIndex::interpolationSearch));
+        register("search.sortedIds.recent.binary", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                idSearchWorkload(size, dist, seed, true, SortedIdIndex::binarySearch));
+        register("search.sortedIds.recent.exponential", Integer.MAX_VALUE, (size, dist, type, seed, threads) ->
+                idSearchWorkload(size, dist, seed, true, SortedIdIndex::exponentialSearch));
+
+        register("search.linear", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            int[] targets = generateTargets(size, dist, seed);
+            return new Workload() {
+                int next;
+
+                public long run() {
+                    Order found = SearchingAlgorithms.linearSearch(orders, targets[next++ & (targets.length - 1)]);
+                    return found == null ? -1 : found.orderId;
+                }
+            };
+        });
+        register("search.binary", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            List<Order> orders = generateOrders(size);
+            int[] targets = generateTargets(size, dist, seed);
+            return new Workload() {
+                public long run() {
+                    long acc = 0;
+                    for (int target : targets) {
+                        Order found = SearchingAlgorithms.binarySearch(orders, target);
+                        acc += found == null ? -1 : found.orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return targets.length;
+                }
+            };
+        });
+        register("search.hashIndex", Integer.MAX_VALUE, (size, dist, type, seed, threads) -> {
+            IntObjectHashMap<Order> index = new IntObjectHashMap<>(size);
+            for (Order order : generateOrders(size)) {
+                index.put(order.orderId, order);
+            }
+            int[] targets = generateTargets(size, dist, seed);
+            return new Workload() {
+                public long run() {
+                    long acc = 0;
+                    for (int target : targets) {
+                        Order found = index.get(target);
+                        acc += found == null ? -1 : found.orderId;
+                    }
+                    return acc;
+                }
+
+                public int opsPerRun() {
+                    return targets.length;
+                }
+            };
+        });
+    }
+
+    static void register(String name, int maxSize, WorkloadFactory factory) {
+        BENCHMARKS.put(name, new Definition(name, maxSize, false, factory));
+    }
+
+    static void registerThreaded(String name, int maxSize, WorkloadFactory factory) {
+        BENCHMARKS.put(name, new Definition(name, maxSize, true, factory));
+    }
+
+    static void registerSort(String name, int maxSize, java.util.function.Consumer<List<Book>> sort) {
+        register(name, maxSize, (size, dist, type, seed, threads) -> sortWorkload(generateBooks(size, dist, type, seed), sort));
+    }
+
+    static Workload sortWorkload(List<Book> source, java.util.function.Consumer<List<Book>> sort) {
+        List<Book> work = new ArrayList<>(source.size());
+        return new Workload() {
+            public void prepare() {
+                work.clear();
+                work.addAll(source);
+            }
+
+            public long run() {
+                sort.accept(work);
+                return work.isEmpty() ? 0 : work.get(0).title.hashCode() ^ work.get(work.size() - 1).title.hashCode();
+            }
+        };
+    }
+
+    // Test data mirrors performanceComparison(): DUPLICATES uses the same
+    // "Book" + rand.nextInt(10000) generator, the other shapes are unique titles
+    static List<Book> generateBooks(int n, Distribution dist, ElementType type, long seed) {
+        Random rand = new Random(seed);
+        String prefix = type == ElementType.LONG_TITLE ? LONG_PREFIX : "";
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = dist == Distribution.DUPLICATES ? rand.nextInt(10000) : i;
+        }
+        if (dist == Distribution.RANDOM) {
+            for (int i = n - 1; i > 0; i--) {
+                int j = rand.nextInt(i + 1);
+                int tmp = keys[i];
+                keys[i] = keys[j];
+                keys[j] = tmp;
+            }
+        }
+        List<Book> books = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            books.add(new Book(String.valueOf(i), prefix + "Book" + keys[i], "Author" + i,
+                    rand.nextDouble() * 100, rand.nextInt(50)));
+        }
+        if (dist == Distribution.SORTED || dist == Distribution.NEARLY_SORTED) {
+            books.sort((a, b) -> a.title.compareTo(b.title));
+        }
+        if (dist == Distribution.NEARLY_SORTED) {
+            // Catalog feed with ~1% of titles out of place
+            for (int i = 0; i < n / 100; i++) {
+                Collections.swap(books, rand.nextInt(n), rand.nextInt(n));
+            }
+        } else if (dist == Distribution.REVERSE) {
+            books.sort((a, b) -> b.title.compareTo(a.title));
+        }
+        return books;
+    }
+
+    // Titles of 2-5 words and two-word author names drawn from a Zipf-distributed
+    // vocabulary, so common words have long posting lists as in a real catalog
+    static List<Book> generateWordyBooks(int n, long seed) {
+        Random rand = new Random(seed);
+        String[] vocabulary = new String[50_000];
+        double[] cumulative = new double[vocabulary.length];
+        double total = 0;
+        for (int i = 0; i < vocabulary.length; i++) {
+            char[] word = new char[3 + rand.nextInt(7)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + rand.nextInt(26));
+            }
+            vocabulary[i] = new String(word);
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        List<Book> books = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            StringBuilder title = new StringBuilder();
+            int words = 2 + rand.nextInt(4);
+            for (int w = 0; w < words; w++) {
+                int at = Arrays.binarySearch(cumulative, rand.nextDouble() * total);
+                title.append(w == 0 ? "" : " ").append(vocabulary[at < 0 ? -at - 1 : at]);
+            }
+            String author = vocabulary[rand.nextInt(2000)] + " " + vocabulary[rand.nextInt(vocabulary.length)];
+            books.add(new Book(String.valueOf(i), title.toString(), author, rand.nextDouble() * 100, rand.nextInt(50)));
+        }
+        return books;
+    }
+
+    // "word par": one whole title word and the first letters of another
+    static String[] generateQueries(List<Book> books, int count, int partialLength, long seed) {
+        Random rand = new Random(seed);
+        String[] queries = new String[count];
+        for (int i = 0; i < count; i++) {
+            String[] words = books.get(rand.nextInt(books.size())).title.split(" ");
+            String partial = words[1].substring(0, Math.min(partialLength, words[1].length()));
+            queries[i] = words[0] + " " + partial;
+        }
+        return queries;
+    }
+
+    static Workload catalogQueryWorkload(String[] queries, java.util.function.ToIntFunction<String> query) {
+        return new Workload() {
+            public long run() {
+                long acc = 0;
+                for (String q : queries) {
+                    acc += query.applyAsInt(q);
+                }
+                return acc;
+            }
+
+            public int opsPerRun() {
+                return queries.length;
+            }
+        };
+    }
+
+    interface IdLookup {
+        int find(SortedIdIndex index, int id);
+    }
+
+    static Workload idSearchWorkload(int size, Distribution dist, long seed, boolean recent, IdLookup lookup) {
+        Random rand = new Random(seed);
+        SortedIdIndex index = new SortedIdIndex();
+        int[] ids = new int[size];
+        int id = 1000;
+        for (int i = 0; i < size; i++) {
+            id += 1 + (rand.nextInt(8) == 0 ? rand.nextInt(64) : 0);
+            ids[i] = id;
+            index.add(id, i);
+        }
+        index.rebuild();
+        int[] targets = generateTargets(size, dist, seed);
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = recent ? ids[size - 1 - rand.nextInt(Math.min(size, 1024))] : ids[targets[i]];
+        }
+        return new Workload() {
+            public long run() {
+                long acc = 0;
+                for (int target : targets) {
+                    acc += lookup.find(index, target);
+                }
+                return acc;
+            }
+
+            public int opsPerRun() {
+                return targets.length;
+            }
+        };
+    }
+
+    static Workload listSearchWorkload(int size, Distribution dist, long seed, boolean indexed, int lookups) {
+        SinglyLinkedList list = new SinglyLinkedList(indexed);
+        for (Order order : generateOrders(size)) {
+            list.insertAtEnd(order);
+        }
+        int[] batch = generateTargets(size, dist, seed);
+        int[] targets = Arrays.copyOf(batch, Math.min(batch.length, lookups));
+        return new Workload() {
+            public long run() {
+                long acc = 0;
+                for (int target : targets) {
+                    Order found = list.search(target);
+                    acc += found == null ? -1 : found.orderId;
+                }
+                return acc;
+            }
+
+            public int opsPerRun() {
+                return targets.length;
+            }
+        };
+    }
+
+    static Workload concurrentPushWorkload(List<Order> orders, int threads,
+                                           java.util.function.Consumer<Order> push) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        return new Workload() {
+            public long run() {
+                List<java.util.concurrent.Future<?>> parts = new ArrayList<>();
+                int chunk = (orders.size() + threads - 1) / threads;
+                for (int t = 0; t < threads; t++) {
+                    List<Order> part = orders.subList(Math.min(orders.size(), t * chunk),
+                            Math.min(orders.size(), (t + 1) * chunk));
+                    parts.add(pool.submit(() -> part.forEach(push)));
+                }
+                for (java.util.concurrent.Future<?> part : parts) {
+                    try {
+                        part.get();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return parts.size();
+            }
+
+            public int opsPerRun() {
+                return orders.size();
+            }
+        };
+    }
+
+    // Each run draws from a fresh allocator, so repeated runs cannot exhaust
+    // the id space; ids are summed so the allocation cannot be optimized away
+    static Workload concurrentIdWorkload(int size, int threads,
+                                         java.util.function.Supplier<java.util.function.IntSupplier> allocators) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        java.util.function.IntSupplier[] allocator = new java.util.function.IntSupplier[1];
+        return new Workload() {
+            public void prepare() {
+                allocator[0] = allocators.get();
+            }
+
+            public long run() {
+                java.util.function.IntSupplier next = allocator[0];
+                List<java.util.concurrent.Future<Long>> parts = new ArrayList<>();
+                int chunk = (size + threads - 1) / threads;
+                for (int t = 0; t < threads; t++) {
+                    int count = Math.max(0, Math.min(size, (t + 1) * chunk) - t * chunk);
+                    parts.add(pool.submit(() -> {
+                        long acc = 0;
+                        for (int i = 0; i < count; i++) {
+                            acc += next.getAsInt();
+                        }
+                        return acc;
+                    }));
+                }
+                long acc = 0;
+                for (java.util.concurrent.Future<Long> part : parts) {
+                    try {
+                        acc += part.get();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return acc;
+            }
+
+            public int opsPerRun() {
+                return size;
+            }
+        };
+    }
+
+    // Orders of 1-4 lines from a 1,000-book catalog by 200 authors, placed in
+    // date order over a month
+    static List<Order> generateSalesOrders(int n, long seed) {
+        Random rand = new Random(seed);
+        List<Book> catalog = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            catalog.add(new Book(String.valueOf(i), "Book" + i, "Author" + (i % 200), 5 + rand.nextInt(9500) / 100.0, 1));
+        }
+        List<Order> orders = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Order order = new Order(i, "Customer" + i, "Address" + i);
+            order.orderMillis = 1_700_000_000_000L + 30 * 86_400_000L * i / n;
+            for (int line = 1 + rand.nextInt(4); line > 0; line--) {
+                order.addBook(catalog.get(rand.nextInt(catalog.size())));
+            }
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    // Orders spread over a month with a random shipping class
+    static Order[] generateScheduledOrders(int n, long seed) {
+        Random rand = new Random(seed);
+        Order[] orders = new Order[n];
+        for (int i = 0; i < n; i++) {
+            orders[i] = new Order(i, "Customer" + i, "Address" + i);
+            orders[i].orderMillis = rand.nextInt(30 * 24) * 3_600_000L;
+            orders[i].shipping = ShippingClass.values()[rand.nextInt(ShippingClass.values().length)];
+        }
+        return orders;
+    }
+
+    static List<Order> generateOrders(int n) {
+        List<Order> orders = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            orders.add(new Order(i, "Customer" + i, "Address" + i));
+        }
+        return orders;
+    }
+
+    // Orders from n / 8 repeat customers, placed ~ORDER_GAP_MILLIS apart, with
+    // all but the newest ~10% already completed
+    static List<Order> generateCustomerOrders(int n, long seed) {
+        Random rand = new Random(seed);
+        List<Order> orders = new ArrayList<>(n);
+        long millis = 1_700_000_000_000L;
+        for (int i = 0; i < n; i++) {
+            Order order = new Order(i, "Customer" + rand.nextInt(Math.max(1, n / 8)), "Address" + i);
+            millis += rand.nextInt((int) (2 * ORDER_GAP_MILLIS));
+            order.orderMillis = millis;
+            if (i < n - n / 10 || rand.nextInt(4) == 0) {
+                order.status = OrderStatus.COMPLETED;
+            }
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    static String[] pickCustomers(List<Order> orders, long seed) {
+        Random rand = new Random(seed);
+        String[] customers = new String[256];
+        for (int i = 0; i < customers.length; i++) {
+            customers[i] = orders.get(rand.nextInt(orders.size())).customerName;
+        }
+        return customers;
+    }
+
+    static long[] pickWindows(List<Order> orders, long seed) {
+        Random rand = new Random(seed);
+        long[] windows = new long[256];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = orders.get(rand.nextInt(orders.size())).orderMillis;
+        }
+        return windows;
+    }
+
+    static Workload orderQueryWorkload(int queries, java.util.function.IntUnaryOperator query) {
+        return new Workload() {
+            public long run() {
+                long acc = 0;
+                for (int i = 0; i < queries; i++) {
+                    acc += query.applyAsInt(i);
+                }
+                return acc;
+            }
+
+            public int opsPerRun() {
+                return queries;
+            }
+        };
+    }
+
+    // Each run applies n operations split evenly across the threads: 80%
+    // lookups by id, 10% status flips and 10% new orders. The store is rebuilt
+    // from the n preloaded orders before every run, so new orders stay new.
+    static Workload mixedStoreWorkload(int shards, int size, long seed, int threads) {
+        final byte lookup = 0;
+        final byte flip = 1;
+        final byte create = 2;
+        List<Order> preload = generateCustomerOrders(size, seed);
+        Random rand = new Random(seed);
+        byte[] kinds = new byte[size];
+        int[] targets = new int[size];
+        List<Order> fresh = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int roll = rand.nextInt(10);
+            kinds[i] = roll < 8 ? lookup : roll == 8 ? flip : create;
+            if (roll < 9) {
+                targets[i] = rand.nextInt(size);
+            } else {
+                targets[i] = fresh.size();
+                fresh.add(new Order(size + fresh.size(), "Customer" + rand.nextInt(Math.max(1, size / 8)), "Address" + i));
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ShardedOrderStore[] store = new ShardedOrderStore[1];
+        return new Workload() {
+            public void prepare() {
+                store[0] = new ShardedOrderStore(shards);
+                preload.forEach(store[0]::add);
+            }
+
+            public long run() {
+                ShardedOrderStore target = store[0];
+                List<java.util.concurrent.Future<Long>> parts = new ArrayList<>();
+                int chunk = (size + threads - 1) / threads;
+                for (int t = 0; t < threads; t++) {
+                    int from = Math.min(size, t * chunk);
+                    int to = Math.min(size, (t + 1) * chunk);
+                    parts.add(pool.submit(() -> {
+                        long acc = 0;
+                        for (int i = from; i < to; i++) {
+                            if (kinds[i] == lookup) {
+                                acc += target.get(targets[i]).orderId;
+                            } else if (kinds[i] == flip) {
+                                Order order = target.get(targets[i]);
+                                if (order.transitionStatus(OrderStatus.PROCESSING, OrderStatus.COMPLETED)
+                                        || order.transitionStatus(OrderStatus.COMPLETED, OrderStatus.PROCESSING)) {
+                                    target.statusChanged(order);
+                                }
+                            } else {
+                                target.add(fresh.get(targets[i]));
+                            }
+                        }
+                        return acc;
+                    }));
+                }
+                long acc = 0;
+                for (java.util.concurrent.Future<Long> part : parts) {
+                    try {
+                        acc += part.get();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return acc;
+            }
+
+            public int opsPerRun() {
+                return size;
+            }
+        };
+    }
+
+    // Lookup keys: RANDOM is uniform, SORTED/REVERSE sweep the id range and
+    // DUPLICATES keeps hitting a handful of hot ids
+    static int[] generateTargets(int n, Distribution dist, long seed) {
+        Random rand = new Random(seed);
+        int[] targets = new int[SEARCH_BATCH];
+        for (int i = 0; i < targets.length; i++) {
+            long step = (long) n * i / targets.length;
+            switch (dist) {
+                case SORTED:
+                case NEARLY_SORTED:
+                    targets[i] = (int) step;
+                    break;
+                case REVERSE:
+                    targets[i] = (int) (n - 1 - step);
+                    break;
+                case DUPLICATES:
+                    targets[i] = rand.nextInt(Math.min(n, 8));
+                    break;
+                default:
+                    targets[i] = rand.nextInt(n);
+            }
+        }
+        return targets;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine cli = new CommandLine(args, 0);
+        if (cli.getBoolean("list")) {
+            for (String name : BENCHMARKS.keySet()) {
+                System.out.println(name);
+            }
+            return;
+        }
+
+        java.util.regex.Pattern filter = java.util.regex.Pattern.compile(cli.get("benchmarks", ".*"));
+        int[] sizes = cli.getIntList("sizes", "1000,10000,100000,1000000,10000000");
+        List<String> dists = cli.getList("dists", "RANDOM,SORTED,NEARLY_SORTED,REVERSE,DUPLICATES");
+        List<String> types = cli.getList("types", "SHORT_TITLE");
+        int forks = cli.getInt("forks", 2);
+        int warmups = cli.getInt("warmup", 5);
+        int iterations = cli.getInt("iterations", 5);
+        long iterationMillis = cli.getLong("iteration-ms", 1000);
+        long seed = cli.getLong("seed", 42);
+        String jvmArgs = cli.get("jvm-args", "");
+        int[] threadCounts = cli.getIntList("threads", defaultThreadCounts());
+
+        if (cli.getBoolean("child")) {
+            // Forked trial: print raw samples for the parent to aggregate
+            Result result = runTrial(BENCHMARKS.get(cli.get("benchmark", "")), sizes[0],
+                    Distribution.valueOf(dists.get(0)), ElementType.valueOf(types.get(0)),
+                    seed, threadCounts[0], warmups, iterations, iterationMillis);
+            if (result.error != null) {
+                System.out.println("ERROR " + result.error);
+            }
+            for (double sample : result.samples) {
+                System.out.println("SAMPLE " + sample);
+            }
+            System.out.println("ALLOC " + result.allocBytesPerOp);
+            return;
+        }
+
+        String format = cli.get("format", "csv");
+        java.io.PrintStream out = cli.has("output")
+                ? new java.io.PrintStream(new java.io.FileOutputStream(cli.get("output", "")), true)
+                : System.out;
+        if (format.equals("csv")) {
+            out.println("benchmark,size,distribution,type,threads,samples,ns_per_op,error_ns,min_ns,max_ns,"
+                    + "alloc_bytes_per_op,status");
+        }
+
+        for (Definition def : BENCHMARKS.values()) {
+            if (!filter.matcher(def.name).matches()) {
+                continue;
+            }
+            for (int size : sizes) {
+                if (size > def.maxSize) {
+                    System.err.println("Skipping " + def.name + " at " + size + " elements (max " + def.maxSize + ")");
+                    continue;
+                }
+                for (String dist : dists) {
+                    for (String type : types) {
+                        for (int threads : def.threaded ? threadCounts : new int[] {1}) {
+                            Result result;
+                            if (forks <= 0) {
+                                result = runTrial(def, size, Distribution.valueOf(dist), ElementType.valueOf(type),
+                                        seed, threads, warmups, iterations, iterationMillis);
+                            } else {
+                                result = runForked(def.name, size, dist, type, seed, threads, forks, warmups,
+                                        iterations, iterationMillis, jvmArgs);
+                            }
+                            report(out, format, def.name, size, dist, type, threads, result);
+                        }
+                    }
+                }
+            }
+        }
+        if (out != System.out) {
+            out.close();
+        }
+    }
+
+    // Powers of two up to the core count, plus the core count itself
+    private static String defaultThreadCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        StringBuilder sb = new StringBuilder();
+        for (int t = 1; t < cores; t *= 2) {
+            sb.append(t).append(',');
+        }
+        return sb.append(cores).toString();
+    }
+
+    static Result runTrial(Definition def, int size, Distribution dist, ElementType type, long seed, int threads,
+                           int warmups, int iterations, long iterationMillis) {
+        if (def == null) {
+            return new Result(new double[0], Double.NaN, "unknown benchmark");
+        }
+        double[] samples = new double[iterations];
+        double[] allocated = new double[1];
+        try {
+            Workload workload = def.factory.create(size, dist, type, seed, threads);
+            for (int i = 0; i < warmups; i++) {
+                runIteration(workload, iterationMillis, def.threaded, allocated);
+            }
+            double allocTotal = 0;
+            for (int i = 0; i < iterations; i++) {
+                samples[i] = runIteration(workload, iterationMillis, def.threaded, allocated);
+                allocTotal += allocated[0];
+            }
+            return new Result(samples, iterations == 0 ? Double.NaN : allocTotal / iterations, null);
+        } catch (StackOverflowError | OutOfMemoryError e) {
+            return new Result(new double[0], Double.NaN, e.getClass().getSimpleName());
+        }
+    }
+
+    // One iteration keeps invoking the workload until the time budget is spent
+    // and returns the average nanoseconds per operation, setup excluded.
+    // Heap bytes allocated by the measured calls are reported through allocBytesPerOp[0];
+    // for threaded workloads, whose work runs on pool threads, that sums every thread.
+    private static double runIteration(Workload workload, long iterationMillis, boolean allThreads,
+                                       double[] allocBytesPerOp) {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+        long measured = 0;
+        long allocated = 0;
+        long ops = 0;
+        long acc = 0;
+        do {
+            workload.prepare();
+            long allocStart = allThreads ? 0 : threadAllocatedBytes();
+            long[][] allStart = allThreads ? allThreadsAllocatedBytes() : null;
+            long start = System.nanoTime();
+            acc ^= workload.run();
+            measured += System.nanoTime() - start;
+            allocated += allThreads ? allocatedSince(allStart) : threadAllocatedBytes() - allocStart;
+            ops += workload.opsPerRun();
+        } while (System.nanoTime() < deadline);
+        sink ^= acc;
+        allocBytesPerOp[0] = allocated < 0 ? Double.NaN : (double) allocated / ops;
+        return (double) measured / ops;
+    }
+
+    private static final java.lang.management.ThreadMXBean THREADS =
+            java.lang.management.ManagementFactory.getThreadMXBean();
+
+    // Returns a negative value when the JVM cannot account allocations per thread
+    private static long threadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes();
+        }
+        return Long.MIN_VALUE / 4;
+    }
+
+    // Thread ids and the bytes each has allocated so far, or null when the
+    // JVM cannot account allocations per thread
+    private static long[][] allThreadsAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        long[] ids = THREADS.getAllThreadIds();
+        return new long[][] {ids, ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(ids)};
+    }
+
+    // Bytes allocated across all threads since the start snapshot. A thread
+    // started since then counts from zero; one that has exited is missed,
+    // which leaves pooled workers - the threaded workloads' case - exact.
+    private static long allocatedSince(long[][] start) {
+        long[][] end = allThreadsAllocatedBytes();
+        if (start == null || end == null) {
+            return Long.MIN_VALUE / 4;
+        }
+        HashMap<Long, Long> before = new HashMap<>();
+        for (int i = 0; i < start[0].length; i++) {
+            before.put(start[0][i], start[1][i]);
+        }
+        long total = 0;
+        for (int i = 0; i < end[0].length; i++) {
+            if (end[1][i] >= 0) {
+                total += end[1][i] - Math.max(0, before.getOrDefault(end[0][i], 0L));
+            }
+        }
+        return total;
+    }
+
+    private static Result runForked(String name, int size, String dist, String type, long seed, int threads,
+                                    int forks, int warmups, int iterations, long iterationMillis, String jvmArgs)
+            throws java.io.IOException, InterruptedException {
+        List<Double> samples = new ArrayList<>();
+        double allocTotal = 0;
+        int allocForks = 0;
+        String error = null;
+        for (int f = 0; f < forks && error == null; f++) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + java.io.File.separator + "bin" + java.io.File.separator + "java");
+            for (String arg : jvmArgs.trim().split("\\s+")) {
+                if (!arg.isEmpty()) {
+                    command.add(arg);
+                }
+            }
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "BookstoreSystem", "bench",
+                    "--child", "--benchmark", name, "--sizes", String.valueOf(size), "--dists", dist,
+                    "--types", type, "--threads", String.valueOf(threads),
+                    "--seed", String.valueOf(seed + f), "--warmup", String.valueOf(warmups),
+                    "--iterations", String.valueOf(iterations), "--iteration-ms", String.valueOf(iterationMillis)));
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (java.io.BufferedReader reader = new java.io.BufferedReader(
+                    new java.io.InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("SAMPLE ")) {
+                        samples.add(Double.parseDouble(line.substring(7)));
+                    } else if (line.startsWith("ALLOC ")) {
+                        allocTotal += Double.parseDouble(line.substring(6));
+                        allocForks++;
+                    } else if (line.startsWith("ERROR ")) {
+                        error = line.substring(6);
+                    }
+                }
+            }
+            if (process.waitFor() != 0 && error == null) {
+                error = "fork exited with " + process.exitValue();
+            }
+        }
+        double[] values = new double[samples.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = samples.get(i);
+        }
+        return new Result(values, allocForks == 0 ? Double.NaN : allocTotal / allocForks, error);
+    }
+
+    private static void report(java.io.PrintStream out, String format, String name, int size, String dist,
+                               String type, int threads, Result result) {
+        double[] s = result.samples;
+        double mean = 0, min = Double.NaN, max = Double.NaN, error = Double.NaN;
+        if (s.length > 0) {
+            min = Double.MAX_VALUE;
+            max = 0;
+            for (double v : s) {
+                mean += v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            mean /= s.length;
+            double variance = 0;
+            for (double v : s) {
+                variance += (v - mean) * (v - mean);
+            }
+            // 99% confidence half-width under a normal approximation
+            error = s.length > 1 ? 2.576 * Math.sqrt(variance / (s.length - 1)) / Math.sqrt(s.length) : 0;
+        } else {
+            mean = Double.NaN;
+        }
+        String status = result.error == null ? "OK" : result.error;
+        if (format.equals("json")) {
+            out.printf(Locale.ROOT, "{\"benchmark\":\"%s\",\"size\":%d,\"distribution\":\"%s\",\"type\":\"%s\","
+                            + "\"threads\":%d,\"samples\":%d,\"nsPerOp\":%s,\"errorNs\":%s,\"minNs\":%s,\"maxNs\":%s,"
+                            + "\"allocBytesPerOp\":%s,\"status\":\"%s\"}%n",
+                    name, size, dist, type, threads, s.length, json(mean), json(error), json(min), json(max),
+                    json(result.allocBytesPerOp), status);
+        } else {
+            out.printf(Locale.ROOT, "%s,%d,%s,%s,%d,%d,%.3f,%.3f,%.3f,%.3f,%.1f,%s%n",
+                    name, size, dist, type, threads, s.length, mean, error, min, max, result.allocBytesPerOp, status);
+        }
+    }
+
+    private static String json(double value) {
+        return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.3f", value);
+    }
+}
+
+// === LOAD DRIVERS ===
+// Headless drivers behind the engine, stock-stress, wal-bench, startup-bench
+// and archive-bench commands. Unlike the harness's workloads these run one
+// long scenario each and check or report something beyond time per op, so
+// they share only the thread plumbing: runThreads starts every worker on a
+// latch and runFor repeats a step on each until a deadline.
+class LoadDrivers {
+
+    // Runs worker(t) for t in [0, threads) on threads released together once
+    // all are started; returns the seconds from release to the last finishing
+    static double runThreads(int threads, boolean virtual, String name, java.util.function.IntConsumer worker)
+            throws InterruptedException {
+        return run(threads, virtual, name, begin -> { }, worker);
+    }
+
+    // Calls step on every thread, over and over, for durationMillis after release
+    static double runFor(int threads, long durationMillis, Runnable step) throws InterruptedException {
+        long[] deadline = new long[1];
+        return run(threads, false, "worker", begin -> deadline[0] = begin + durationMillis * 1_000_000L, t -> {
+            while (System.nanoTime() < deadline[0]) {
+                step.run();
+            }
+        });
+    }
+
+    // onRelease sees the start time before the latch opens, so whatever it
+    // sets is visible to every worker
+    private static double run(int threads, boolean virtual, String name, java.util.function.LongConsumer onRelease,
+                              java.util.function.IntConsumer worker) throws InterruptedException {
+        java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            workers[t] = WorkerThreads.create(name + "-" + t, virtual, () -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                worker.accept(index);
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        onRelease.accept(begin);
+        start.countDown();
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        return (System.nanoTime() - begin) / 1e9;
+    }
+
+    // java BookstoreSystem engine --producers 4 --workers 8 --orders 1000000 [--virtual]
+    static void engine(String[] args) throws Exception {
+        CommandLine cli = new CommandLine(args, 0);
+        int producers = cli.getInt("producers", 4);
+        int workerCount = cli.getInt("workers", Runtime.getRuntime().availableProcessors());
+        int totalOrders = cli.getInt("orders", 1_000_000);
+        int capacity = cli.getInt("capacity", 1024);
+        long workNanos = cli.getLong("work-us", 0) * 1000;
+        boolean virtual = cli.getBoolean("virtual");
+        if (virtual && !WorkerThreads.virtualThreadsAvailable()) {
+            System.err.println("Virtual threads are not available on this JDK, using platform threads");
+            virtual = false;
+        }
+
+        OrderProcessingEngine engine = new OrderProcessingEngine(workerCount, capacity, virtual, order -> {
+            // Simulated fulfillment work per order
+            long end = System.nanoTime() + workNanos;
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+        });
+        engine.start();
+        runThreads(producers, virtual, "producer", p -> {
+            int first = p * (totalOrders / producers) + Math.min(p, totalOrders % producers);
+            int count = totalOrders / producers + (p < totalOrders % producers ? 1 : 0);
+            try {
+                for (int i = 0; i < count; i++) {
+                    engine.submit(new Order(first + i, "Customer" + (first + i), "Address"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        engine.shutdownAndAwait();
+
+        System.out.println("\n=== ORDER PROCESSING ENGINE ===");
+        System.out.println(producers + " producers, " + workerCount + (virtual ? " virtual" : " platform")
+                + " workers, queue capacity " + engine.queueCapacity());
+        engine.printReport();
+    }
+
+    // java BookstoreSystem stock-stress --threads 1,2,4,8,16 --isbns 4
+    // Many threads fight over a few hot ISBNs (a small --stock also sells them out);
+    // afterwards every title must satisfy initial == remaining + committed, and
+    // remaining must never go negative.
+    static void stockStress(String[] args) throws Exception {
+        CommandLine cli = new CommandLine(args, 0);
+        int[] threadCounts = cli.getIntList("threads", "1,2,4,8,16");
+        int isbnCount = cli.getInt("isbns", 4);
+        int initialStock = cli.getInt("stock", 50_000_000);
+        long durationMillis = cli.getLong("duration-ms", 2000);
+        int releasePercent = cli.getInt("release-percent", 20);
+
+        System.out.println("Threads | Reservations/sec | Rejected   | Committed  | Oversold");
+        System.out.println("--------|------------------|------------|------------|---------");
+        boolean failed = false;
+        for (int threads : threadCounts) {
+            List<Book> catalog = new ArrayList<>();
+            String[] isbns = new String[isbnCount];
+            for (int i = 0; i < isbnCount; i++) {
+                isbns[i] = String.format("%03d", i + 1);
+                catalog.add(new Book(isbns[i], "Hot Title " + i, "Author " + i, 10.0, initialStock));
+            }
+            InventoryManager inventory = new InventoryManager(catalog);
+            LongAdder reservations = new LongAdder();
+            LongAdder[] committedPerIsbn = new LongAdder[isbnCount];
+            for (int i = 0; i < isbnCount; i++) {
+                committedPerIsbn[i] = new LongAdder();
+            }
+            double seconds = runFor(threads, durationMillis, () -> {
+                java.util.concurrent.ThreadLocalRandom rand = java.util.concurrent.ThreadLocalRandom.current();
+                // Multi-line order over 1-3 distinct hot ISBNs
+                int lines = 1 + rand.nextInt(Math.min(3, isbnCount));
+                int first = rand.nextInt(isbnCount);
+                String[] lineIsbns = new String[lines];
+                int[] lineQuantities = new int[lines];
+                for (int l = 0; l < lines; l++) {
+                    lineIsbns[l] = isbns[(first + l) % isbnCount];
+                    lineQuantities[l] = 1 + rand.nextInt(3);
+                }
+                InventoryManager.Reservation reservation = inventory.reserveAll(lineIsbns, lineQuantities);
+                if (reservation == null) {
+                    return;
+                }
+                reservations.increment();
+                if (rand.nextInt(100) < releasePercent) {
+                    reservation.release();
+                } else {
+                    reservation.commit();
+                    for (int l = 0; l < lines; l++) {
+                        committedPerIsbn[(first + l) % isbnCount].add(lineQuantities[l]);
+                    }
+                }
+            });
+
+            long oversold = 0;
+            for (int i = 0; i < isbnCount; i++) {
+                Book book = inventory.find(isbns[i]);
+                long accounted = book.quantity + committedPerIsbn[i].sum();
+                if (book.quantity < 0 || accounted != initialStock) {
+                    oversold += Math.abs(initialStock - accounted) + Math.max(0, -book.quantity);
+                }
+            }
+            failed |= oversold != 0;
+            System.out.printf(Locale.ROOT, "%7d | %16.0f | %10d | %10d | %8d%n", threads,
+                    reservations.sum() / seconds, inventory.rejectedReservations(), inventory.committedUnits(), oversold);
+        }
+        if (failed) {
+            System.out.println("\nFAILED: stock accounting does not balance");
+            System.exit(1);
+        }
+        System.out.println("\nOK: no title was oversold");
+    }
+
+    // java BookstoreSystem wal-bench --threads 1,4,16 --modes memory,none,per-record,group
+    // Every thread creates orders for --duration-ms; "memory" only indexes them,
+    // the other modes also append a CREATE record at that durability.
+    static void walBench(String[] args) throws Exception {
+        CommandLine cli = new CommandLine(args, 0);
+        int[] threadCounts = cli.getIntList("threads", "1,4,16");
+        List<String> modes = cli.getList("modes", "memory,none,per-record,group");
+        long durationMillis = cli.getLong("duration-ms", 2000);
+        Path baseDir = cli.has("dir") ? Paths.get(cli.get("dir", ".")) : Files.createTempDirectory("wal-bench");
+        List<Book> catalog = BenchmarkHarness.generateBooks(64, BenchmarkHarness.Distribution.RANDOM,
+                BenchmarkHarness.ElementType.SHORT_TITLE, 42);
+
+        System.out.println("Log directory: " + baseDir);
+        System.out.println("Mode       | Threads | Orders/sec   | fsyncs     | Orders/fsync");
+        System.out.println("-----------|---------|--------------|------------|-------------");
+        for (String mode : modes) {
+            for (int threads : threadCounts) {
+                Path dir = baseDir.resolve(mode + "-" + threads);
+                OrderLog.deleteRecursively(dir);
+                OrderLog log = mode.equals("memory") ? null : OrderLog.open(dir,
+                        OrderLog.Durability.valueOf(mode.toUpperCase(Locale.ROOT).replace('-', '_')), OrderLog.DISCARD);
+                ConcurrentHashMap<Integer, Order> index = new ConcurrentHashMap<>();
+                AtomicInteger ids = new AtomicInteger(1);
+                LongAdder created = new LongAdder();
+                double seconds = runFor(threads, durationMillis, () -> {
+                    java.util.concurrent.ThreadLocalRandom rand = java.util.concurrent.ThreadLocalRandom.current();
+                    Order order = new Order(ids.getAndIncrement(), "Customer " + rand.nextInt(10_000),
+                            "Address " + rand.nextInt(10_000));
+                    for (int b = 1 + rand.nextInt(3); b > 0; b--) {
+                        order.addBook(catalog.get(rand.nextInt(catalog.size())));
+                    }
+                    if (log != null) {
+                        log.appendCreate(order, false);
+                    }
+                    index.put(order.orderId, order);
+                    created.increment();
+                });
+                long fsyncCount = log == null ? 0 : log.fsyncCount();
+                if (log != null) {
+                    log.close();
+                }
+                System.out.printf(Locale.ROOT, "%-10s | %7d | %12.0f | %10d | %11s%n", mode, threads,
+                        created.sum() / seconds, fsyncCount,
+                        fsyncCount == 0 ? "-" : String.format(Locale.ROOT, "%.1f", (double) created.sum() / fsyncCount));
+                OrderLog.deleteRecursively(dir);
+            }
+        }
+        if (!cli.has("dir")) {
+            OrderLog.deleteRecursively(baseDir);
+        }
+    }
+
+    // java BookstoreSystem startup-bench --orders 1000000 --tail 10000
+    // Builds two data directories holding the same orders - one as a full log,
+    // one as a snapshot plus a --tail of log records - then times recovery of
+    // each in a fresh JVM, up to a usable allOrders list and id index.
+    static void startupBench(String[] args) throws Exception {
+        CommandLine cli = new CommandLine(args, 0);
+        if (cli.getBoolean("child")) {
+            runRecovery(Paths.get(cli.get("dir", ".")));
+            return;
+        }
+        int orderCount = cli.getInt("orders", 1_000_000);
+        int tail = Math.min(orderCount, cli.getInt("tail", 10_000));
+        int forks = cli.getInt("forks", 3);
+        String jvmArgs = cli.get("jvm-args", "");
+        Path baseDir = cli.has("dir") ? Paths.get(cli.get("dir", ".")) : Files.createTempDirectory("startup-bench");
+        Path logOnly = baseDir.resolve("log-only");
+        Path withSnapshot = baseDir.resolve("snapshot");
+        OrderLog.deleteRecursively(logOnly);
+        OrderLog.deleteRecursively(withSnapshot);
+
+        List<Book> catalog = BenchmarkHarness.generateBooks(64, BenchmarkHarness.Distribution.RANDOM,
+                BenchmarkHarness.ElementType.SHORT_TITLE, 42);
+        Random rand = new Random(42);
+        OrderSnapshot snapshot = new OrderSnapshot();
+        snapshot.catalog = catalog;
+        Order[] snapshotOrders = new Order[orderCount - tail];
+        snapshot.orders = Arrays.asList(snapshotOrders);
+        long begin = System.nanoTime();
+        try (OrderLog full = OrderLog.open(logOnly, OrderLog.Durability.NONE, OrderLog.DISCARD)) {
+            OrderLog tailLog = null;
+            for (int i = 0; i < orderCount; i++) {
+                Order order = new Order(1001 + i, "Customer " + rand.nextInt(100_000), "Address " + rand.nextInt(100_000));
+                for (int b = 1 + rand.nextInt(3); b > 0; b--) {
+                    order.addBook(catalog.get(rand.nextInt(catalog.size())));
+                }
+                if (rand.nextInt(4) != 0) {
+                    order.status = OrderStatus.COMPLETED;
+                }
+                full.appendCreate(order, false);
+                if (i < orderCount - tail) {
+                    snapshotOrders[i] = order;
+                } else {
+                    if (tailLog == null) {
+                        snapshot.nextOrderId = order.orderId;
+                        tailLog = OrderLog.open(withSnapshot, OrderLog.Durability.NONE, OrderLog.DISCARD);
+                        snapshot.firstSegment = tailLog.rollSegment();
+                    }
+                    tailLog.appendCreate(order, false);
+                }
+            }
+            if (tailLog != null) {
+                tailLog.close();
+            } else {
+                snapshot.nextOrderId = 1001 + orderCount;
+            }
+        }
+        Files.createDirectories(withSnapshot);
+        snapshot.write(OrderSnapshot.path(withSnapshot, snapshot.firstSegment));
+        System.out.printf(Locale.ROOT, "Prepared %d orders in %.1f s (log %.1f MB, snapshot %.1f MB + tail %d)%n",
+                orderCount, (System.nanoTime() - begin) / 1e9, directoryBytes(logOnly) / 1e6,
+                Files.size(OrderSnapshot.path(withSnapshot, snapshot.firstSegment)) / 1e6, tail);
+
+        System.out.println("Source            | Cold start (ms, per fork)");
+        System.out.println("------------------|--------------------------");
+        for (Path dir : new Path[] {logOnly, withSnapshot}) {
+            StringBuilder times = new StringBuilder();
+            for (int f = 0; f < forks; f++) {
+                List<String> command = new ArrayList<>();
+                command.add(System.getProperty("java.home") + java.io.File.separator + "bin" + java.io.File.separator + "java");
+                for (String arg : jvmArgs.trim().split("\\s+")) {
+                    if (!arg.isEmpty()) {
+                        command.add(arg);
+                    }
+                }
+                command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "BookstoreSystem",
+                        "startup-bench", "--child", "--dir", dir.toString()));
+                Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                try (java.io.BufferedReader reader = new java.io.BufferedReader(
+                        new java.io.InputStreamReader(process.getInputStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("STARTUP ")) {
+                            times.append(times.length() == 0 ? "" : ", ").append(line.substring(8));
+                        }
+                    }
+                }
+                process.waitFor();
+            }
+            System.out.printf(Locale.ROOT, "%-17s | %s%n", dir == logOnly ? "full log" : "snapshot + tail", times);
+        }
+        if (!cli.has("dir")) {
+            OrderLog.deleteRecursively(baseDir);
+        }
+    }
+
+    private static long directoryBytes(Path dir) throws IOException {
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                bytes += Files.size(file);
+            }
+        }
+        return bytes;
+    }
+
+    // Same recovery steps as interactive startup: newest snapshot, then the log after it
+    private static void runRecovery(Path dir) throws IOException {
+        long begin = System.nanoTime();
+        List<Order> orders = new ArrayList<>();
+        IntObjectHashMap<Order> index = new IntObjectHashMap<>();
+        long firstSegment = 0;
+        Path latest = OrderSnapshot.latest(dir);
+        if (latest != null) {
+            OrderSnapshot snapshot = OrderSnapshot.load(latest);
+            orders.addAll(snapshot.orders);
+            for (Order order : snapshot.orders) {
+                index.put(order.orderId, order);
+            }
+            firstSegment = snapshot.firstSegment;
+        }
+        OrderLog log = OrderLog.open(dir, OrderLog.Durability.NONE, firstSegment, new OrderLog.Replayer() {
+            public void created(Order order, boolean stockReserved) {
+                orders.add(order);
+                index.put(order.orderId, order);
+            }
+
+            public void statusChanged(int orderId, OrderStatus status) {
+                Order order = index.get(orderId);
+                if (order != null) {
+                    order.status = status;
+                }
+            }
+        });
+        log.close();
+        System.out.printf(Locale.ROOT, "STARTUP %.1f%n", (System.nanoTime() - begin) / 1e6);
+        if (orders.size() != index.size()) {
+            System.err.println("Recovered " + orders.size() + " orders but indexed " + index.size());
+        }
+    }
+
+    // java BookstoreSystem archive-bench --orders 1000000 --lookups 1000000 --cache 256
+    // Measures retained heap with every completed order on the heap against the
+    // same orders archived, then lookup time from the heap index and from the
+    // archive, for random ids (mostly decodes) and for a hot set that fits the cache.
+    static void archiveBench(String[] args) throws Exception {
+        CommandLine cli = new CommandLine(args, 0);
+        int orderCount = cli.getInt("orders", 1_000_000);
+        int lookups = cli.getInt("lookups", 1_000_000);
+        int cacheSize = cli.getInt("cache", 256);
+        Path file = cli.has("file") ? Paths.get(cli.get("file", "")) : Files.createTempFile("order-archive", ".dat");
+        List<Book> catalog = BenchmarkHarness.generateBooks(64, BenchmarkHarness.Distribution.RANDOM,
+                BenchmarkHarness.ElementType.SHORT_TITLE, 42);
+        Random rand = new Random(42);
+        int[] randomIds = new int[lookups];
+        int[] hotIds = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            randomIds[i] = 1001 + rand.nextInt(orderCount);
+            hotIds[i] = 1001 + rand.nextInt(Math.max(1, Math.min(orderCount, cacheSize)));
+        }
+
+        long baseline = usedHeapAfterGc();
+        IntObjectHashMap<Order> heap = new IntObjectHashMap<>(orderCount);
+        for (int i = 0; i < orderCount; i++) {
+            Order order = new Order(1001 + i, "Customer " + rand.nextInt(100_000), "Address " + rand.nextInt(100_000));
+            for (int b = 1 + rand.nextInt(3); b > 0; b--) {
+                order.addBook(catalog.get(rand.nextInt(catalog.size())));
+            }
+            order.status = OrderStatus.COMPLETED;
+            heap.put(order.orderId, order);
+        }
+        long heapBytes = usedHeapAfterGc() - baseline;
+        double heapRandom = lookupNanos(heap::get, randomIds);
+        double heapHot = lookupNanos(heap::get, hotIds);
+
+        System.out.println("Tier    | Heap MB | Heap B/order | Lookup ns (random) | Lookup ns (hot set)");
+        System.out.println("--------|---------|--------------|--------------------|--------------------");
+        System.out.printf(Locale.ROOT, "%-7s | %7.1f | %12.1f | %18.1f | %19.1f%n", "heap",
+                heapBytes / 1e6, (double) heapBytes / orderCount, heapRandom, heapHot);
+        try (OrderArchive archive = OrderArchive.open(file, cacheSize)) {
+            for (int i = 0; i < orderCount; i++) {
+                archive.append(heap.get(1001 + i));
+            }
+            heap = null;
+            long archivedBytes = usedHeapAfterGc() - baseline;
+            double archiveRandom = lookupNanos(archive::get, randomIds);
+            long randomHits = archive.cacheHits();
+            double archiveHot = lookupNanos(archive::get, hotIds);
+            System.out.printf(Locale.ROOT, "%-7s | %7.1f | %12.1f | %18.1f | %19.1f%n", "archive",
+                    archivedBytes / 1e6, (double) archivedBytes / orderCount, archiveRandom, archiveHot);
+            System.out.printf(Locale.ROOT, "Archive file %.1f MB, index %.1f B/order, cache of %d hit %.1f%% (random) / %.1f%% (hot set)%n",
+                    archive.end() / 1e6, (double) archive.indexBytes() / orderCount, cacheSize,
+                    100.0 * randomHits / (2.0 * lookups), 100.0 * (archive.cacheHits() - randomHits) / (2.0 * lookups));
+        }
+        if (!cli.has("file")) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Average nanoseconds per lookup over the second of two passes; the first warms up
+    private static double lookupNanos(java.util.function.IntFunction<Order> lookup, int[] ids) {
+        double nanos = 0;
+        long checksum = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long begin = System.nanoTime();
+            for (int id : ids) {
+                checksum += lookup.apply(id).orderId;
+            }
+            nanos = (double) (System.nanoTime() - begin) / ids.length;
+        }
+        BenchmarkHarness.sink ^= checksum;
+        return nanos;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// === HTTP SERVER ===
+// Headless front end over the menu's operations, built on the JDK's
+// com.sun.net.httpserver. Each request runs on its own virtual thread where
+// the JDK has them (21+); the factory is looked up by reflection so the file
+// still builds on older JDKs, which fall back to a thread per concurrent
+// request. Everything it calls on BookstoreSystem is thread-safe. JSON is
+// written and parsed by hand, one writer per type, with no reflection.
+//
+//   GET  /catalog                         books and stock
+//   GET  /catalog/search?q=WORDS&k=10     ranked matches and completions
+//   POST /orders                          {"customer", "address", "books": [isbn, ...], "shipping"}
+//   GET  /orders/{id}
+//   GET  /orders?customer=NAME&closed=true, or ?from=MILLIS&to=MILLIS
+//   GET  /orders/recent?k=5
+//   POST /orders/{id}/cancel
+//   POST /orders/{id}/upgrade             {"shipping": "express"}
+//   GET  /queue                           pending order ids
+//   POST /queue/process                   completes the next pending order
+//   GET  /sales                           dashboard figures
+//   GET  /reports/top?k=5                 cheapest, lowest stock, bestsellers, authors, largest orders
+//
+// Errors come back as {"error": MESSAGE} with 400, 404, 409 or 413; k is
+// 1 to MAX_K, and bodies are capped at MAX_BODY_BYTES and MAX_DEPTH nesting.
+class BookstoreHttpServer {
+    // Largest k a listing or report may ask for, and largest request body accepted
+    static final int MAX_K = 1000;
+    static final int MAX_BODY_BYTES = 64 * 1024;
+    private static volatile String executorKind = "not started";
+
+    private static final class Reply {
+        final int status;
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    public static com.sun.net.httpserver.HttpServer start(String host, int port, int backlog) throws IOException {
+        // The JDK server closes keep-alive connections beyond this many idle
+        // ones (200 by default), which would churn thousands of clients
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(Math.max(200, backlog)));
+        }
+        // Headers and body go out as separate writes; without TCP_NODELAY the
+        // body waits on the client's delayed ACK, about 40 ms per response
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        com.sun.net.httpserver.HttpServer server =
+                com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress(host, port), backlog);
+        server.createContext("/", BookstoreHttpServer::handle);
+        server.setExecutor(requestExecutor());
+        server.start();
+        return server;
+    }
+
+    // One virtual thread per task on JDK 21+, otherwise a cached pool of platform threads
+    static java.util.concurrent.ExecutorService requestExecutor() {
+        try {
+            java.util.concurrent.ExecutorService executor = (java.util.concurrent.ExecutorService)
+                    java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            executorKind = "virtual threads";
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            executorKind = "platform threads";
+            return java.util.concurrent.Executors.newCachedThreadPool();
+        }
+    }
+
+    static String executorKind() {
+        return executorKind;
+    }
+
+    // Every exchange gets a reply: anything that escapes routing, Errors
+    // included, is answered with a 500 from the finally block before it
+    // propagates, so the client never waits for a response that is not coming
+    private static void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+        Reply reply = null;
+        try {
+            String body = "POST".equals(exchange.getRequestMethod()) ? readBody(exchange.getRequestBody()) : "";
+            if (body == null) {
+                reply = error(413, "Request body exceeds " + MAX_BODY_BYTES + " bytes");
+            } else {
+                reply = route(exchange.getRequestMethod(), exchange.getRequestURI().getPath().split("/"),
+                        query(exchange.getRequestURI().getRawQuery()), body);
+            }
+        } catch (IllegalArgumentException e) {
+            reply = error(400, e.getMessage());
+        } finally {
+            send(exchange, reply != null ? reply : error(500, "Internal server error"));
+        }
+    }
+
+    private static void send(com.sun.net.httpserver.HttpExchange exchange, Reply reply) throws IOException {
+        byte[] bytes = reply.body.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(reply.status, bytes.length);
+        try (java.io.OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Reply route(String method, String[] path, Map<String, String> query, String body) {
+        boolean get = "GET".equals(method);
+        boolean post = "POST".equals(method);
+        String resource = path.length > 1 ? path[1] : "";
+        String action = path.length > 3 ? path[3] : "";
+        switch (resource) {
+            case "catalog":
+                if (get && path.length == 2) {
+                    return ok(books(new Json.Writer().beginObject(), "books", BookstoreSystem.catalog()).endObject());
+                }
+                if (get && path.length == 3 && path[2].equals("search")) {
+                    return searchCatalog(query);
+                }
+                break;
+            case "orders":
+                if (path.length == 2) {
+                    if (post) {
+                        return createOrder(Json.object(Json.parse(body), "request body"));
+                    }
+                    if (get) {
+                        return findOrders(query);
+                    }
+                } else if (path.length == 3 && get) {
+                    if (path[2].equals("recent")) {
+                        return ok(orders(new Json.Writer().beginObject(), "orders",
+                                BookstoreSystem.latestOrders(kParam(query, 5))).endObject());
+                    }
+                    Order order = BookstoreSystem.findOrder(orderId(path[2]));
+                    return order == null ? error(404, "Order " + path[2] + " not found") : ok(order(new Json.Writer(), order));
+                } else if (path.length == 4 && post && action.equals("cancel")) {
+                    int id = orderId(path[2]);
+                    return updated(id, BookstoreSystem.cancel(id));
+                } else if (path.length == 4 && post && action.equals("upgrade")) {
+                    int id = orderId(path[2]);
+                    Map<String, Object> request = Json.object(Json.parse(body), "request body");
+                    return updated(id, BookstoreSystem.upgrade(id, shipping(Json.string(request, "shipping", null))));
+                }
+                break;
+            case "queue":
+                if (get && path.length == 2) {
+                    Json.Writer json = new Json.Writer().beginObject().name("pending").beginArray();
+                    for (int id : BookstoreSystem.pendingOrderIds()) {
+                        json.value(id);
+                    }
+                    return ok(json.endArray().endObject());
+                }
+                if (post && path.length == 3 && path[2].equals("process")) {
+                    Order order = BookstoreSystem.completeNextOrder();
+                    return order == null ? error(404, "No orders in queue") : ok(order(new Json.Writer(), order));
+                }
+                break;
+            case "sales":
+                if (get && path.length == 2) {
+                    return sales();
+                }
+                break;
+            case "reports":
+                if (get && path.length == 3 && path[2].equals("top")) {
+                    return topK(kParam(query, 5));
+                }
+                break;
+            default:
+                break;
+        }
+        return error(404, "No such endpoint: " + method + " " + String.join("/", path));
+    }
+
+    private static Reply createOrder(Map<String, Object> request) {
+        String customer = Json.string(request, "customer", null);
+        if (customer == null || customer.trim().isEmpty()) {
+            throw new IllegalArgumentException("customer is required");
+        }
+        Object isbns = request.get("books");
+        if (!(isbns instanceof List) || ((List<?>) isbns).isEmpty()) {
+            throw new IllegalArgumentException("books must be a non-empty array of ISBNs");
+        }
+        List<Book> books = new ArrayList<>();
+        for (Object isbn : (List<?>) isbns) {
+            Book book = isbn instanceof String ? BookstoreSystem.findBook((String) isbn) : null;
+            if (book == null) {
+                throw new IllegalArgumentException("Unknown book: " + isbn);
+            }
+            books.add(book);
+        }
+        Order order = BookstoreSystem.placeOrder(customer, Json.string(request, "address", ""), books,
+                shipping(Json.string(request, "shipping", "standard")));
+        return order == null ? error(409, "Not enough stock for the selected books")
+                : new Reply(201, order(new Json.Writer(), order).toString());
+    }
+
+    private static Reply findOrders(Map<String, String> query) {
+        List<Order> found;
+        if (query.containsKey("customer")) {
+            found = BookstoreSystem.customerOrders(query.get("customer"), Boolean.parseBoolean(query.get("closed")));
+        } else if (query.containsKey("from") && query.containsKey("to")) {
+            found = BookstoreSystem.ordersPlaced(longParam(query, "from"), longParam(query, "to"));
+        } else {
+            throw new IllegalArgumentException("Pass customer, or from and to in epoch millis");
+        }
+        return ok(orders(new Json.Writer().beginObject(), "orders", found).endObject());
+    }
+
+    private static Reply searchCatalog(Map<String, String> query) {
+        String words = query.getOrDefault("q", "");
+        if (CatalogSearchIndex.tokenize(words).isEmpty()) {
+            throw new IllegalArgumentException("q must contain at least one word");
+        }
+        int k = kParam(query, 10);
+        Json.Writer json = new Json.Writer().beginObject().name("suggestions").beginArray();
+        for (String suggestion : BookstoreSystem.completeQuery(words, 5)) {
+            json.value(suggestion);
+        }
+        json.endArray();
+        return ok(books(json, "matches", BookstoreSystem.searchBooks(words, k)).endObject());
+    }
+
+    private static Reply sales() {
+        SalesAggregates sales = BookstoreSystem.salesAggregates();
+        Json.Writer json = new Json.Writer().beginObject()
+                .name("bookedOrders").value(sales.bookedOrders())
+                .name("bookedRevenueCents").value(sales.bookedRevenueCents())
+                .name("completedOrders").value(sales.completedOrders())
+                .name("completedRevenueCents").value(sales.completedRevenueCents())
+                .name("cancelledOrders").value(sales.cancelledOrders())
+                .name("revenueTodayCents").value(sales.dayRevenueCents(java.time.LocalDate.now()))
+                .name("unitsSold").beginObject();
+        Set<String> authors = new LinkedHashSet<>();
+        for (Book book : BookstoreSystem.catalog()) {
+            json.name(book.isbn).value(sales.unitsSold(book.isbn));
+            authors.add(book.author);
+        }
+        json.endObject().name("authorRevenueCents").beginObject();
+        for (String author : authors) {
+            json.name(author).value(sales.authorRevenueCents(author));
+        }
+        return ok(json.endObject().endObject());
+    }
+
+    private static Reply topK(int k) {
+        SalesAggregates sales = BookstoreSystem.salesAggregates();
+        Json.Writer json = new Json.Writer().beginObject();
+        books(json, "cheapest", TopK.smallest(BookstoreSystem.catalog(), k, BookKey.PRICE));
+        books(json, "lowestStock", TopK.smallest(BookstoreSystem.catalog(), k, BookKey.QUANTITY));
+        json.name("bestsellers").beginArray();
+        for (String isbn : sales.bestsellers(k)) {
+            json.beginObject().name("isbn").value(isbn).name("unitsSold").value(sales.unitsSold(isbn)).endObject();
+        }
+        json.endArray().name("topAuthors").beginArray();
+        for (String author : sales.topAuthors(k)) {
+            json.beginObject().name("author").value(author)
+                    .name("revenueCents").value(sales.authorRevenueCents(author)).endObject();
+        }
+        json.endArray();
+        return ok(orders(json, "largestOrders", BookstoreSystem.largestOrders(k)).endObject());
+    }
+
+    private static Reply updated(int orderId, OrderUpdate result) {
+        switch (result) {
+            case APPLIED:
+                return ok(order(new Json.Writer(), BookstoreSystem.findOrder(orderId)));
+            case NOT_FOUND:
+                return error(404, "Order " + orderId + " not found");
+            case NOT_FASTER:
+                return error(409, "Order " + orderId + " already ships at least that fast");
+            default:
+                return error(409, "Order " + orderId + " is " + BookstoreSystem.findOrder(orderId).status);
+        }
+    }
+
+    static Json.Writer order(Json.Writer json, Order order) {
+        json.beginObject()
+                .name("id").value(order.orderId)
+                .name("customer").value(order.customerName)
+                .name("address").value(order.shippingAddress)
+                .name("placedMillis").value(order.orderMillis)
+                .name("status").value(order.status.label)
+                .name("shipping").value(order.shipping.label)
+                .name("totalCents").value(order.totalCents)
+                .name("lines").beginArray();
+        for (int i = 0; i < order.lineCount(); i++) {
+            Book book = order.lineBook(i);
+            json.beginObject()
+                    .name("isbn").value(book.isbn)
+                    .name("title").value(book.title)
+                    .name("author").value(book.author)
+                    .name("quantity").value(order.lineQuantity(i))
+                    .name("priceCents").value(order.linePriceCents(i))
+                    .endObject();
+        }
+        return json.endArray().endObject();
+    }
+
+    private static Json.Writer orders(Json.Writer json, String name, List<Order> orders) {
+        json.name(name).beginArray();
+        for (Order order : orders) {
+            order(json, order);
+        }
+        return json.endArray();
+    }
+
+    private static Json.Writer books(Json.Writer json, String name, List<Book> books) {
+        json.name(name).beginArray();
+        for (Book book : books) {
+            json.beginObject()
+                    .name("isbn").value(book.isbn)
+                    .name("title").value(book.title)
+                    .name("author").value(book.author)
+                    .name("priceCents").value(SalesAggregates.cents(book.price))
+                    .name("quantity").value(book.quantity)
+                    .endObject();
+        }
+        return json.endArray();
+    }
+
+    private static ShippingClass shipping(String name) {
+        for (ShippingClass shipping : ShippingClass.values()) {
+            if (shipping.label.equalsIgnoreCase(name)) {
+                return shipping;
+            }
+        }
+        throw new IllegalArgumentException("shipping must be standard, priority or express");
+    }
+
+    private static int orderId(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an order id: " + text);
+        }
+    }
+
+    // The k of a listing or report, between 1 and MAX_K
+    private static int kParam(Map<String, String> query, int defaultValue) {
+        String value = query.get("k");
+        int k;
+        try {
+            k = value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            k = 0;
+        }
+        if (k < 1 || k > MAX_K) {
+            throw new IllegalArgumentException("k must be a number from 1 to " + MAX_K);
+        }
+        return k;
+    }
+
+    private static long longParam(Map<String, String> query, String name) {
+        try {
+            return Long.parseLong(query.get(name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> params = new HashMap<>();
+        if (raw == null) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            try {
+                String name = java.net.URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+                String value = eq < 0 ? "" : java.net.URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+                params.put(name, value);
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return params;
+    }
+
+    // The body as text, or null once it runs past MAX_BODY_BYTES
+    private static String readBody(java.io.InputStream in) throws IOException {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            if (bytes.size() + n > MAX_BODY_BYTES) {
+                return null;
+            }
+            bytes.write(buffer, 0, n);
+        }
+        return new String(bytes.toByteArray(), java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private static Reply ok(Json.Writer json) {
+        return new Reply(200, json.toString());
+    }
+
+    private static Reply error(int status, String message) {
+        return new Reply(status, new Json.Writer().beginObject().name("error").value(message).endObject().toString());
+    }
+}
+
+// Hand-rolled JSON: a streaming writer and a small recursive-descent parser
+// producing Map, List, String, Double, Boolean and null
+class Json {
+    // Arrays and objects nested deeper than this are rejected rather than
+    // recursed into, so hostile input cannot overflow the parser's stack
+    static final int MAX_DEPTH = 64;
+
+    static final class Writer {
+        private final StringBuilder out = new StringBuilder(256);
+        // A value was just written, so the next one needs a comma
+        private boolean comma;
+
+        public Writer beginObject() {
+            separate();
+            out.append('{');
+            comma = false;
+            return this;
+        }
+
+        public Writer endObject() {
+            out.append('}');
+            comma = true;
+            return this;
+        }
+
+        public Writer beginArray() {
+            separate();
+            out.append('[');
+            comma = false;
+            return this;
+        }
+
+        public Writer endArray() {
+            out.append(']');
+            comma = true;
+            return this;
+        }
+
+        public Writer name(String name) {
+            separate();
+            quote(name);
+            out.append(':');
+            comma = false;
+            return this;
+        }
+
+        public Writer value(String value) {
+            separate();
+            if (value == null) {
+                out.append("null");
+            } else {
+                quote(value);
+            }
+            comma = true;
+            return this;
+        }
+
+        public Writer value(long value) {
+            separate();
+            out.append(value);
+            comma = true;
+            return this;
+        }
+
+        private void separate() {
+            if (comma) {
+                out.append(',');
+            }
+        }
+
+        private void quote(String text) {
+            out.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+
+    public static Object parse(String text) {
+        int[] pos = {0};
+        Object value = parseValue(text, pos, 0);
+        skipSpace(text, pos);
+        if (pos[0] != text.length()) {
+            throw new IllegalArgumentException("Unexpected JSON at offset " + pos[0]);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> object(Object value, String what) {
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException(what + " must be a JSON object");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    public static String string(Map<String, Object> object, String name, String defaultValue) {
+        Object value = object.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException(name + " must be a string");
+        }
+        return (String) value;
+    }
+
+    private static Object parseValue(String text, int[] pos, int depth) {
+        skipSpace(text, pos);
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        char c = text.charAt(pos[0]);
+        if ((c == '{' || c == '[') && depth == MAX_DEPTH) {
+            throw new IllegalArgumentException("JSON nested deeper than " + MAX_DEPTH + " levels");
+        }
+        if (c == '{') {
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos[0]++;
+            skipSpace(text, pos);
+            if (peek(text, pos) == '}') {
+                pos[0]++;
+                return object;
+            }
+            while (true) {
+                skipSpace(text, pos);
+                String name = parseString(text, pos);
+                skipSpace(text, pos);
+                expect(text, pos, ':');
+                object.put(name, parseValue(text, pos, depth + 1));
+                skipSpace(text, pos);
+                if (peek(text, pos) == ',') {
+                    pos[0]++;
+                } else {
+                    expect(text, pos, '}');
+                    return object;
+                }
+            }
+        }
+        if (c == '[') {
+            List<Object> array = new ArrayList<>();
+            pos[0]++;
+            skipSpace(text, pos);
+            if (peek(text, pos) == ']') {
+                pos[0]++;
+                return array;
+            }
+            while (true) {
+                array.add(parseValue(text, pos, depth + 1));
+                skipSpace(text, pos);
+                if (peek(text, pos) == ',') {
+                    pos[0]++;
+                } else {
+                    expect(text, pos, ']');
+                    return array;
+                }
+            }
+        }
+        if (c == '"') {
+            return parseString(text, pos);
+        }
+        for (String literal : new String[] {"true", "false", "null"}) {
+            if (text.startsWith(literal, pos[0])) {
+                pos[0] += literal.length();
+                return literal.equals("null") ? null : Boolean.valueOf(literal);
+            }
+        }
+        int start = pos[0];
+        while (pos[0] < text.length() && "+-.eE0123456789".indexOf(text.charAt(pos[0])) >= 0) {
+            pos[0]++;
+        }
+        try {
+            return Double.valueOf(text.substring(start, pos[0]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unexpected JSON at offset " + start);
+        }
+    }
+
+    private static String parseString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            if (pos[0] >= text.length()) {
+                throw new IllegalArgumentException("Unterminated JSON string");
+            }
+            char c = text.charAt(pos[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            char escaped = peek(text, pos);
+            pos[0]++;
+            int simple = "bfnrt".indexOf(escaped);
+            if (simple >= 0) {
+                value.append("\b\f\n\r\t".charAt(simple));
+            } else if (escaped == 'u') {
+                if (pos[0] + 4 > text.length()) {
+                    throw new IllegalArgumentException("Bad JSON escape");
+                }
+                try {
+                    value.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad JSON escape");
+                }
+                pos[0] += 4;
+            } else {
+                value.append(escaped);
+            }
+        }
+    }
+
+    private static char peek(String text, int[] pos) {
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        return text.charAt(pos[0]);
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (peek(text, pos) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at offset " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static void skipSpace(String text, int[] pos) {
+        while (pos[0] < text.length() && Character.isWhitespace(text.charAt(pos[0]))) {
+            pos[0]++;
+        }
+    }
+}
+
+// Closed-loop load generator for the HTTP server:
+//   java BookstoreSystem http-load [--host H --port P] [--connections 100,1000,4000]
+//       [--warmup-ms 2000] [--duration-ms 5000] [--writes 10] [--seed-orders 1000]
+// Each connection is a keep-alive socket on its own thread (virtual where the
+// JDK has them) that sends a request, reads the whole response and sends the
+// next. The mix is --writes percent order creations; of the rest, three in
+// four look up a random seeded order and one in four searches the catalog.
+// Latency runs from writing the request to reading the last byte of the
+// response. Without --port the server is started in this JVM on a free port,
+// with --stock 1000000 unless given; the other server options (--scheduler,
+// --data-dir, ...) are passed through to it.
+class HttpLoadTest {
+    private static final String[] SEARCH_WORDS = {"java", "data", "algorithms", "web", "python", "cloud", "learning"};
+
+    // One keep-alive HTTP/1.1 connection with just enough parsing for the server's replies
+    static final class Connection implements AutoCloseable {
+        private final java.net.Socket socket;
+        private final java.io.OutputStream out;
+        private final java.io.InputStream in;
+        private final String host;
+        int status;
+        String body;
+
+        Connection(String host, int port) throws IOException {
+            this.host = host;
+            socket = new java.net.Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new java.io.BufferedOutputStream(socket.getOutputStream());
+            in = new java.io.BufferedInputStream(socket.getInputStream());
+        }
+
+        void send(String method, String path, String json) throws IOException {
+            byte[] payload = json == null ? new byte[0] : json.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            String head = method + " " + path + " HTTP/1.1\r\nHost: " + host + "\r\n"
+                    + (json == null ? "" : "Content-Type: application/json\r\n")
+                    + "Content-Length: " + payload.length + "\r\n\r\n";
+            out.write(head.getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+            out.write(payload);
+            out.flush();
+
+            String statusLine = readLine();
+            status = Integer.parseInt(statusLine.split(" ")[1]);
+            int length = 0;
+            for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                    length = Integer.parseInt(line.substring(colon + 1).trim());
+                }
+            }
+            byte[] bytes = new byte[length];
+            for (int read = 0; read < length; ) {
+                int n = in.read(bytes, read, length - read);
+                if (n < 0) {
+                    throw new java.io.EOFException("Connection closed mid-response");
+                }
+                read += n;
+            }
+            body = new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                if (c < 0) {
+                    throw new java.io.EOFException("Connection closed");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // Latencies in nanos of requests started inside the measured window
+    private static final class Recorder {
+        long[] nanos = new long[1024];
+        int count;
+        long failed;
+
+        void add(long latency) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latency;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine cli = new CommandLine(args, 0);
+        String host = cli.get("host", "127.0.0.1");
+        int port;
+        com.sun.net.httpserver.HttpServer server = null;
+        if (cli.has("port")) {
+            port = cli.getInt("port", 8080);
+        } else {
+            List<String> serverArgs = new ArrayList<>(Arrays.asList(args));
+            serverArgs.add("--port=0");
+            if (!cli.has("stock")) {
+                serverArgs.add("--stock=1000000");
+            }
+            server = BookstoreSystem.startService(new CommandLine(serverArgs.toArray(new String[0]), 0));
+            port = server.getAddress().getPort();
+        }
+        int[] connectionCounts = cli.getIntList("connections", "100,1000,4000");
+        long warmupMillis = cli.getLong("warmup-ms", 2000);
+        long durationMillis = cli.getLong("duration-ms", 5000);
+        int writePercent = cli.getInt("writes", 10);
+
+        // Catalog ISBNs to order from, and orders to look up
+        List<String> isbns = new ArrayList<>();
+        int[] seeded = new int[cli.getInt("seed-orders", 1000)];
+        try (Connection setup = new Connection(host, port)) {
+            setup.send("GET", "/catalog", null);
+            for (Object book : (List<?>) Json.object(Json.parse(setup.body), "catalog").get("books")) {
+                isbns.add((String) Json.object(book, "book").get("isbn"));
+            }
+            for (int i = 0; i < seeded.length; i++) {
+                setup.send("POST", "/orders", orderJson(isbns, i, new Random(i)));
+                if (setup.status != 201) {
+                    throw new IllegalStateException("Seeding orders failed: " + setup.status + " " + setup.body);
+                }
+                seeded[i] = ((Double) Json.object(Json.parse(setup.body), "order").get("id")).intValue();
+            }
+        }
+
+        System.out.println("Target http://" + host + ":" + port + "/ (server on "
+                + (server != null ? BookstoreHttpServer.executorKind() + ", in-process" : "its own JVM") + "), "
+                + writePercent + "% writes, " + durationMillis + " ms measured after " + warmupMillis + " ms warmup");
+        System.out.println("Connections | Requests/s |  p50 ms |  p90 ms |  p99 ms | p99.9 ms |  max ms | Failed");
+        System.out.println("------------|------------|---------|---------|---------|----------|---------|-------");
+        for (int connections : connectionCounts) {
+            run(host, port, connections, warmupMillis, durationMillis, writePercent, isbns, seeded);
+        }
+        if (server != null) {
+            server.stop(0);
+            System.exit(0);
+        }
+    }
+
+    private static void run(String host, int port, int connections, long warmupMillis, long durationMillis,
+                            int writePercent, List<String> isbns, int[] seeded) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + warmupMillis * 1_000_000L;
+        long measureTo = measureFrom + durationMillis * 1_000_000L;
+        Recorder[] recorders = new Recorder[connections];
+        java.util.concurrent.ExecutorService clients = BookstoreHttpServer.requestExecutor();
+        java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(connections);
+        for (int c = 0; c < connections; c++) {
+            Recorder recorder = recorders[c] = new Recorder();
+            int client = c;
+            clients.execute(() -> {
+                Random rand = new Random(client);
+                Connection connection = null;
+                try {
+                    for (long now = System.nanoTime(); now < measureTo; now = System.nanoTime()) {
+                        try {
+                            if (connection == null) {
+                                connection = new Connection(host, port);
+                            }
+                            int roll = rand.nextInt(100);
+                            long begin = System.nanoTime();
+                            if (roll < writePercent) {
+                                connection.send("POST", "/orders", orderJson(isbns, client, rand));
+                            } else if (roll % 4 != 0) {
+                                connection.send("GET", "/orders/" + seeded[rand.nextInt(seeded.length)], null);
+                            } else {
+                                connection.send("GET", "/catalog/search?q="
+                                        + SEARCH_WORDS[rand.nextInt(SEARCH_WORDS.length)], null);
+                            }
+                            long end = System.nanoTime();
+                            if (begin >= measureFrom && begin < measureTo) {
+                                if (connection.status >= 300) {
+                                    recorder.failed++;
+                                } else {
+                                    recorder.add(end - begin);
+                                }
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            if (System.nanoTime() >= measureFrom) {
+                                recorder.failed++;
+                            }
+                            closeQuietly(connection);
+                            connection = null;
+                        }
+                    }
+                } finally {
+                    closeQuietly(connection);
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        clients.shutdown();
+
+        int total = 0;
+        long failed = 0;
+        for (Recorder recorder : recorders) {
+            total += recorder.count;
+            failed += recorder.failed;
+        }
+        long[] latencies = new long[total];
+        int filled = 0;
+        for (Recorder recorder : recorders) {
+            System.arraycopy(recorder.nanos, 0, latencies, filled, recorder.count);
+            filled += recorder.count;
+        }
+        Arrays.sort(latencies);
+        System.out.printf(Locale.ROOT, "%11d | %10.0f | %7.2f | %7.2f | %7.2f | %8.2f | %7.2f | %6d%n",
+                connections, total / (durationMillis / 1000.0), percentile(latencies, 50), percentile(latencies, 90),
+                percentile(latencies, 99), percentile(latencies, 99.9), percentile(latencies, 100), failed);
+    }
+
+    // Nearest-rank percentile in milliseconds
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private static String orderJson(List<String> isbns, int customer, Random rand) {
+        Json.Writer json = new Json.Writer().beginObject()
+                .name("customer").value("Load Customer " + customer)
+                .name("address").value(customer + " Load Street")
+                .name("shipping").value("standard")
+                .name("books").beginArray();
+        for (int b = 1 + rand.nextInt(3); b > 0; b--) {
+            json.value(isbns.get(rand.nextInt(isbns.size())));
+        }
+        return json.endArray().endObject().toString();
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already broken; a new connection replaces it
+            }
+        }
+    }
+}
+
+// === MAIN SYSTEM CLASS ===
+public class BookstoreSystem {
+    private static Scanner scanner = new Scanner(System.in);
+    // Guards the pending queue or scheduler, neither of which is thread-safe
+    private static final Object pendingLock = new Object();
+    private static MyQueue orderQueue = new MyQueue();
+    // Set by --scheduler: pending orders are served by ship-by time instead of FIFO
+    private static OrderScheduler scheduler;
+    private static final int RECENT_ORDERS_KEPT = 64;
+    private static RecentOrderRing recentOrders = new RecentOrderRing(RECENT_ORDERS_KEPT);
+    // Live orders by id and by customer; safe to use from any thread
+    private static ShardedOrderStore orderStore =
+            new ShardedOrderStore(4 * Runtime.getRuntime().availableProcessors());
+    // Guards the id- and date-ordered history below, which the demos, snapshots
+    // and time-range queries read
+    private static final Object historyLock = new Object();
+    private static List<Order> allOrders = new ArrayList<>();
+    // Sorted order ids -> position in allOrders, for the search demonstrations;
+    // rebuilt on next use once an order lands before the end of allOrders
+    private static SortedIdIndex orderIdIndex = new SortedIdIndex();
+    private static boolean orderIdIndexStale;
+    private static OrderDateIndex dateIndex = new OrderDateIndex();
+    // Set by --archive-after: completed orders older than archiveAfterMillis move off the heap
+    private static OrderArchive archive;
+    private static long archiveAfterMillis;
+    private static final int ARCHIVE_CACHE_SIZE = 256;
+    // Completed orders still on the heap, earliest placed first, so a pass
+    // finds the aged ones without scanning the store; guarded by archive
+    private static final PriorityQueue<Order> unarchived =
+            new PriorityQueue<>(Comparator.comparingLong((Order order) -> order.orderMillis));
+    // Compacting allOrders is linear in the live orders, so passes that find
+    // aged orders run at most this often and each takes everything aged so far
+    private static final long ARCHIVE_PASS_MILLIS = 1000;
+    private static long lastArchivePass;
+    private static SalesAggregates sales = new SalesAggregates(true);
+    private static List<Book> bookCatalog = new ArrayList<>();
+    private static CatalogSearchIndex catalogSearch = new CatalogSearchIndex();
+    private static InventoryManager inventory;
+    private static final int FIRST_ORDER_ID = 1001;
+    // One stripe, so ids are issued in order and allOrders stays appended to
+    // at the end; a restart skips at most ORDER_ID_LEASE + ORDER_ID_BLOCK ids
+    private static final int ORDER_ID_STRIPES = 1;
+    private static final int ORDER_ID_BLOCK = 16;
+    private static final int ORDER_ID_LEASE = 256;
+    private static OrderIdAllocator orderIds;
+    private static OrderLog orderLog;
+    private static Path dataDir;
+    private static int snapshotEvery;
+    private static final AtomicInteger recordsSinceSnapshot = new AtomicInteger();
+    // Writers hold the read side while they change orders, stock or the queue
+    // and log the change; a snapshot cut holds the write side. Orders are
+    // copied by reference, so the cut also copies each one's status and
+    // shipping, which later writers may change; with those, the snapshot is
+    // exactly what the log segments before the cut describe
+    private static final java.util.concurrent.locks.ReentrantReadWriteLock cutLock =
+            new java.util.concurrent.locks.ReentrantReadWriteLock();
+    private static final java.util.concurrent.atomic.AtomicBoolean snapshotRunning =
+            new java.util.concurrent.atomic.AtomicBoolean();
+    private static volatile Thread snapshotWriter;
+
+    // Interactive mode takes options only, e.g. --data-dir orders-data to keep
+    // orders across restarts (--snapshot-every N log records, default 1000),
+    // --scheduler to process orders by shipping deadline and --archive-after
+    // MINUTES to move older completed orders to the off-heap archive; anything
+    // else is a headless command
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && !args[0].startsWith("--")) {
+            runCommand(args);
+            return;
+        }
+
+        configure(new CommandLine(args, 0));
+
+        while (true) {
+            displayMainMenu();
+            int choice = scanner.nextInt();
+            scanner.nextLine(); // Consume newline
+
+            switch (choice) {
+                case 1:
+                    demonstrateStackOperations();
+                    break;
+                case 2:
+                    demonstrateQueueOperations();
+                    break;
+                case 3:
+                    demonstrateSortingAlgorithms();
+                    break;
+                case 4:
+                    demonstrateSearchingAlgorithms();
+                    break;
+                case 5:
+                    createNewOrder();
+                    break;
+                case 6:
+                    processNextOrder();
+                    break;
+                case 7:
+                    searchForOrder();
+                    break;
+                case 8:
+                    performanceComparison();
+                    break;
+                case 9:
+                    cancelOrder();
+                    break;
+                case 10:
+                    upgradeShipping();
+                    break;
+                case 11:
+                    searchCatalog();
+                    break;
+                case 12:
+                    findOrders();
+                    break;
+                case 13:
+                    displaySalesDashboard();
+                    break;
+                case 14:
+                    displayTopK();
+                    break;
+                case 0:
+                    System.out.println("\nThank you for using the Bookstore System!");
+                    System.exit(0);
+                default:
+                    System.out.println("Invalid choice! Please try again.");
+            }
+
+            System.out.println("\nPress Enter to continue...");
+            scanner.nextLine();
+        }
+    }
+
+    // Options shared by the menu and serve: loads or recovers the orders and
+    // sets up the scheduler and archive
+    private static void configure(CommandLine options) {
+        snapshotEvery = options.getInt("snapshot-every", 1000);
+        if (options.getBoolean("scheduler")) {
+            scheduler = new OrderScheduler();
+        }
+        initializeSampleData(options.get("data-dir", null));
+        if (options.has("archive-after")) {
+            archiveAfterMillis = options.getLong("archive-after", 0) * 60_000L;
+            openArchive();
+            archiveAgedOrders();
+        }
+    }
+
+    // Headless service: java BookstoreSystem serve --port 8080 [--host 127.0.0.1]
+    // [--backlog 4096] plus the interactive options. --stock N tops every
+    // catalog book up to N copies for load tests; the top-up is not logged, so
+    // it is refused with --data-dir.
+    static com.sun.net.httpserver.HttpServer startService(CommandLine options) throws IOException {
+        configure(options);
+        if (options.has("stock")) {
+            if (dataDir != null) {
+                throw new IllegalArgumentException("--stock cannot be combined with --data-dir");
+            }
+            int stock = options.getInt("stock", 0);
+            for (Book book : bookCatalog) {
+                inventory.restock(book.isbn, Math.max(0, stock - book.quantity));
+            }
+        }
+        return BookstoreHttpServer.start(options.get("host", "127.0.0.1"), options.getInt("port", 8080),
+                options.getInt("backlog", 4096));
+    }
+
+    // Headless entry points that bypass the interactive menu
+    private static void runCommand(String[] args) throws Exception {
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+            case "serve":
+                com.sun.net.httpserver.HttpServer server = startService(new CommandLine(rest, 0));
+                System.out.println("Serving on http://" + server.getAddress().getHostString() + ":"
+                        + server.getAddress().getPort() + "/ (" + BookstoreHttpServer.executorKind() + ")");
+                break;
+            case "http-load":
+                HttpLoadTest.main(rest);
+                break;
+            case "bench":
+                BenchmarkHarness.main(rest);
+                break;
+            case "engine":
+                LoadDrivers.engine(rest);
+                break;
+            case "stock-stress":
+                LoadDrivers.stockStress(rest);
+                break;
+            case "wal-bench":
+                LoadDrivers.walBench(rest);
+                break;
+            case "startup-bench":
+                LoadDrivers.startupBench(rest);
+                break;
+            case "archive-bench":
+                LoadDrivers.archiveBench(rest);
+                break;
+            default:
+                System.err.println("Unknown command: " + args[0]);
+                System.err.println("Usage: java BookstoreSystem [bench|engine|stock-stress|wal-bench|startup-bench|archive-bench|serve|http-load] [options]");
+                System.exit(2);
+        }
+    }
+
+    private static void displayMainMenu() {
+        System.out.println("\n===============================================");
+        System.out.println("    ONLINE BOOKSTORE ORDER PROCESSING SYSTEM    ");
+        System.out.println("===============================================");
+        System.out.println("1. Demonstrate Stack Operations (Recent Orders)");
+        System.out.println("2. Demonstrate Queue Operations (Order Processing)");
+        System.out.println("3. Demonstrate Sorting Algorithms");
+        System.out.println("4. Demonstrate Searching Algorithms");
+        System.out.println("5. Create New Order");
+        System.out.println("6. Process Next Order in Queue");
+        System.out.println("7. Search for Order");
+        System.out.println("8. Performance Comparison of Algorithms");
+        System.out.println("9. Cancel Order");
+        System.out.println("10. Upgrade Order Shipping");
+        System.out.println("11. Search Catalog");
+        System.out.println("12. Find Orders by Customer or Time");
+        System.out.println("13. Sales Dashboard");
+        System.out.println("14. Top-K Reports (Cheapest, Lowest Stock, Bestsellers)");
+        System.out.println("0. Exit");
+        System.out.print("\nEnter your choice: ");
+    }
+
+    // Adds a book to the catalog and its search index
+    private static void addBook(Book book) {
+        bookCatalog.add(book);
+        catalogSearch.add(book);
+    }
+
+    private static void initializeSampleData(String dataDirectory) {
+        // Initialize book catalog
+        addBook(new Book("001", "Java Programming", "John Smith", 45.99, 10));
+        addBook(new Book("002", "Data Structures", "Alice Johnson", 55.99, 8));
+        addBook(new Book("003", "Algorithms Design", "Bob Williams", 65.99, 5));
+        addBook(new Book("004", "Database Systems", "Carol Davis", 50.99, 12));
+        addBook(new Book("005", "Web Development", "David Brown", 40.99, 15));
+        addBook(new Book("006", "Python Basics", "Emma Wilson", 35.99, 20));
+        addBook(new Book("007", "Machine Learning", "Frank Miller", 75.99, 7));
+        addBook(new Book("008", "Cloud Computing", "Grace Taylor", 60.99, 9));
+        inventory = new InventoryManager(bookCatalog);
+
+        if (dataDirectory != null) {
+            dataDir = Paths.get(dataDirectory);
+            recoverOrders(dataDir);
+            if (!allOrders.isEmpty()) {
+                return;
+            }
+        } else {
+            orderIds = new OrderIdAllocator(FIRST_ORDER_ID, ORDER_ID_BLOCK, ORDER_ID_STRIPES);
+        }
+
+        // Create sample orders
+        for (int i = 0; i < 3; i++) {
+            Order order = new Order(orderIds.next(), "Customer " + (i+1), "Address " + (i+1));
+            order.addBook(bookCatalog.get(i % bookCatalog.size()));
+            order.addBook(bookCatalog.get((i+1) % bookCatalog.size()));
+            submitOrder(order, false);
+        }
+    }
+
+    // Loads the newest snapshot, then replays the order log written after it,
+    // restoring the catalog, allOrders, the pending queue, recent orders and
+    // sold stock, keeps the log open for new records and resumes order ids
+    // above both the recovered orders and the previous run's id lease
+    private static void recoverOrders(Path dir) {
+        List<Order> logged = new ArrayList<>();
+        int[] nextId = {FIRST_ORDER_ID};
+        int[] queuedIds = new int[0];
+        long begin = System.nanoTime();
+        try {
+            long firstSegment = 0;
+            Path latest = OrderSnapshot.latest(dir);
+            if (latest != null) {
+                OrderSnapshot snapshot = OrderSnapshot.load(latest);
+                bookCatalog.clear();
+                catalogSearch = new CatalogSearchIndex();
+                for (Book book : snapshot.catalog) {
+                    addBook(book);
+                }
+                inventory = new InventoryManager(bookCatalog);
+                for (Order order : snapshot.orders) {
+                    indexOrder(order);
+                }
+                for (int id : snapshot.recentIds) {
+                    recentOrders.push(orderStore.get(id));
+                }
+                queuedIds = snapshot.queuedIds;
+                nextId[0] = Math.max(nextId[0], snapshot.nextOrderId);
+                firstSegment = snapshot.firstSegment;
+            }
+            orderLog = OrderLog.open(dir, OrderLog.Durability.GROUP, firstSegment, new OrderLog.Replayer() {
+                public void created(Order order, boolean stockReserved) {
+                    if (stockReserved) {
+                        String[] isbns = new String[order.lineCount()];
+                        int[] quantities = new int[isbns.length];
+                        for (int i = 0; i < isbns.length; i++) {
+                            isbns[i] = order.lineBook(i).isbn;
+                            quantities[i] = order.lineQuantity(i);
+                        }
+                        InventoryManager.Reservation reservation = inventory.reserveAll(isbns, quantities);
+                        if (reservation != null) {
+                            reservation.commit();
+                        }
+                        recentOrders.push(order);
+                    }
+                    indexOrder(order);
+                    logged.add(order);
+                    nextId[0] = Math.max(nextId[0], order.orderId + 1);
+                }
+
+                public void statusChanged(int orderId, OrderStatus status) {
+                    Order order = orderStore.get(orderId);
+                    if (order != null) {
+                        if (status == OrderStatus.CANCELLED && order.status != OrderStatus.CANCELLED) {
+                            restockCancelled(order);
+                        }
+                        OrderStatus previous = order.status;
+                        order.status = status;
+                        orderStore.statusChanged(order);
+                        sales.statusChanged(order, previous);
+                    }
+                }
+
+                public void shippingChanged(int orderId, ShippingClass shipping) {
+                    Order order = orderStore.get(orderId);
+                    if (order != null) {
+                        order.shipping = shipping;
+                    }
+                }
+            });
+            orderIds = OrderIdAllocator.open(dir.resolve("order-ids.mark"), nextId[0], ORDER_ID_BLOCK,
+                    ORDER_ID_LEASE, ORDER_ID_STRIPES);
+        } catch (IOException e) {
+            System.out.println("Could not open order log in " + dir + ": " + e.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Thread writer = snapshotWriter;
+                if (writer != null) {
+                    writer.join();
+                }
+                orderLog.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.err.println("Could not close order log: " + e.getMessage());
+            }
+        }));
+
+        int pending = 0;
+        if (scheduler != null) {
+            // The scheduler ranks by deadline, so arrival order does not matter
+            for (Order order : allOrders) {
+                if (order.status == OrderStatus.PROCESSING) {
+                    scheduler.add(order);
+                    pending++;
+                }
+            }
+        } else {
+            // Snapshot queue order first, then orders created after the snapshot
+            for (int id : queuedIds) {
+                Order order = orderStore.get(id);
+                if (order != null && order.status == OrderStatus.PROCESSING) {
+                    orderQueue.enqueue(order);
+                    pending++;
+                }
+            }
+            for (Order order : logged) {
+                if (order.status == OrderStatus.PROCESSING) {
+                    orderQueue.enqueue(order);
+                    pending++;
+                }
+            }
+        }
+        System.out.printf("Recovered %d orders (%d pending) from %s in %.1f ms (%d log records replayed)%n",
+                allOrders.size(), pending, dir, (System.nanoTime() - begin) / 1e6, orderLog.replayedRecords());
+        if (orderLog.truncatedBytes() > 0) {
+            System.out.println("Discarded " + orderLog.truncatedBytes() + " bytes of incomplete log tail");
+        }
+    }
+
+    // Logs, indexes and queues a new order in one step with respect to
+    // snapshot cuts; orders with reserved stock also go on the recent list.
+    // The order is logged and counted before other threads can find it, so a
+    // concurrent cancel or completion never precedes its create record.
+    private static void submitOrder(Order order, boolean stockReserved) {
+        cutLock.readLock().lock();
+        try {
+            order.stockReserved = stockReserved;
+            if (orderLog != null) {
+                orderLog.appendCreate(order, stockReserved);
+            }
+            indexOrder(order);
+            enqueuePending(order);
+            if (stockReserved) {
+                recentOrders.push(order);
+            }
+        } finally {
+            cutLock.readLock().unlock();
+        }
+        maybeSnapshot();
+    }
+
+    // Adds the order to the store, allOrders and every index over them
+    private static void indexOrder(Order order) {
+        // Counted first: once it is in the store, a status change may be recorded against it
+        sales.orderPlaced(order);
+        orderStore.add(order);
+        synchronized (historyLock) {
+            // Ids are issued in order, but a creator can reach this lock after
+            // ones that took later ids; step back past those (at most one per
+            // concurrent creator)
+            int position = allOrders.size();
+            while (position > 0 && allOrders.get(position - 1).orderId > order.orderId) {
+                position--;
+            }
+            if (position == allOrders.size()) {
+                if (!orderIdIndexStale) {
+                    orderIdIndex.add(order.orderId, position);
+                }
+                allOrders.add(order);
+            } else {
+                allOrders.add(position, order);
+                orderIdIndexStale = true;
+            }
+            dateIndex.add(order);
+        }
+    }
+
+    // The archive lives next to the order log, or in a temp file without --data-dir
+    private static void openArchive() {
+        try {
+            Path file;
+            if (dataDir != null) {
+                Files.createDirectories(dataDir);
+                file = dataDir.resolve("archive.dat");
+            } else {
+                file = Files.createTempFile("order-archive", ".dat");
+                file.toFile().deleteOnExit();
+            }
+            archive = OrderArchive.open(file, ARCHIVE_CACHE_SIZE);
+            unarchived.addAll(orderStore.filter(order -> order.status == OrderStatus.COMPLETED));
+        } catch (IOException e) {
+            System.out.println("Could not open order archive: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Moves completed orders placed more than archiveAfterMillis ago from the
+    // heap into the archive. Each order is archived before it leaves the store,
+    // so lookups always find it in one or the other. allOrders is compacted in
+    // place, so it stays in id order, and the sorted id index is rebuilt over
+    // the new positions on next use.
+    private static void archiveAgedOrders() {
+        if (archive == null) {
+            return;
+        }
+        // One pass at a time, and never across a snapshot cut
+        cutLock.readLock().lock();
+        try {
+            synchronized (archive) {
+                long now = System.currentTimeMillis();
+                long cutoff = now - archiveAfterMillis;
+                if (unarchived.isEmpty() || unarchived.peek().orderMillis > cutoff
+                        || now - lastArchivePass < ARCHIVE_PASS_MILLIS) {
+                    return;
+                }
+                lastArchivePass = now;
+                List<Order> aged = new ArrayList<>();
+                while (!unarchived.isEmpty() && unarchived.peek().orderMillis <= cutoff) {
+                    aged.add(unarchived.poll());
+                }
+                aged.sort(Comparator.comparingInt((Order order) -> order.orderId));
+                for (Order order : aged) {
+                    archive.append(order);
+                    orderStore.remove(order.orderId);
+                }
+                synchronized (historyLock) {
+                    // Both lists are in id order, so one merge-style pass drops the aged orders
+                    int kept = 0;
+                    int next = 0;
+                    for (int i = 0; i < allOrders.size(); i++) {
+                        Order order = allOrders.get(i);
+                        while (next < aged.size() && aged.get(next).orderId < order.orderId) {
+                            next++;
+                        }
+                        if (next == aged.size() || aged.get(next) != order) {
+                            allOrders.set(kept++, order);
+                        }
+                    }
+                    allOrders.subList(kept, allOrders.size()).clear();
+                    orderIdIndexStale = true;
+                }
+            }
+        } finally {
+            cutLock.readLock().unlock();
+        }
+    }
+
+    // The sorted id index over current allOrders positions
+    private static SortedIdIndex currentOrderIdIndex() {
+        synchronized (historyLock) {
+            if (orderIdIndexStale) {
+                orderIdIndex = new SortedIdIndex();
+                for (int i = 0; i < allOrders.size(); i++) {
+                    orderIdIndex.add(allOrders.get(i).orderId, i);
+                }
+                orderIdIndexStale = false;
+            }
+            return orderIdIndex;
+        }
+    }
+
+    // Live orders come from the order store, archived ones are decoded from the archive
+    static Order findOrder(int orderId) {
+        Order order = orderStore.get(orderId);
+        return order != null || archive == null ? order : archive.get(orderId);
+    }
+
+    // The operations below back both the menu and the HTTP server and are
+    // safe to call from any thread.
+
+    // Reserves one copy of each book, then creates, queues and logs the
+    // order; null when a book is unknown or out of stock
+    static Order placeOrder(String customer, String address, List<Book> books, ShippingClass shipping) {
+        String[] isbns = new String[books.size()];
+        int[] quantities = new int[books.size()];
+        for (int i = 0; i < books.size(); i++) {
+            isbns[i] = books.get(i).isbn;
+            quantities[i] = 1;
+        }
+        cutLock.readLock().lock();
+        try {
+            // Reserve stock for every line before the order exists, all-or-nothing
+            InventoryManager.Reservation reservation = inventory.reserveAll(isbns, quantities);
+            if (reservation == null) {
+                return null;
+            }
+            Order order = new Order(orderIds.next(), customer, address);
+            order.shipping = shipping;
+            for (Book book : books) {
+                order.addBook(book);
+            }
+            reservation.commit();
+            submitOrder(order, true);
+            return order;
+        } finally {
+            cutLock.readLock().unlock();
+        }
+    }
+
+    // Completes the next pending order; null when none are pending
+    static Order completeNextOrder() {
+        Order order;
+        boolean completed;
+        cutLock.readLock().lock();
+        try {
+            order = pollPending();
+            completed = order != null && order.transitionStatus(OrderStatus.PROCESSING, OrderStatus.COMPLETED);
+            if (completed) {
+                recordStatus(order, OrderStatus.PROCESSING);
+            }
+        } finally {
+            cutLock.readLock().unlock();
+        }
+        if (completed) {
+            maybeSnapshot();
+            if (archive != null) {
+                synchronized (archive) {
+                    unarchived.add(order);
+                }
+            }
+            archiveAgedOrders();
+        }
+        return order;
+    }
+
+    // Cancels a pending order and returns its books to stock
+    static OrderUpdate cancel(int orderId) {
+        cutLock.readLock().lock();
+        try {
+            Order order = findOrder(orderId);
+            if (order == null) {
+                return OrderUpdate.NOT_FOUND;
+            }
+            if (!order.transitionStatus(OrderStatus.PROCESSING, OrderStatus.CANCELLED)) {
+                return OrderUpdate.NOT_PROCESSING;
+            }
+            removePending(order);
+            restockCancelled(order);
+            recordStatus(order, OrderStatus.PROCESSING);
+        } finally {
+            cutLock.readLock().unlock();
+        }
+        maybeSnapshot();
+        return OrderUpdate.APPLIED;
+    }
+
+    // Moves a pending order to a faster shipping class
+    static OrderUpdate upgrade(int orderId, ShippingClass shipping) {
+        cutLock.readLock().lock();
+        try {
+            Order order = findOrder(orderId);
+            if (order == null) {
+                return OrderUpdate.NOT_FOUND;
+            }
+            // The order's monitor is the one transitionStatus holds, so a
+            // concurrent cancel or completion cannot slip in between
+            synchronized (order) {
+                if (order.status != OrderStatus.PROCESSING) {
+                    return OrderUpdate.NOT_PROCESSING;
+                }
+                if (shipping.promiseMillis >= order.shipping.promiseMillis) {
+                    return OrderUpdate.NOT_FASTER;
+                }
+                order.shipping = shipping;
+            }
+            if (scheduler != null) {
+                synchronized (pendingLock) {
+                    scheduler.reschedule(orderId);
+                }
             }
+            recordShipping(order);
+        } finally {
+            cutLock.readLock().unlock();
         }
+        maybeSnapshot();
+        return OrderUpdate.APPLIED;
+    }
 
-        while (i < leftList.size()) {
-            books.set(k++, leftList.get(i++));
+    static List<Order> customerOrders(String customer, boolean includeClosed) {
+        List<Order> orders = new ArrayList<>();
+        for (int id : orderStore.customerOrders(customer, includeClosed)) {
+            Order order = findOrder(id);
+            if (order != null) {
+                orders.add(order);
+            }
         }
-        while (j < rightList.size()) {
-            books.set(k++, rightList.get(j++));
+        return orders;
+    }
+
+    // Orders placed in [from, to) epoch millis
+    static List<Order> ordersPlaced(long from, long to) {
+        // Copied out under the lock, since the skip list is walked in place
+        java.util.stream.IntStream.Builder matched = java.util.stream.IntStream.builder();
+        synchronized (historyLock) {
+            dateIndex.range(from, to).forEachRemaining((java.util.function.IntConsumer) matched::add);
         }
+        List<Order> orders = new ArrayList<>();
+        matched.build().forEach(id -> {
+            Order order = findOrder(id);
+            if (order != null) {
+                orders.add(order);
+            }
+        });
+        return orders;
     }
 
-    // Quick Sort - O(n log n) average, O(n²) worst
-    public static void quickSort(List<Book> books, int low, int high) {
-        if (low < high) {
-            int pi = partition(books, low, high);
-            quickSort(books, low, pi - 1);
-            quickSort(books, pi + 1, high);
+    // The k orders with the largest totals, live or archived
+    static List<Order> largestOrders(int k) {
+        List<Order> candidates = orderStore.largestBy(k, order -> order.totalCents);
+        if (archive != null) {
+            candidates = new ArrayList<>(candidates);
+            candidates.addAll(archive.largestByTotal(k));
         }
+        return TopK.largestBy(candidates, k, order -> order.totalCents);
     }
 
-    private static int partition(List<Book> books, int low, int high) {
-        Book pivot = books.get(high);
-        int i = low - 1;
+    static List<Order> latestOrders(int k) {
+        return recentOrders.latest(k);
+    }
 
-        for (int j = low; j < high; j++) {
-            if (books.get(j).title.compareTo(pivot.title) < 0) {
-                i++;
-                Book temp = books.get(i);
-                books.set(i, books.get(j));
-                books.set(j, temp);
-            }
+    static int[] pendingOrderIds() {
+        synchronized (pendingLock) {
+            return scheduler != null ? scheduler.orderIds() : orderQueue.orderIds();
         }
+    }
 
-        Book temp = books.get(i + 1);
-        books.set(i + 1, books.get(high));
-        books.set(high, temp);
+    // The catalog only grows before the menu or server starts
+    static List<Book> catalog() {
+        return Collections.unmodifiableList(bookCatalog);
+    }
 
-        return i + 1;
+    static Book findBook(String isbn) {
+        return inventory.find(isbn);
     }
-}
 
-// === SEARCHING ALGORITHMS ===
-class SearchingAlgorithms {
+    static List<Book> searchBooks(String query, int k) {
+        return catalogSearch.search(query, k);
+    }
 
-    // Linear Search - O(n)
-    public static Order linearSearch(List<Order> orders, int orderId) {
-        for (Order order : orders) {
-            if (order.orderId == orderId) {
-                return order;
-            }
-        }
-        return null;
+    static List<String> completeQuery(String query, int k) {
+        return catalogSearch.complete(query, k);
     }
 
-    // Binary Search - O(log n)
-    public static Order binarySearch(List<Order> orders, int orderId) {
-        int left = 0;
-        int right = orders.size() - 1;
+    static SalesAggregates salesAggregates() {
+        return sales;
+    }
 
-        while (left <= right) {
-            int mid = left + (right - left) / 2;
+    // Callers hold cutLock's read side across the status change and this call
+    private static void recordStatus(Order order, OrderStatus previous) {
+        orderStore.statusChanged(order);
+        sales.statusChanged(order, previous);
+        if (orderLog != null) {
+            orderLog.appendStatus(order.orderId, order.status);
+        }
+    }
 
-            if (orders.get(mid).orderId == orderId) {
-                return orders.get(mid);
-            }
+    private static void recordShipping(Order order) {
+        if (orderLog != null) {
+            orderLog.appendShipping(order.orderId, order.shipping);
+        }
+    }
 
-            if (orders.get(mid).orderId < orderId) {
-                left = mid + 1;
+    private static void enqueuePending(Order order) {
+        synchronized (pendingLock) {
+            if (scheduler != null) {
+                scheduler.add(order);
             } else {
-                right = mid - 1;
+                orderQueue.enqueue(order);
             }
         }
-
-        return null;
     }
-}
-
-// === MAIN SYSTEM CLASS ===
-public class BookstoreSystem {
-    private static Scanner scanner = new Scanner(System.in);
-    private static MyQueue orderQueue = new MyQueue();
-    private static MyStack recentOrders = new MyStack();
-    private static List<Order> allOrders = new ArrayList<>();
-    private static List<Book> bookCatalog = new ArrayList<>();
-    private static int nextOrderId = 1001;
 
-    public static void main(String[] args) {
-        initializeSampleData();
+    // The next order to process, or null when none are pending
+    private static Order pollPending() {
+        synchronized (pendingLock) {
+            return scheduler != null ? scheduler.poll() : orderQueue.dequeue();
+        }
+    }
 
-        while (true) {
-            displayMainMenu();
-            int choice = scanner.nextInt();
-            scanner.nextLine(); // Consume newline
+    private static Order peekPending() {
+        synchronized (pendingLock) {
+            return scheduler != null ? scheduler.peek() : orderQueue.front();
+        }
+    }
 
-            switch (choice) {
-                case 1:
-                    demonstrateStackOperations();
-                    break;
-                case 2:
-                    demonstrateQueueOperations();
-                    break;
-                case 3:
-                    demonstrateSortingAlgorithms();
-                    break;
-                case 4:
-                    demonstrateSearchingAlgorithms();
-                    break;
-                case 5:
-                    createNewOrder();
-                    break;
-                case 6:
-                    processNextOrder();
-                    break;
-                case 7:
-                    searchForOrder();
-                    break;
-                case 8:
-                    performanceComparison();
-                    break;
-                case 9:
-                    System.out.println("\nThank you for using the Bookstore System!");
-                    System.exit(0);
-                default:
-                    System.out.println("Invalid choice! Please try again.");
+    private static void removePending(Order order) {
+        synchronized (pendingLock) {
+            if (scheduler != null) {
+                scheduler.cancel(order.orderId);
+            } else {
+                orderQueue.remove(order);
             }
-
-            System.out.println("\nPress Enter to continue...");
-            scanner.nextLine();
         }
     }
 
-    private static void displayMainMenu() {
-        System.out.println("\n===============================================");
-        System.out.println("    ONLINE BOOKSTORE ORDER PROCESSING SYSTEM    ");
-        System.out.println("===============================================");
-        System.out.println("1. Demonstrate Stack Operations (Recent Orders)");
-        System.out.println("2. Demonstrate Queue Operations (Order Processing)");
-        System.out.println("3. Demonstrate Sorting Algorithms");
-        System.out.println("4. Demonstrate Searching Algorithms");
-        System.out.println("5. Create New Order");
-        System.out.println("6. Process Next Order in Queue");
-        System.out.println("7. Search for Order");
-        System.out.println("8. Performance Comparison of Algorithms");
-        System.out.println("9. Exit");
-        System.out.print("\nEnter your choice: ");
+    private static void displayPending() {
+        synchronized (pendingLock) {
+            if (scheduler != null) {
+                scheduler.display();
+            } else {
+                orderQueue.display();
+            }
+        }
     }
 
-    private static void initializeSampleData() {
-        // Initialize book catalog
-        bookCatalog.add(new Book("001", "Java Programming", "John Smith", 45.99, 10));
-        bookCatalog.add(new Book("002", "Data Structures", "Alice Johnson", 55.99, 8));
-        bookCatalog.add(new Book("003", "Algorithms Design", "Bob Williams", 65.99, 5));
-        bookCatalog.add(new Book("004", "Database Systems", "Carol Davis", 50.99, 12));
-        bookCatalog.add(new Book("005", "Web Development", "David Brown", 40.99, 15));
-        bookCatalog.add(new Book("006", "Python Basics", "Emma Wilson", 35.99, 20));
-        bookCatalog.add(new Book("007", "Machine Learning", "Frank Miller", 75.99, 7));
-        bookCatalog.add(new Book("008", "Cloud Computing", "Grace Taylor", 60.99, 9));
+    private static void restockCancelled(Order order) {
+        if (order.stockReserved) {
+            for (int i = 0; i < order.lineCount(); i++) {
+                inventory.restock(order.lineBook(i).isbn, order.lineQuantity(i));
+            }
+        }
+    }
 
-        // Create sample orders
-        for (int i = 0; i < 3; i++) {
-            Order order = new Order(nextOrderId++, "Customer " + (i+1), "Address " + (i+1));
-            order.addBook(bookCatalog.get(i % bookCatalog.size()));
-            order.addBook(bookCatalog.get((i+1) % bookCatalog.size()));
-            allOrders.add(order);
-            orderQueue.enqueue(order);
+    // Takes a snapshot every snapshotEvery log records, on a background
+    // thread. The cut waits for writers in flight, rolls the log to a new
+    // segment and copies the state under cutLock's write side: orders by
+    // reference, but their status and shipping - the only fields that change
+    // after creation - by value, so a cancel or upgrade logged after the cut
+    // is replayed against the state it changed. Encoding, writing and log
+    // compaction run after the lock is released.
+    private static void maybeSnapshot() {
+        if (orderLog == null || recordsSinceSnapshot.incrementAndGet() < snapshotEvery
+                || !snapshotRunning.compareAndSet(false, true)) {
+            return;
         }
+        recordsSinceSnapshot.set(0);
+        Thread writer = new Thread(() -> {
+            try {
+                OrderSnapshot snapshot = new OrderSnapshot();
+                Order[] live;
+                byte[] liveStatuses;
+                byte[] liveShippings;
+                long archivedEnd;
+                cutLock.writeLock().lock();
+                try {
+                    snapshot.firstSegment = orderLog.rollSegment();
+                    snapshot.nextOrderId = orderIds.highWaterMark();
+                    for (Book book : bookCatalog) {
+                        snapshot.catalog.add(new Book(book.isbn, book.title, book.author, book.price, book.quantity));
+                    }
+                    synchronized (historyLock) {
+                        live = allOrders.toArray(new Order[0]);
+                    }
+                    liveStatuses = new byte[live.length];
+                    liveShippings = new byte[live.length];
+                    for (int i = 0; i < live.length; i++) {
+                        liveStatuses[i] = (byte) live[i].status.ordinal();
+                        liveShippings[i] = (byte) live[i].shipping.ordinal();
+                    }
+                    archivedEnd = archive != null ? archive.end() : 0;
+                    synchronized (pendingLock) {
+                        snapshot.queuedIds = scheduler != null ? scheduler.orderIds() : orderQueue.orderIds();
+                    }
+                    snapshot.recentIds = recentOrders.orderIds();
+                } finally {
+                    cutLock.writeLock().unlock();
+                }
+                // Archived orders are listed and decoded here too, off the writers' threads.
+                // They are private copies that never change, so only live orders take
+                // their status and shipping from the cut.
+                if (archive == null) {
+                    snapshot.orders = Arrays.asList(live);
+                    snapshot.statuses = liveStatuses;
+                    snapshot.shippings = liveShippings;
+                } else {
+                    snapshot.orders = OrderArchive.mergeById(Arrays.asList(live), archive.ordersBefore(archivedEnd));
+                    snapshot.statuses = new byte[snapshot.orders.size()];
+                    snapshot.shippings = new byte[snapshot.orders.size()];
+                    int index = 0;
+                    int next = 0;
+                    for (Order order : snapshot.orders) {
+                        if (next < live.length && live[next] == order) {
+                            snapshot.statuses[index] = liveStatuses[next];
+                            snapshot.shippings[index] = liveShippings[next++];
+                        } else {
+                            snapshot.statuses[index] = (byte) order.status.ordinal();
+                            snapshot.shippings[index] = (byte) order.shipping.ordinal();
+                        }
+                        index++;
+                    }
+                }
+                Path file = OrderSnapshot.path(dataDir, snapshot.firstSegment);
+                snapshot.write(file);
+                orderLog.deleteSegmentsBefore(snapshot.firstSegment);
+                OrderSnapshot.deleteOlder(dataDir, file);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            } finally {
+                snapshotRunning.set(false);
+            }
+        }, "snapshot-writer");
+        writer.setDaemon(true);
+        snapshotWriter = writer;
+        writer.start();
     }
 
     private static void demonstrateStackOperations() {
         System.out.println("\n=== STACK OPERATIONS DEMONSTRATION ===");
         System.out.println("Stack follows LIFO (Last In, First Out) principle");
 
-        // Clear stack and add sample orders
-        recentOrders = new MyStack();
+        // Scratch stack for the demo; the real recent-orders history is a bounded ring
+        MyStack stack = new MyStack();
 
         System.out.println("\n1. Pushing orders to stack...");
-        for (int i = 0; i < 3; i++) {
+        for (int i = 0; i < Math.min(3, allOrders.size()); i++) {
             Order order = allOrders.get(i);
-            recentOrders.push(order);
+            stack.push(order);
             System.out.println("   Pushed Order #" + order.orderId);
         }
 
-        recentOrders.display();
+        stack.display();
 
         System.out.println("\n2. Peek operation (view top without removing):");
-        Order top = recentOrders.peek();
+        Order top = stack.peek();
         if (top != null) {
             System.out.println("   Top order: #" + top.orderId);
+        } else {
+            System.out.println("   Stack is empty!");
         }
 
         System.out.println("\n3. Pop operation (remove and return top):");
-        Order popped = recentOrders.pop();
+        Order popped = stack.pop();
         if (popped != null) {
             System.out.println("   Popped Order #" + popped.orderId);
+        } else {
+            System.out.println("   Stack is empty!");
         }
 
-        recentOrders.display();
+        stack.display();
 
         System.out.println("\n4. Stack Properties:");
         System.out.println("   - Time Complexity: O(1) for push, pop, peek");
         System.out.println("   - Space Complexity: O(n)");
         System.out.println("   - Use Case: Recent order history, undo operations");
+
+        recentOrders.display(5);
+        System.out.println("   (" + recentOrders.pushed() + " orders pushed since startup, at most "
+                + recentOrders.capacity() + " retained)");
     }
 
     private static void demonstrateQueueOperations() {
         System.out.println("\n=== QUEUE OPERATIONS DEMONSTRATION ===");
         System.out.println("Queue follows FIFO (First In, First Out) principle");
+        if (scheduler != null) {
+            System.out.println("(--scheduler mode: pending orders are served by ship-by time instead)");
+        }
 
-        orderQueue.display();
+        displayPending();
 
         System.out.println("\n1. Front operation (view first without removing):");
-        Order front = orderQueue.front();
+        Order front = peekPending();
         if (front != null) {
             System.out.println("   Front order: #" + front.orderId);
+        } else {
+            System.out.println("   Queue is empty!");
         }
 
         System.out.println("\n2. Enqueue operation (add to rear):");
         System.out.print("   Enter customer name: ");
         String name = scanner.nextLine();
-        Order newOrder = new Order(nextOrderId++, name, "Sample Address");
+        Order newOrder = new Order(orderIds.next(), name, "Sample Address");
         newOrder.addBook(bookCatalog.get(0));
-        orderQueue.enqueue(newOrder);
-        allOrders.add(newOrder);
+        submitOrder(newOrder, false);
         System.out.println("   Enqueued Order #" + newOrder.orderId);
 
-        orderQueue.display();
+        displayPending();
 
         System.out.println("\n3. Queue Properties:");
         System.out.println("   - Time Complexity: O(1) for enqueue, dequeue, front");
@@ -548,6 +9687,9 @@ public class BookstoreSystem {
         System.out.println("3. Insertion Sort - O(n²)");
         System.out.println("4. Merge Sort - O(n log n)");
         System.out.println("5. Quick Sort - O(n log n) average");
+        System.out.println("6. Introsort - O(n log n) worst case");
+        System.out.println("7. Adaptive Merge Sort - O(n) on presorted data");
+        System.out.println("8. Parallel Merge Sort - O(n log n / p)");
         System.out.print("Enter choice: ");
 
         int choice = scanner.nextInt();
@@ -587,6 +9729,24 @@ public class BookstoreSystem {
                 System.out.println("- Partition-based divide and conquer");
                 System.out.println("- Fast average case, in-place sorting");
                 break;
+            case 6:
+                SortingAlgorithms.introSort(testBooks, 0, testBooks.size() - 1);
+                System.out.println("\nUsing INTROSORT:");
+                System.out.println("- Quick sort with ninther pivots and three-way partitioning");
+                System.out.println("- Falls back to heap sort, so never quadratic");
+                break;
+            case 7:
+                SortingAlgorithms.adaptiveMergeSort(testBooks);
+                System.out.println("\nUsing ADAPTIVE MERGE SORT:");
+                System.out.println("- Merges the sorted runs already present in the data");
+                System.out.println("- Stable, one scratch buffer instead of a list per merge");
+                break;
+            case 8:
+                ParallelSortingAlgorithms.parallelMergeSort(testBooks);
+                System.out.println("\nUsing PARALLEL MERGE SORT:");
+                System.out.println("- Fork-join: halves sorted and merged on all cores");
+                System.out.println("- Small inputs fall back to the sequential merge sort");
+                break;
             default:
                 System.out.println("Invalid choice!");
                 return;
@@ -609,6 +9769,9 @@ public class BookstoreSystem {
         for (Order order : allOrders) {
             System.out.println("  Order #" + order.orderId + " - " + order.customerName);
         }
+        if (archive != null && archive.size() > 0) {
+            System.out.println("  (" + archive.size() + " archived orders are not searched here; Search for Order finds them)");
+        }
 
         System.out.print("\nEnter Order ID to search: ");
         int searchId = scanner.nextInt();
@@ -628,13 +9791,10 @@ public class BookstoreSystem {
         System.out.println("   Time: " + (endTime - startTime) + " nanoseconds");
         System.out.println("   Complexity: O(n) - checks each element");
 
-        // Sort orders for binary search
-        List<Order> sortedOrders = new ArrayList<>(allOrders);
-        sortedOrders.sort((a, b) -> Integer.compare(a.orderId, b.orderId));
-
+        // indexOrder keeps allOrders in id order even when ids arrive slightly out of order
         System.out.println("\n2. BINARY SEARCH (on sorted list):");
         startTime = System.nanoTime();
-        found = SearchingAlgorithms.binarySearch(sortedOrders, searchId);
+        found = SearchingAlgorithms.binarySearch(allOrders, searchId);
         endTime = System.nanoTime();
 
         if (found != null) {
@@ -646,6 +9806,39 @@ public class BookstoreSystem {
         System.out.println("   Time: " + (endTime - startTime) + " nanoseconds");
         System.out.println("   Complexity: O(log n) - divides search space in half");
         System.out.println("   Note: Requires sorted data!");
+
+        SortedIdIndex idIndex = currentOrderIdIndex();
+        System.out.println("\n3. EYTZINGER SEARCH (ids in breadth-first tree layout):");
+        startTime = System.nanoTime();
+        int position = idIndex.eytzingerSearch(searchId);
+        endTime = System.nanoTime();
+        printIndexedResult(position, endTime - startTime);
+        System.out.println("   Complexity: O(log n) - branchless, top levels stay in cache");
+
+        System.out.println("\n4. INTERPOLATION SEARCH (guesses position from the id value):");
+        startTime = System.nanoTime();
+        position = idIndex.interpolationSearch(searchId);
+        endTime = System.nanoTime();
+        printIndexedResult(position, endTime - startTime);
+        System.out.println("   Complexity: O(log log n) on evenly spread ids");
+
+        System.out.println("\n5. EXPONENTIAL SEARCH (gallops back from the newest id):");
+        startTime = System.nanoTime();
+        position = idIndex.exponentialSearch(searchId);
+        endTime = System.nanoTime();
+        printIndexedResult(position, endTime - startTime);
+        System.out.println("   Complexity: O(log d) - d = distance from the newest order");
+    }
+
+    private static void printIndexedResult(int position, long nanos) {
+        if (position >= 0) {
+            Order found = allOrders.get(position);
+            System.out.println("   Found: Order #" + found.orderId);
+            System.out.println("   Customer: " + found.customerName);
+        } else {
+            System.out.println("   Order not found!");
+        }
+        System.out.println("   Time: " + nanos + " nanoseconds");
     }
 
     private static void createNewOrder() {
@@ -657,34 +9850,34 @@ public class BookstoreSystem {
         System.out.print("Enter shipping address: ");
         String address = scanner.nextLine();
 
-        Order newOrder = new Order(nextOrderId++, name, address);
-
         System.out.println("\nAvailable books:");
         for (int i = 0; i < bookCatalog.size(); i++) {
             Book book = bookCatalog.get(i);
-            System.out.println((i+1) + ". " + book.title + " - $" + book.price);
+            System.out.println((i+1) + ". " + book.title + " - $" + book.price + " (" + book.quantity + " in stock)");
         }
 
         System.out.print("\nHow many books to add? ");
         int numBooks = scanner.nextInt();
         scanner.nextLine();
 
+        List<Book> selected = new ArrayList<>();
         for (int i = 0; i < numBooks; i++) {
             System.out.print("Enter book number (1-" + bookCatalog.size() + "): ");
             int bookNum = scanner.nextInt();
             scanner.nextLine();
 
             if (bookNum >= 1 && bookNum <= bookCatalog.size()) {
-                Book selectedBook = bookCatalog.get(bookNum - 1);
-                newOrder.addBook(new Book(selectedBook.isbn, selectedBook.title,
-                        selectedBook.author, selectedBook.price, 1));
+                selected.add(bookCatalog.get(bookNum - 1));
             }
         }
 
-        // Add to queue and other data structures
-        orderQueue.enqueue(newOrder);
-        recentOrders.push(newOrder);
-        allOrders.add(newOrder);
+        ShippingClass shipping = readShippingClass();
+
+        Order newOrder = placeOrder(name, address, selected, shipping);
+        if (newOrder == null) {
+            System.out.println("\nNot enough stock for the selected books. Order was not created.");
+            return;
+        }
 
         System.out.println("\nOrder created successfully!");
         System.out.println(newOrder);
@@ -693,19 +9886,76 @@ public class BookstoreSystem {
     private static void processNextOrder() {
         System.out.println("\n=== PROCESS NEXT ORDER ===");
 
-        if (orderQueue.isEmpty()) {
+        Order order = completeNextOrder();
+        if (order == null) {
             System.out.println("No orders in queue to process!");
             return;
         }
 
-        Order order = orderQueue.dequeue();
-        order.status = "Completed";
-
         System.out.println("Processing order:");
         System.out.println(order);
         System.out.println("\nOrder has been processed and removed from queue!");
     }
 
+    private static void cancelOrder() {
+        System.out.println("\n=== CANCEL ORDER ===");
+
+        System.out.print("Enter Order ID to cancel: ");
+        int orderId = scanner.nextInt();
+        scanner.nextLine();
+
+        OrderUpdate result = cancel(orderId);
+        if (result == OrderUpdate.NOT_FOUND) {
+            System.out.println("\nOrder not found!");
+            return;
+        }
+        Order order = findOrder(orderId);
+        if (result == OrderUpdate.NOT_PROCESSING) {
+            System.out.println("\nOrder #" + orderId + " is already " + order.status + " and cannot be cancelled.");
+            return;
+        }
+        System.out.println("\nOrder #" + orderId + " has been cancelled"
+                + (order.stockReserved ? " and its books returned to stock." : "."));
+    }
+
+    private static void upgradeShipping() {
+        System.out.println("\n=== UPGRADE ORDER SHIPPING ===");
+
+        System.out.print("Enter Order ID to upgrade: ");
+        int orderId = scanner.nextInt();
+        scanner.nextLine();
+
+        Order order = findOrder(orderId);
+        if (order == null) {
+            System.out.println("\nOrder not found!");
+            return;
+        }
+        if (order.status != OrderStatus.PROCESSING) {
+            System.out.println("\nOrder #" + orderId + " is already " + order.status + ".");
+            return;
+        }
+        System.out.println("Current shipping: " + order.shipping.label);
+        ShippingClass shipping = readShippingClass();
+        OrderUpdate result = upgrade(orderId, shipping);
+        if (result == OrderUpdate.NOT_FASTER) {
+            System.out.println("\n" + shipping.label + " is not faster than " + order.shipping.label + ".");
+            return;
+        }
+        if (result != OrderUpdate.APPLIED) {
+            System.out.println("\nOrder #" + orderId + " is already " + order.status + ".");
+            return;
+        }
+        System.out.println("\nOrder #" + orderId + " upgraded to " + shipping.label + " shipping.");
+    }
+
+    private static ShippingClass readShippingClass() {
+        System.out.print("Shipping (1 = Standard, 2 = Priority, 3 = Express): ");
+        int choice = scanner.nextInt();
+        scanner.nextLine();
+        ShippingClass[] classes = ShippingClass.values();
+        return classes[Math.max(1, Math.min(classes.length, choice)) - 1];
+    }
+
     private static void searchForOrder() {
         System.out.println("\n=== SEARCH FOR ORDER ===");
 
@@ -713,7 +9963,9 @@ public class BookstoreSystem {
         int orderId = scanner.nextInt();
         scanner.nextLine();
 
-        Order found = SearchingAlgorithms.linearSearch(allOrders, orderId);
+        long startTime = System.nanoTime();
+        Order found = findOrder(orderId);
+        long endTime = System.nanoTime();
 
         if (found != null) {
             System.out.println("\nOrder found:");
@@ -721,6 +9973,154 @@ public class BookstoreSystem {
         } else {
             System.out.println("\nOrder not found!");
         }
+        boolean archived = found != null && orderStore.get(orderId) == null;
+        System.out.println("Lookup time: " + (endTime - startTime) + " nanoseconds ("
+                + (archived ? "archive, decoded from the mapped file or cache" : "one shard's hash index, O(1)") + ")");
+        int live = orderStore.size();
+        System.out.printf("Index overhead: %.1f bytes/order across %d orders in %d shards%n",
+                (double) orderStore.memoryBytes() / Math.max(1, live), live, orderStore.shardCount());
+        if (archive != null) {
+            System.out.printf("Archive: %d orders off-heap (%.1f MB file), index %.1f bytes/order, cache %d hits / %d misses%n",
+                    archive.size(), archive.end() / 1e6, (double) archive.indexBytes() / Math.max(1, archive.size()),
+                    archive.cacheHits(), archive.cacheMisses());
+        }
+    }
+
+    private static void findOrders() {
+        System.out.println("\n=== FIND ORDERS ===");
+
+        System.out.print("Search by (1) customer or (2) time placed today: ");
+        int mode = scanner.nextInt();
+        scanner.nextLine();
+
+        List<Order> orders;
+        long startTime;
+        if (mode == 1) {
+            System.out.print("Enter customer name: ");
+            String customer = scanner.nextLine().trim();
+            System.out.print("Include completed and cancelled orders? (y/n): ");
+            boolean includeClosed = scanner.nextLine().trim().equalsIgnoreCase("y");
+            startTime = System.nanoTime();
+            orders = customerOrders(customer, includeClosed);
+        } else if (mode == 2) {
+            System.out.print("Enter start and end time (HH:mm HH:mm): ");
+            String[] times = scanner.nextLine().trim().split("\\s+");
+            long from;
+            long to;
+            try {
+                from = todayAt(times[0]);
+                to = todayAt(times[1]);
+            } catch (RuntimeException e) {
+                System.out.println("\nInvalid time range!");
+                return;
+            }
+            startTime = System.nanoTime();
+            orders = ordersPlaced(from, to);
+        } else {
+            System.out.println("Invalid choice!");
+            return;
+        }
+
+        for (Order order : orders) {
+            System.out.println(order);
+        }
+        long endTime = System.nanoTime();
+        System.out.println(orders.isEmpty() ? "\nNo orders found!" : orders.size() + " order(s) found.");
+        System.out.println("Query time: " + (endTime - startTime) + " nanoseconds (secondary index, including printing)");
+    }
+
+    // Epoch millis of HH:mm today in the local time zone
+    private static long todayAt(String time) {
+        return java.time.LocalDate.now().atTime(java.time.LocalTime.parse(time))
+                .atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static void displaySalesDashboard() {
+        System.out.println("\n=== SALES DASHBOARD ===");
+
+        long startTime = System.nanoTime();
+        System.out.printf("Booked orders: %d ($%.2f)%n", sales.bookedOrders(), sales.bookedRevenueCents() / 100.0);
+        System.out.printf("Completed orders: %d ($%.2f)%n", sales.completedOrders(), sales.completedRevenueCents() / 100.0);
+        System.out.println("Cancelled orders: " + sales.cancelledOrders());
+        System.out.printf("Revenue today: $%.2f%n", sales.dayRevenueCents(java.time.LocalDate.now()) / 100.0);
+
+        System.out.println("\nUnits sold per book:");
+        Set<String> authors = new LinkedHashSet<>();
+        for (Book book : bookCatalog) {
+            System.out.printf("  %-20s %5d%n", book.title, sales.unitsSold(book.isbn));
+            authors.add(book.author);
+        }
+        System.out.println("\nRevenue per author:");
+        for (String author : authors) {
+            System.out.printf("  %-20s $%9.2f%n", author, sales.authorRevenueCents(author) / 100.0);
+        }
+        long endTime = System.nanoTime();
+        System.out.println("\nDashboard time: " + (endTime - startTime)
+                + " nanoseconds (running aggregates, no order rescan)");
+    }
+
+    private static void displayTopK() {
+        System.out.println("\n=== TOP-K REPORTS ===");
+
+        System.out.print("How many entries per report? ");
+        int k = scanner.nextInt();
+        scanner.nextLine();
+
+        long startTime = System.nanoTime();
+        System.out.println("\nCheapest books:");
+        for (Book book : TopK.smallest(bookCatalog, k, BookKey.PRICE)) {
+            System.out.println("  " + book);
+        }
+        System.out.println("\nLowest stock:");
+        for (Book book : TopK.smallest(bookCatalog, k, BookKey.QUANTITY)) {
+            System.out.println("  " + book);
+        }
+        System.out.println("\nBestsellers:");
+        for (String isbn : sales.bestsellers(k)) {
+            Book book = inventory.find(isbn);
+            System.out.printf("  %-20s %5d sold%n", book != null ? book.title : isbn, sales.unitsSold(isbn));
+        }
+        System.out.println("\nTop authors by revenue:");
+        for (String author : sales.topAuthors(k)) {
+            System.out.printf("  %-20s $%9.2f%n", author, sales.authorRevenueCents(author) / 100.0);
+        }
+        System.out.println("\nLargest orders:");
+        for (Order order : largestOrders(k)) {
+            System.out.printf("  Order #%d  %-15s $%9.2f  %s%n", order.orderId, order.customerName,
+                    order.totalCents / 100.0, order.status);
+        }
+        long endTime = System.nanoTime();
+        System.out.println("\nReport time: " + (endTime - startTime) + " nanoseconds (bounded heaps, no full sort)");
+    }
+
+    private static void searchCatalog() {
+        System.out.println("\n=== SEARCH CATALOG ===");
+
+        System.out.print("Enter title or author words (a trailing partial word is completed): ");
+        String query = scanner.nextLine();
+        if (CatalogSearchIndex.tokenize(query).isEmpty()) {
+            System.out.println("\nPlease enter at least one word.");
+            return;
+        }
+
+        List<String> suggestions = catalogSearch.complete(query, 5);
+        long startTime = System.nanoTime();
+        List<Book> matches = catalogSearch.search(query, 10);
+        long endTime = System.nanoTime();
+
+        if (!suggestions.isEmpty()) {
+            System.out.println("\nSuggestions: " + String.join(", ", suggestions));
+        }
+        if (matches.isEmpty()) {
+            System.out.println("\nNo matching books found!");
+        } else {
+            System.out.println("\nTop " + matches.size() + " matches:");
+            for (Book book : matches) {
+                System.out.println(book);
+            }
+        }
+        System.out.println("Search time: " + (endTime - startTime) + " nanoseconds ("
+                + catalogSearch.termCount() + " indexed words over " + catalogSearch.size() + " books)");
     }
 
     private static void performanceComparison() {
@@ -747,8 +10147,8 @@ public class BookstoreSystem {
         System.out.println("Testing with " + n + " elements...\n");
 
         // Test each sorting algorithm
-        String[] algorithms = {"Bubble", "Selection", "Insertion", "Merge", "Quick"};
-        long[] times = new long[5];
+        String[] algorithms = {"Bubble", "Selection", "Insertion", "Merge", "Quick", "Intro"};
+        long[] times = new long[6];
 
         // Bubble Sort
         List<Book> testCopy = new ArrayList<>(testData);
@@ -780,6 +10180,12 @@ public class BookstoreSystem {
         SortingAlgorithms.quickSort(testCopy, 0, testCopy.size() - 1);
         times[4] = System.nanoTime() - start;
 
+        // Introsort
+        testCopy = new ArrayList<>(testData);
+        start = System.nanoTime();
+        SortingAlgorithms.introSort(testCopy, 0, testCopy.size() - 1);
+        times[5] = System.nanoTime() - start;
+
         // Display results
         System.out.println("Algorithm      | Time (ms)    | Time Complexity | Space Complexity");
         System.out.println("---------------|--------------|-----------------|------------------");
@@ -788,6 +10194,7 @@ public class BookstoreSystem {
         System.out.printf("Insertion Sort | %10.3f | O(n²)           | O(1)\n", times[2]/1000000.0);
         System.out.printf("Merge Sort     | %10.3f | O(n log n)      | O(n)\n", times[3]/1000000.0);
         System.out.printf("Quick Sort     | %10.3f | O(n log n)*     | O(log n)\n", times[4]/1000000.0);
+        System.out.printf("Intro Sort     | %10.3f | O(n log n)      | O(log n)\n", times[5]/1000000.0);
         System.out.println("\n* Quick Sort average case. Worst case is O(n²)");
 
         // Find best performer